@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The executor used by default for blocking I/O tasks across the library.
+ * Starts a virtual thread per task if the JVM supports them, otherwise
+ * uses a cached pool of daemon threads.
+ * The executor is shared and created on first use.
+ * Thread safe.
+ *
+ * @author Raffaele Ragni
+ */
+public final class DefaultExecutor {
+
+  private DefaultExecutor() {
+  }
+
+  /**
+   *
+   * @return the shared default executor.
+   */
+  public static Executor get() {
+    return Holder.INSTANCE;
+  }
+
+  private static final class Holder {
+    static final Executor INSTANCE = create();
+
+    private Holder() {}
+
+    private static Executor create() {
+      try {
+        return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+        return Executors.newCachedThreadPool(r -> {
+          var thread = new Thread(r, "baselib-io");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+    }
+  }
+}
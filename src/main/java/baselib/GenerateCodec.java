@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a java record for compile time generation of a RecordCodec.
+ * The processor is baselib.processor.RecordCodecProcessor and it is not
+ * registered automatically: it has to be enabled explicitly in the compiler
+ * options (-processor).
+ * The generated class is named after the record with the 'Codec' suffix,
+ * nested records get the enclosing names joined by '_'.
+ * Generated codecs are used only once added to RecordCodecs.register().
+ *
+ * @author Raffaele Ragni
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateCodec {
+}
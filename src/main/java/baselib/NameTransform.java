@@ -15,9 +15,9 @@
  */
 package baselib;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
-import java.util.regex.Pattern;
-import static java.util.regex.Pattern.compile;
 
 /**
  * Thread safe.
@@ -26,8 +26,10 @@ import static java.util.regex.Pattern.compile;
 @FunctionalInterface
 public interface NameTransform extends Function<String, String> {
   final NameTransform NONE = x -> x;
-  final NameTransform SNAKE = new ToSplitCase('_');
-  final NameTransform KEBAB = new ToSplitCase('-');
+  final NameTransform SNAKE = memoize(new ToSplitCase('_'));
+  final NameTransform KEBAB = memoize(new ToSplitCase('-'));
+  final NameTransform CAMEL = memoize(new ToCamelCase(false));
+  final NameTransform PASCAL = memoize(new ToCamelCase(true));
 
   @Override
   public default String apply(String t) {
@@ -35,11 +37,51 @@ public interface NameTransform extends Function<String, String> {
   }
 
   String transform(String from);
+
+  /**
+   * Caches the results of a transform.
+   * The cache is bounded: once full, new names are transformed without
+   * being cached.
+   * @param transform the transform to cache
+   * @return the caching transform
+   */
+  static NameTransform memoize(NameTransform transform) {
+    return new Memoized(transform, Memoized.DEFAULT_SIZE);
+  }
 }
 
+class Memoized implements NameTransform {
+  static final int DEFAULT_SIZE = 4096;
+
+  final Map<String, String> cache = new ConcurrentHashMap<>();
+  final NameTransform transform;
+  final int maxSize;
+
+  Memoized(NameTransform transform, int maxSize) {
+    this.transform = transform;
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public String transform(String from) {
+    if (from == null)
+      return null;
+    var result = cache.get(from);
+    if (result != null)
+      return result;
+    result = transform.transform(from);
+    if (cache.size() < maxSize)
+      cache.put(from, result);
+    return result;
+  }
+}
+
+/**
+ * camelCase to split_case: a separator is added before each upper case letter
+ * that follows a lower case letter or a digit, then all is lower cased.
+ */
 class ToSplitCase implements NameTransform {
 
-  final Pattern pattern = compile("(?<=[a-z0-9])[A-Z]");
   final char separator;
 
   public ToSplitCase(char separator) {
@@ -50,9 +92,66 @@ class ToSplitCase implements NameTransform {
   public String transform(String from) {
     if (from == null)
       return null;
-    return pattern.matcher(from)
-      .replaceAll(match -> separator + match.group().toLowerCase())
-      .toLowerCase();
+    var len = from.length();
+    var sb = new StringBuilder(len + 4);
+    var prev = (char) 0;
+    for (var i = 0; i < len; i++) {
+      var c = from.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        if (prev >= 'a' && prev <= 'z' || prev >= '0' && prev <= '9')
+          sb.append(separator);
+        sb.append((char) (c + ('a' - 'A')));
+      } else {
+        sb.append(Character.toLowerCase(c));
+      }
+      prev = c;
+    }
+    return sb.toString();
   }
+}
+
+/**
+ * split_case or kebab-case to camelCase (or PascalCase): separators are
+ * removed and the letter after them upper cased.
+ * Names that are all upper case, such as SNAKE_CASE, are lower cased first.
+ */
+class ToCamelCase implements NameTransform {
 
-}
\ No newline at end of file
+  final boolean upperFirst;
+
+  public ToCamelCase(boolean upperFirst) {
+    this.upperFirst = upperFirst;
+  }
+
+  @Override
+  public String transform(String from) {
+    if (from == null)
+      return null;
+    var len = from.length();
+    var lower = !hasLowerCase(from);
+    var sb = new StringBuilder(len);
+    var upperNext = upperFirst;
+    for (var i = 0; i < len; i++) {
+      var c = from.charAt(i);
+      if (c == '_' || c == '-') {
+        upperNext = sb.length() > 0 || upperFirst;
+        continue;
+      }
+      if (upperNext)
+        sb.append(Character.toUpperCase(c));
+      else if (sb.length() == 0 || lower)
+        sb.append(Character.toLowerCase(c));
+      else
+        sb.append(c);
+      upperNext = false;
+    }
+    return sb.toString();
+  }
+
+  private static boolean hasLowerCase(String s) {
+    for (var i = 0; i < s.length(); i++)
+      if (Character.isLowerCase(s.charAt(i)))
+        return true;
+    return false;
+  }
+}
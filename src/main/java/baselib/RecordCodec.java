@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reflection free access to a java record.
+ * Usually generated at compile time from the GenerateCodec annotation, once
+ * registered into RecordCodecs it replaces the reflection done by Records,
+ * JSONBuilder, JSONReader and the jdbc record mappers.
+ *
+ * @param <T> the record type
+ * @author Raffaele Ragni
+ */
+public interface RecordCodec<T> {
+
+  /**
+   *
+   * @return the record class this codec is for.
+   */
+  Class<T> type();
+
+  /**
+   * Walks through the record components, in declaration order.
+   * @param rec the record instance to read from
+   * @param consumer receives the component name and its value
+   */
+  void components(T rec, BiConsumer<String, Object> consumer);
+
+  /**
+   * Builds the record, same as Records.fromPropertyDiscover().
+   * Each component is searched in its name variants: as is, snake case and
+   * kebab case, both lower and upper case.
+   * @param fetch the function that returns a value from a property name
+   * @return the new record instance
+   */
+  T fromPropertyDiscover(Function<String, Object> fetch);
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Explicit registry of record codecs.
+ * Nothing is discovered from the classpath: codecs are used only after being
+ * passed to register().
+ * The static helpers are used by the generated codecs.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class RecordCodecs {
+
+  private static final Map<Class<?>, RecordCodec<?>> CODECS = new ConcurrentHashMap<>();
+  private static final String NULL_PRIMITIVE = "null value for a primitive component";
+
+  private RecordCodecs() {
+  }
+
+  public static <T> void register(RecordCodec<T> codec) {
+    Objects.requireNonNull(codec);
+    if (!codec.type().isRecord())
+      throw Records.recordRequiredException();
+    CODECS.put(codec.type(), codec);
+  }
+
+  public static void unregister(Class<?> clazz) {
+    CODECS.remove(clazz);
+  }
+
+  /**
+   *
+   * @param <T> record type
+   * @param clazz record class
+   * @return the registered codec or null if none was registered.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> RecordCodec<T> of(Class<T> clazz) {
+    return (RecordCodec<T>) CODECS.get(clazz);
+  }
+
+  public static Object discover(Function<String, Object> fetch, String... names) {
+    for (var name: names) {
+      var value = fetch.apply(name);
+      if (value != null)
+        return value;
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> T asRecord(Class<T> clazz, Object value) {
+    if (value instanceof Map)
+      return Records.fromMap(clazz, (Map<String, Object>) value);
+    return clazz.cast(value);
+  }
+
+  public static int asInt(Object value) {
+    return primitive(value).intValue();
+  }
+
+  public static long asLong(Object value) {
+    return primitive(value).longValue();
+  }
+
+  public static short asShort(Object value) {
+    return primitive(value).shortValue();
+  }
+
+  public static byte asByte(Object value) {
+    return primitive(value).byteValue();
+  }
+
+  public static double asDouble(Object value) {
+    return primitive(value).doubleValue();
+  }
+
+  public static float asFloat(Object value) {
+    return primitive(value).floatValue();
+  }
+
+  public static boolean asBoolean(Object value) {
+    return (Boolean) Objects.requireNonNull(value, NULL_PRIMITIVE);
+  }
+
+  public static char asChar(Object value) {
+    return (Character) Objects.requireNonNull(value, NULL_PRIMITIVE);
+  }
+
+  private static Number primitive(Object value) {
+    return (Number) Objects.requireNonNull(value, NULL_PRIMITIVE);
+  }
+}
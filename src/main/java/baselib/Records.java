@@ -33,12 +33,19 @@ public final class Records {
   private Records() {
   }
 
+  @SuppressWarnings("unchecked")
   public static Map<String, Object> toMap(Object rec) {
     Objects.requireNonNull(rec);
     if (!isRecord(rec))
       throw recordRequiredException();
 
     var result = new HashMap<String, Object>();
+    var codec = (RecordCodec<Object>) RecordCodecs.of(rec.getClass());
+    if (codec != null) {
+      codec.components(rec, (name, value) -> result.put(name, value != null && isRecord(value) ? toMap(value) : value));
+      return result;
+    }
+
     for (var field: getRecordFields(rec)) {
       var value = getFieldValue(field, rec);
       if (isRecord(value))
@@ -50,6 +57,31 @@ public final class Records {
     return result;
   }
 
+  /**
+   * The values of the record components, in declaration order.
+   * @param rec the record
+   * @return the component values
+   */
+  @SuppressWarnings("unchecked")
+  public static Object[] componentValues(Object rec) {
+    Objects.requireNonNull(rec);
+    if (!isRecord(rec))
+      throw recordRequiredException();
+
+    var fields = getRecordFields(rec);
+    var result = new Object[fields.length];
+    var codec = (RecordCodec<Object>) RecordCodecs.of(rec.getClass());
+    if (codec != null) {
+      var i = new int[]{0};
+      codec.components(rec, (name, value) -> result[i[0]++] = value);
+      return result;
+    }
+
+    for (var i = 0; i < fields.length; i++)
+      result[i] = getFieldValue(fields[i], rec);
+    return result;
+  }
+
   public static <T> T fromMap(Class<T> clazz, Map<String, Object> map) {
     if (map == null)
       return null;
@@ -62,6 +94,10 @@ public final class Records {
     if (!clazz.isRecord())
       throw recordRequiredException();
 
+    var codec = RecordCodecs.of(clazz);
+    if (codec != null)
+      return codec.fromPropertyDiscover(fetch);
+
     var params = new LinkedList<Object>();
     var types = new LinkedList<Class<?>>();
     for (var field: getDeclaredFields(clazz)) {
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.binary;
+
+import static baselib.binary.BinaryWriter.BYTE;
+import static baselib.binary.BinaryWriter.BYTES;
+import static baselib.binary.BinaryWriter.CHAR;
+import static baselib.binary.BinaryWriter.DECIMAL;
+import static baselib.binary.BinaryWriter.DOUBLE;
+import static baselib.binary.BinaryWriter.FALSE;
+import static baselib.binary.BinaryWriter.FLOAT;
+import static baselib.binary.BinaryWriter.INT;
+import static baselib.binary.BinaryWriter.LIST;
+import static baselib.binary.BinaryWriter.LONG;
+import static baselib.binary.BinaryWriter.MAP;
+import static baselib.binary.BinaryWriter.NULL;
+import static baselib.binary.BinaryWriter.RECORD;
+import static baselib.binary.BinaryWriter.SHORT;
+import static baselib.binary.BinaryWriter.STRING;
+import static baselib.binary.BinaryWriter.TRUE;
+import static baselib.binary.BinaryWriter.VERSION;
+import baselib.binary.BinaryWriter.Layout;
+import baselib.Records;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads records written by BinaryWriter.
+ * Reading works on a ByteBuffer from its current position, so slices of
+ * bigger buffers (for example memory mapped files) can be read without
+ * copying.
+ *
+ * The record is built through Records.fromMap() so the same conversions and
+ * registered codecs apply as for JSON.
+ *
+ * @author Raffaele Ragni
+ */
+public final class BinaryReader {
+
+  private final ByteBuffer buffer;
+
+  public BinaryReader(final ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  public static <T> T toRecord(Class<T> clazz, byte[] bytes) {
+    return new BinaryReader(ByteBuffer.wrap(bytes)).toRecord(clazz);
+  }
+
+  public static <T> T toRecord(Class<T> clazz, ByteBuffer buffer) {
+    return new BinaryReader(buffer).toRecord(clazz);
+  }
+
+  public <T> T toRecord(Class<T> clazz) {
+    if (clazz == null || !clazz.isRecord())
+      throw new IllegalArgumentException("Class need to be of record type.");
+
+    var schema = Schema.of(clazz);
+    try {
+      if (buffer.get() != VERSION)
+        throw invalidBinaryException();
+      var layout = layoutOf(buffer.get());
+      var fingerprint = readFixedLong();
+      if (layout == Layout.POSITIONAL && fingerprint != schema.fingerprint)
+        throw new IllegalStateException("Schema mismatch for " + clazz.getName());
+
+      return Records.fromMap(clazz, readRecord(clazz, layout));
+    } catch (BufferUnderflowException e) {
+      throw invalidBinaryException();
+    }
+  }
+
+  private Map<String, Object> readRecord(Class<?> clazz, Layout layout) {
+    var map = new HashMap<String, Object>();
+    if (layout == Layout.NAMED) {
+      var count = (int) readVarLong();
+      for (var i = 0; i < count; i++) {
+        var name = readString();
+        map.put(name, readValue(null, layout));
+      }
+      return map;
+    }
+
+    var schema = Schema.of(clazz);
+    for (var i = 0; i < schema.components.length; i++)
+      map.put(schema.names[i], readValue(schema.components[i].getType(), layout));
+    return map;
+  }
+
+  private Object readValue(Class<?> declared, Layout layout) {
+    var tag = buffer.get();
+    return switch (tag) {
+      case NULL -> null;
+      case TRUE -> Boolean.TRUE;
+      case FALSE -> Boolean.FALSE;
+      case INT -> (int) unzigzag(readVarLong());
+      case LONG -> unzigzag(readVarLong());
+      case SHORT -> (short) unzigzag(readVarLong());
+      case BYTE -> buffer.get();
+      case CHAR -> (char) readVarLong();
+      case DOUBLE -> Double.longBitsToDouble(readFixedLong());
+      case FLOAT -> Float.intBitsToFloat((int) readVarLong());
+      case STRING -> readString();
+      case DECIMAL -> new BigDecimal(readString());
+      case BYTES -> readBytes();
+      case LIST -> readList();
+      case MAP -> readMap();
+      case RECORD -> readNestedRecord(declared, layout);
+      default -> throw invalidBinaryException();
+    };
+  }
+
+  private Object readNestedRecord(Class<?> declared, Layout layout) {
+    if (layout == Layout.POSITIONAL && (declared == null || !declared.isRecord()))
+      throw invalidBinaryException();
+    return readRecord(declared, layout);
+  }
+
+  private List<Object> readList() {
+    var count = (int) readVarLong();
+    var list = new ArrayList<Object>(count);
+    for (var i = 0; i < count; i++)
+      list.add(readValue(null, Layout.NAMED));
+    return list;
+  }
+
+  private Map<String, Object> readMap() {
+    var count = (int) readVarLong();
+    var map = new HashMap<String, Object>();
+    for (var i = 0; i < count; i++) {
+      var key = readString();
+      map.put(key, readValue(null, Layout.NAMED));
+    }
+    return map;
+  }
+
+  private byte[] readBytes() {
+    var bytes = new byte[readLength()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private String readString() {
+    var length = readLength();
+    if (buffer.hasArray()) {
+      var offset = buffer.arrayOffset() + buffer.position();
+      buffer.position(buffer.position() + length);
+      return new String(buffer.array(), offset, length, UTF_8);
+    }
+    var bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private int readLength() {
+    var length = readVarLong();
+    if (length < 0 || length > buffer.remaining())
+      throw invalidBinaryException();
+    return (int) length;
+  }
+
+  private long readVarLong() {
+    long result = 0;
+    for (var shift = 0; shift < 64; shift += 7) {
+      var b = buffer.get();
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return result;
+    }
+    throw invalidBinaryException();
+  }
+
+  private long readFixedLong() {
+    long result = 0;
+    for (var i = 0; i < 8; i++)
+      result |= (buffer.get() & 0xffL) << (i * 8);
+    return result;
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static Layout layoutOf(byte b) {
+    var layouts = Layout.values();
+    if (b < 0 || b >= layouts.length)
+      throw invalidBinaryException();
+    return layouts[b];
+  }
+
+  static IllegalStateException invalidBinaryException() {
+    return new IllegalStateException("Not a valid binary record");
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.binary;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.RecordCodec;
+import baselib.RecordCodecs;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Compact binary encoding of java records.
+ *
+ * Layout of a record:
+ *   header: version byte, layout byte, schema fingerprint (8 bytes)
+ *   NAMED body: varint count, then (name, value) pairs
+ *   POSITIONAL body: values in component declaration order, no names
+ *
+ * Values are a tag byte followed by the payload: integers are zigzag varints,
+ * strings are a varint length followed by the utf8 bytes.
+ * Records nested inside collections or maps are always written NAMED, since
+ * their type cannot be known on read, and are read back as maps, the same as
+ * JSONReader does.
+ * Values of other types than these throw IllegalArgumentException.
+ *
+ * @author Raffaele Ragni
+ */
+public final class BinaryWriter {
+
+  static final byte VERSION = 1;
+
+  static final byte NULL = 0;
+  static final byte TRUE = 1;
+  static final byte FALSE = 2;
+  static final byte INT = 3;
+  static final byte LONG = 4;
+  static final byte DOUBLE = 5;
+  static final byte FLOAT = 6;
+  static final byte STRING = 7;
+  static final byte DECIMAL = 8;
+  static final byte CHAR = 9;
+  static final byte SHORT = 10;
+  static final byte BYTE = 11;
+  static final byte LIST = 12;
+  static final byte MAP = 13;
+  static final byte RECORD = 14;
+  static final byte BYTES = 15;
+
+  /**
+   * NAMED carries the component names and can be read even if the record
+   * changed shape. POSITIONAL drops the names and can be read only by the
+   * same record shape, verified through the schema fingerprint.
+   */
+  public enum Layout {
+    NAMED, POSITIONAL
+  }
+
+  private final Layout layout;
+  byte[] buffer;
+  int size;
+
+  public BinaryWriter() {
+    this(Layout.NAMED);
+  }
+
+  public BinaryWriter(Layout layout) {
+    this.layout = Objects.requireNonNull(layout);
+    this.buffer = new byte[64];
+  }
+
+  public static byte[] toBinary(Object rec) {
+    return toBinary(rec, Layout.NAMED);
+  }
+
+  public static byte[] toBinary(Object rec, Layout layout) {
+    var writer = new BinaryWriter(layout);
+    writer.record(rec);
+    return writer.toByteArray();
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  /**
+   * Writes a top level record, with its header.
+   * @param rec the record to write
+   */
+  public void record(Object rec) {
+    Objects.requireNonNull(rec);
+    var schema = Schema.of(rec.getClass());
+    writeByte(VERSION);
+    writeByte((byte) layout.ordinal());
+    writeFixedLong(schema.fingerprint);
+    doRecord(rec, layout);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void doRecord(Object rec, Layout recordLayout) {
+    var schema = Schema.of(rec.getClass());
+    if (recordLayout == Layout.NAMED)
+      writeVarLong(schema.components.length);
+
+    var codec = (RecordCodec<Object>) RecordCodecs.of(rec.getClass());
+    if (codec != null) {
+      codec.components(rec, (name, value) -> component(name, value, recordLayout));
+      return;
+    }
+    for (var c: schema.components)
+      component(c.getName(), ex(() -> c.getAccessor().invoke(rec)), recordLayout);
+  }
+
+  private void component(String name, Object value, Layout recordLayout) {
+    if (recordLayout == Layout.NAMED)
+      writeString(name);
+    value(value, recordLayout);
+  }
+
+  private void value(Object o, Layout recordLayout) {
+    if (o instanceof Optional<?> op)
+      o = op.orElse(null);
+
+    if (o == null) {
+      writeByte(NULL);
+    } else if (o instanceof String s) {
+      writeByte(STRING);
+      writeString(s);
+    } else if (o instanceof Integer i) {
+      writeByte(INT);
+      writeVarLong(zigzag(i));
+    } else if (o instanceof Long l) {
+      writeByte(LONG);
+      writeVarLong(zigzag(l));
+    } else if (o instanceof Boolean b) {
+      writeByte(b ? TRUE : FALSE);
+    } else if (o instanceof Double d) {
+      writeByte(DOUBLE);
+      writeFixedLong(Double.doubleToRawLongBits(d));
+    } else if (o instanceof Float f) {
+      writeByte(FLOAT);
+      writeVarLong(Float.floatToRawIntBits(f) & 0xffffffffL);
+    } else if (o instanceof Short s) {
+      writeByte(SHORT);
+      writeVarLong(zigzag(s));
+    } else if (o instanceof Byte b) {
+      writeByte(BYTE);
+      writeByte(b);
+    } else if (o instanceof Character c) {
+      writeByte(CHAR);
+      writeVarLong(c);
+    } else if (o instanceof BigDecimal d) {
+      writeByte(DECIMAL);
+      writeString(d.toString());
+    } else if (o instanceof byte[] bytes) {
+      writeByte(BYTES);
+      writeVarLong(bytes.length);
+      writeBytes(bytes, bytes.length);
+    } else if (o instanceof Map<?, ?> m) {
+      doMap(m);
+    } else if (o instanceof Collection<?> c) {
+      writeByte(LIST);
+      writeVarLong(c.size());
+      c.forEach(item -> value(item, Layout.NAMED));
+    } else if (o.getClass().isArray()) {
+      doArray(o);
+    } else if (o.getClass().isRecord()) {
+      writeByte(RECORD);
+      doRecord(o, recordLayout);
+    } else {
+      // would be read back as something else
+      throw new IllegalArgumentException("Unsupported type " + o.getClass().getName());
+    }
+  }
+
+  private void doMap(Map<?, ?> m) {
+    writeByte(MAP);
+    writeVarLong(m.size());
+    m.forEach((k, v) -> {
+      writeString(String.valueOf(k));
+      value(v, Layout.NAMED);
+    });
+  }
+
+  private void doArray(Object o) {
+    writeByte(LIST);
+    var length = Array.getLength(o);
+    writeVarLong(length);
+    for (var i = 0; i < length; i++)
+      value(Array.get(o, i), Layout.NAMED);
+  }
+
+  void writeString(String s) {
+    var bytes = s.getBytes(UTF_8);
+    writeVarLong(bytes.length);
+    writeBytes(bytes, bytes.length);
+  }
+
+  void writeVarLong(long value) {
+    ensure(10);
+    while ((value & ~0x7fL) != 0) {
+      buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[size++] = (byte) value;
+  }
+
+  void writeFixedLong(long value) {
+    ensure(8);
+    for (var i = 0; i < 8; i++) {
+      buffer[size++] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  void writeByte(byte b) {
+    ensure(1);
+    buffer[size++] = b;
+  }
+
+  private void writeBytes(byte[] bytes, int length) {
+    ensure(length);
+    System.arraycopy(bytes, 0, buffer, size, length);
+    size += length;
+  }
+
+  private void ensure(int more) {
+    if (size + more > buffer.length)
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + more));
+  }
+
+  static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.binary;
+
+import java.lang.reflect.RecordComponent;
+
+/**
+ * Component layout of a record class, with its fingerprint.
+ * The fingerprint is a FNV-1a 64 bit hash over component names and types,
+ * recursing into nested record components, so that any change to the shape
+ * of the record changes the fingerprint.
+ *
+ * @author Raffaele Ragni
+ */
+final class Schema {
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final ClassValue<Schema> SCHEMAS = new ClassValue<>() {
+    @Override
+    protected Schema computeValue(Class<?> type) {
+      return new Schema(type);
+    }
+  };
+
+  final RecordComponent[] components;
+  final String[] names;
+  final long fingerprint;
+
+  private Schema(Class<?> clazz) {
+    if (!clazz.isRecord())
+      throw new IllegalArgumentException("Required a java record");
+    this.components = clazz.getRecordComponents();
+    this.names = new String[components.length];
+    var hash = hash(FNV_OFFSET, clazz.getSimpleName());
+    for (var i = 0; i < components.length; i++) {
+      var type = components[i].getType();
+      names[i] = components[i].getName();
+      hash = hash(hash, names[i]);
+      hash = type.isRecord() && type != clazz
+        ? mix(hash, of(type).fingerprint)
+        : hash(hash, type.getName());
+    }
+    this.fingerprint = hash;
+  }
+
+  static Schema of(Class<?> clazz) {
+    return SCHEMAS.get(clazz);
+  }
+
+  private static long hash(long hash, String s) {
+    for (var i = 0; i < s.length(); i++)
+      hash = mix(hash, s.charAt(i));
+    return mix(hash, ';');
+  }
+
+  private static long mix(long hash, long value) {
+    return (hash ^ value) * FNV_PRIME;
+  }
+}
@@ -0,0 +1,50 @@
+package baselib.http.rest;
+
+import baselib.http.HttpServer;
+import baselib.jdbc.JdbcInstance;
+import baselib.jdbc.JdbcInstance.ExBiConsumer;
+import java.sql.PreparedStatement;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * GET handler that streams the results of a query as a json array, straight
+ * from the result set to the response without building the whole body.
+ * The response is chunked, so the rows are sent while they are read.
+ */
+public class JSONQuery implements Function<HttpServer.Context, String> {
+  private static final HttpServer.HttpStatus HTTP_415 = new HttpServer.HttpStatus(415);
+
+  JdbcInstance jdbc;
+  String sql;
+  ExBiConsumer<HttpServer.Context, PreparedStatement> paramSetter;
+
+  JSONQuery(JdbcInstance jdbc, String sql, ExBiConsumer<HttpServer.Context, PreparedStatement> paramSetter) {
+    Objects.requireNonNull(jdbc);
+    Objects.requireNonNull(sql);
+    Objects.requireNonNull(paramSetter);
+    this.jdbc = jdbc;
+    this.sql = sql;
+    this.paramSetter = paramSetter;
+  }
+
+  public static JSONQuery from(JdbcInstance jdbc, String sql) {
+    return new JSONQuery(jdbc, sql, (ctx, st) -> {});
+  }
+
+  /**
+   * @param paramSetter sets the query parameters from the request, such as
+   *                    from ctx.variablePath().
+   */
+  public static JSONQuery from(JdbcInstance jdbc, String sql, ExBiConsumer<HttpServer.Context, PreparedStatement> paramSetter) {
+    return new JSONQuery(jdbc, sql, paramSetter);
+  }
+
+  @Override
+  public String apply(HttpServer.Context ctx) {
+    if (!"GET".equals(ctx.method()))
+      throw HTTP_415;
+    ctx.writer(out -> jdbc.streamedJSON(sql, st -> paramSetter.accept(ctx, st), out));
+    return "";
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.DefaultExecutor;
+import baselib.jdbc.JdbcInstance.ExBiConsumer;
+import baselib.jdbc.JdbcInstance.ExConsumer;
+import baselib.jdbc.JdbcInstance.RecordMapper;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Runs the JdbcInstance calls on an executor and returns futures, so that the
+ * calling thread (for example an http worker) does not block on the database
+ * and many independent queries can be run at once.
+ *
+ * At most maxConcurrency calls run at the same time, the others are queued
+ * without holding any thread until a slot is free.
+ * The default executor uses virtual threads when the JVM supports them, and
+ * a cached pool of daemon threads otherwise.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class AsyncJdbcInstance {
+  public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+  private final JdbcInstance jdbc;
+  private final Executor executor;
+  private final int maxConcurrency;
+  private final AtomicInteger running = new AtomicInteger();
+  private final Queue<Task> queued = new ConcurrentLinkedQueue<>();
+
+  private record Task(Runnable run, Consumer<Throwable> fail) {}
+
+  public AsyncJdbcInstance(final JdbcInstance jdbc) {
+    this(jdbc, defaultExecutor(), DEFAULT_MAX_CONCURRENCY);
+  }
+
+  /**
+   *
+   * @param jdbc the instance to run the calls on
+   * @param executor runs the calls
+   * @param maxConcurrency how many calls can run at the same time, usually
+   *                       not more than the connections available.
+   */
+  public AsyncJdbcInstance(final JdbcInstance jdbc, final Executor executor, final int maxConcurrency) {
+    if (maxConcurrency < 1)
+      throw new IllegalArgumentException("max concurrency must be positive");
+    this.jdbc = Objects.requireNonNull(jdbc);
+    this.executor = Objects.requireNonNull(executor);
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   *
+   * @return an executor starting a virtual thread per task if the JVM supports
+   *         them, otherwise a cached pool of daemon threads.
+   *         The executor is shared and created on first use.
+   */
+  public static Executor defaultExecutor() {
+    return DefaultExecutor.get();
+  }
+
+  /**
+   * See JdbcInstance.execute()
+   */
+  public CompletableFuture<Integer> execute(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter) {
+    return supply(j -> j.execute(sql, paramSetter));
+  }
+
+  /**
+   * See JdbcInstance.streamed(), the result getter is called from the
+   * executor thread.
+   */
+  public CompletableFuture<Void> streamed(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final ExConsumer<ResultSet> resultGetter) {
+    return supply(j -> {
+      j.streamed(sql, paramSetter, resultGetter);
+      return null;
+    });
+  }
+
+  /**
+   * Collects all the rows of the query.
+   * See JdbcInstance.stream()
+   */
+  public <T> CompletableFuture<List<T>> list(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final RecordMapper<T> mapper) {
+    return supply(j -> {
+      try (var rows = j.stream(sql, paramSetter, mapper)) {
+        return rows.collect(toList());
+      }
+    });
+  }
+
+  /**
+   * See JdbcInstance.batch()
+   */
+  public <T> CompletableFuture<Long> batch(
+      final String sql,
+      final Iterable<T> items,
+      final ExBiConsumer<PreparedStatement, T> binder) {
+    return supply(j -> j.batch(sql, items, binder));
+  }
+
+  /**
+   * Runs any function of the instance, within the concurrency limit.
+   *
+   * @param <R> the result type
+   * @param call the function to run with the JdbcInstance
+   * @return the future of the function result.
+   */
+  public <R> CompletableFuture<R> supply(final Function<JdbcInstance, R> call) {
+    Objects.requireNonNull(call);
+    var future = new CompletableFuture<R>();
+    queued.add(new Task(() -> {
+      try {
+        future.complete(call.apply(jdbc));
+      } catch (RuntimeException | Error e) {
+        future.completeExceptionally(e);
+      }
+    }, future::completeExceptionally));
+    dispatch();
+    return future;
+  }
+
+  int running() {
+    return running.get();
+  }
+
+  int queued() {
+    return queued.size();
+  }
+
+  private void dispatch() {
+    while (!queued.isEmpty()) {
+      var count = running.get();
+      if (count >= maxConcurrency)
+        return;
+      if (!running.compareAndSet(count, count + 1))
+        continue;
+
+      var task = queued.poll();
+      if (task == null) {
+        running.decrementAndGet();
+        continue;
+      }
+      try {
+        executor.execute(() -> {
+          try {
+            task.run.run();
+          } finally {
+            running.decrementAndGet();
+            dispatch();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        running.decrementAndGet();
+        task.fail.accept(e);
+      }
+    }
+  }
+}
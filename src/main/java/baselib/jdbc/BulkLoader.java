@@ -0,0 +1,300 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.jdbc.JdbcInstance.ExBiConsumer;
+import baselib.json.JSONReader;
+import baselib.metrics.MetricRegisterable;
+import baselib.metrics.MetricsExporter;
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import static java.lang.String.valueOf;
+
+/**
+ * Loads a stream of items into a table with batched statements, reading the
+ * items on one thread and writing the batches on the calling thread, with a
+ * bounded queue of batches in between: reading and writing overlap, and the
+ * reader waits when the database is slower.
+ *
+ * Each batch is committed on its own (see JdbcInstance.batch()), so a failed
+ * load leaves the batches written before the failure.
+ *
+ * Metrics are registered in MetricsExporter.DEFAULT labeled with the loader
+ * name: items and batches written, time spent writing, the time the reader
+ * waited for the writer (backpressure) and the writer for the reader, and the
+ * batches queued. Close the loader to unregister them.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class BulkLoader<T> implements AutoCloseable {
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  public static final int DEFAULT_QUEUE_SIZE = 4;
+  private static final Object END = new Object();
+
+  private final JdbcInstance jdbc;
+  private final String sql;
+  private final ExBiConsumer<PreparedStatement, T> binder;
+  private final int batchSize;
+  private final int queueSize;
+  private final Executor executor;
+  final LoaderMetrics metrics;
+
+  /**
+   *
+   * @param name loader name, used as label in metrics
+   * @param jdbc the instance to write on
+   * @param sql the statement executed for each item
+   * @param binder sets the statement parameters for each item
+   */
+  public BulkLoader(
+      final String name,
+      final JdbcInstance jdbc,
+      final String sql,
+      final ExBiConsumer<PreparedStatement, T> binder) {
+    this(jdbc, sql, binder, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_SIZE,
+      AsyncJdbcInstance.defaultExecutor(), new LoaderMetrics(Objects.requireNonNull(name)));
+    MetricsExporter.DEFAULT.register(metrics);
+  }
+
+  private BulkLoader(
+      JdbcInstance jdbc,
+      String sql,
+      ExBiConsumer<PreparedStatement, T> binder,
+      int batchSize,
+      int queueSize,
+      Executor executor,
+      LoaderMetrics metrics) {
+    this.jdbc = Objects.requireNonNull(jdbc);
+    this.sql = Objects.requireNonNull(sql);
+    this.binder = Objects.requireNonNull(binder);
+    this.batchSize = batchSize;
+    this.queueSize = queueSize;
+    this.executor = Objects.requireNonNull(executor);
+    this.metrics = metrics;
+  }
+
+  /**
+   * A loader of records: the record components are bound in declaration
+   * order, see JdbcInstance.batchRecords().
+   */
+  public static <T extends Record> BulkLoader<T> ofRecords(
+      final String name,
+      final JdbcInstance jdbc,
+      final String sql) {
+    return new BulkLoader<>(name, jdbc, sql, JdbcInstance::bindRecord);
+  }
+
+  /**
+   * @param batchSize items per batch, default DEFAULT_BATCH_SIZE
+   * @return a copy of this loader, sharing its metrics.
+   */
+  public BulkLoader<T> withBatchSize(final int batchSize) {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("batch size must be positive");
+    return new BulkLoader<>(jdbc, sql, binder, batchSize, queueSize, executor, metrics);
+  }
+
+  /**
+   * @param queueSize batches read ahead of the writer, default
+   *                  DEFAULT_QUEUE_SIZE
+   * @return a copy of this loader, sharing its metrics.
+   */
+  public BulkLoader<T> withQueueSize(final int queueSize) {
+    if (queueSize < 1)
+      throw new IllegalArgumentException("queue size must be positive");
+    return new BulkLoader<>(jdbc, sql, binder, batchSize, queueSize, executor, metrics);
+  }
+
+  /**
+   * @param executor runs the reading side of each load, default
+   *                 AsyncJdbcInstance.defaultExecutor()
+   * @return a copy of this loader, sharing its metrics.
+   */
+  public BulkLoader<T> withExecutor(final Executor executor) {
+    return new BulkLoader<>(jdbc, sql, binder, batchSize, queueSize, Objects.requireNonNull(executor), metrics);
+  }
+
+  /**
+   * Loads the records of a JSON array or of NDJSON (one object per line), see
+   * JSONReader.toRecordStream(). The reader is closed at the end.
+   *
+   * @return the number of records written
+   */
+  public long loadJSON(final Class<T> clazz, final Reader reader) {
+    var buffered = reader instanceof BufferedReader b ? b : new BufferedReader(reader);
+    return load(new JSONReader(buffered).toRecordStream(clazz));
+  }
+
+  /**
+   * Loads the items, consuming the stream on another thread while the batches
+   * are written on this one. The stream is closed at the end.
+   * If either side fails, the other stops and the error is thrown.
+   *
+   * @return the number of records written
+   */
+  public long load(final Stream<T> items) {
+    Objects.requireNonNull(items);
+    var pipe = new Pipe(queueSize);
+    executor.execute(() -> pipe.produce(items));
+    var total = 0L;
+    try {
+      for (var batch = pipe.take(); batch != null; batch = pipe.take()) {
+        var start = System.nanoTime();
+        total += jdbc.batch(sql, batch, batchSize, binder);
+        metrics.writeNanos.addAndGet(System.nanoTime() - start);
+        metrics.items.addAndGet(batch.size());
+        metrics.batches.incrementAndGet();
+      }
+    } finally {
+      pipe.cancel();
+    }
+    return total;
+  }
+
+  /**
+   * Unregisters the metrics, shared with the copies of this loader.
+   */
+  @Override
+  public void close() {
+    MetricsExporter.DEFAULT.unregister(metrics);
+  }
+
+  /**
+   * Batches of items in a bounded queue, from the reader to the writer.
+   */
+  private final class Pipe {
+    private final BlockingQueue<Object> queue;
+    private volatile RuntimeException error;
+    private volatile boolean cancelled;
+
+    Pipe(int size) {
+      this.queue = new ArrayBlockingQueue<>(size);
+    }
+
+    void produce(Stream<T> items) {
+      try (items) {
+        var batch = new ArrayList<T>(batchSize);
+        var it = items.iterator();
+        while (it.hasNext() && !cancelled) {
+          batch.add(it.next());
+          if (batch.size() == batchSize) {
+            put(batch);
+            batch = new ArrayList<>(batchSize);
+          }
+        }
+        if (!batch.isEmpty())
+          put(batch);
+      } catch (Throwable e) { //NOSONAR
+        // errors too, or the load would end as if complete
+        error = e instanceof RuntimeException r ? r : new IllegalStateException(e.getMessage(), e);
+      } finally {
+        put(END);
+      }
+    }
+
+    private void put(Object value) {
+      var start = System.nanoTime();
+      try {
+        while (!cancelled && !queue.offer(value, 100, TimeUnit.MILLISECONDS)) {
+          // waiting for the writer
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        cancelled = true;
+      } finally {
+        metrics.readerWaitNanos.addAndGet(System.nanoTime() - start);
+        metrics.queued.set(queue.size());
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    List<T> take() {
+      var start = System.nanoTime();
+      Object value;
+      try {
+        value = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e.getMessage(), e);
+      } finally {
+        metrics.writerWaitNanos.addAndGet(System.nanoTime() - start);
+        metrics.queued.set(queue.size());
+      }
+      if (value != END)
+        return (List<T>) value;
+      if (error != null)
+        throw error;
+      return null;
+    }
+
+    void cancel() {
+      cancelled = true;
+      queue.clear();
+    }
+  }
+
+  static final class LoaderMetrics implements MetricRegisterable {
+    final String name;
+    final AtomicLong items = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong queued = new AtomicLong();
+    final AtomicLong writeNanos = new AtomicLong();
+    final AtomicLong readerWaitNanos = new AtomicLong();
+    final AtomicLong writerWaitNanos = new AtomicLong();
+
+    LoaderMetrics(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void register(BiConsumer<String, Supplier<String>> registerFunction) {
+      registerFunction.accept(label("bulkload_items_total"), items::toString);
+      registerFunction.accept(label("bulkload_batches_total"), batches::toString);
+      registerFunction.accept(label("bulkload_queued_batches"), queued::toString);
+      registerFunction.accept(label("bulkload_write_seconds_total"), () -> seconds(writeNanos));
+      registerFunction.accept(label("bulkload_items_per_second"), this::throughput);
+      registerFunction.accept(label("bulkload_reader_wait_seconds_total"), () -> seconds(readerWaitNanos));
+      registerFunction.accept(label("bulkload_writer_wait_seconds_total"), () -> seconds(writerWaitNanos));
+    }
+
+    private String throughput() {
+      var nanos = writeNanos.get();
+      return nanos == 0 ? "0" : valueOf(items.get() * 1_000_000_000L / nanos);
+    }
+
+    private static String seconds(AtomicLong nanos) {
+      return String.format(Locale.ROOT, "%.6f", nanos.get() / 1e9);
+    }
+
+    private String label(String metric) {
+      return metric+"{loader=\""+name+"\"}";
+    }
+  }
+}
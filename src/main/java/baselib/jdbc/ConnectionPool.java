@@ -0,0 +1,499 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.metrics.MetricRegisterable;
+import baselib.metrics.MetricsExporter;
+import static java.lang.String.valueOf;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A minimal connection pool, to be passed to the JdbcInstance constructor.
+ *
+ * Connections given out are wrappers: closing them returns the physical
+ * connection to the pool, rolling back any open transaction and restoring
+ * auto commit and read only flags.
+ * Connections idle for more than half a second are validated with isValid()
+ * when borrowed; the ones just returned are lent again without a round trip.
+ * Each physical connection keeps an LRU cache of its prepared statements
+ * (see StatementCache), so the same sql prepared again on a later borrow
+ * reuses the statement.
+ * There is no background thread: idle connections older than the idle timeout
+ * are evicted, down to the minimum size, whenever a connection is borrowed
+ * or returned.
+ *
+ * Metrics are registered in MetricsExporter.DEFAULT labeled with the pool
+ * name, and removed from it when the pool is closed. Pools created without a
+ * name are named pool-1, pool-2...
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class ConnectionPool implements Supplier<Connection>, AutoCloseable {
+  private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+  private static final int DEFAULT_MAX_SIZE = 10;
+  private static final Duration DEFAULT_ACQUIRE_TIMEOUT = Duration.ofSeconds(30);
+  private static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+  private static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+  // connections used more recently than this are lent without validation
+  static final Duration VALIDATION_IDLE_TIME = Duration.ofMillis(500);
+  private static final AtomicInteger DEFAULT_NAMES = new AtomicInteger();
+
+  private final String name;
+  private final Supplier<Connection> factory;
+  private final int minSize;
+  private final int maxSize;
+  private final long acquireTimeoutNanos;
+  private final long idleTimeoutNanos;
+  private final int statementCacheSize;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final Deque<Pooled> idle = new ArrayDeque<>();
+  private int total;
+  private int waiting;
+  private boolean closed;
+
+  final PoolMetrics metrics;
+
+  /**
+   * A pool with up to 10 connections, no minimum size, 30 seconds acquire
+   * timeout, 10 minutes idle timeout and 64 cached statements per connection.
+   * @param factory the function creating the physical connections
+   */
+  public ConnectionPool(final Supplier<Connection> factory) {
+    this("pool-" + DEFAULT_NAMES.incrementAndGet(), factory, 0, DEFAULT_MAX_SIZE, DEFAULT_ACQUIRE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   *
+   * @param name pool name, used as label in metrics
+   * @param factory the function creating the physical connections
+   * @param minSize connections created at start and never evicted
+   * @param maxSize maximum number of connections open at any time
+   * @param acquireTimeout how long get() waits for a free connection before
+   *                       throwing IllegalStateException
+   * @param idleTimeout after how long unused connections are closed
+   */
+  public ConnectionPool(
+      final String name,
+      final Supplier<Connection> factory,
+      final int minSize,
+      final int maxSize,
+      final Duration acquireTimeout,
+      final Duration idleTimeout) {
+    this(name, factory, minSize, maxSize, acquireTimeout, idleTimeout, DEFAULT_STATEMENT_CACHE_SIZE);
+  }
+
+  /**
+   *
+   * @param name pool name, used as label in metrics
+   * @param factory the function creating the physical connections
+   * @param minSize connections created at start and never evicted
+   * @param maxSize maximum number of connections open at any time
+   * @param acquireTimeout how long get() waits for a free connection before
+   *                       throwing IllegalStateException
+   * @param idleTimeout after how long unused connections are closed
+   * @param statementCacheSize prepared statements cached per connection,
+   *                           0 disables the cache
+   */
+  public ConnectionPool(
+      final String name,
+      final Supplier<Connection> factory,
+      final int minSize,
+      final int maxSize,
+      final Duration acquireTimeout,
+      final Duration idleTimeout,
+      final int statementCacheSize) {
+
+    Objects.requireNonNull(name);
+    Objects.requireNonNull(factory);
+    Objects.requireNonNull(acquireTimeout);
+    Objects.requireNonNull(idleTimeout);
+    if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+      throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+    if (statementCacheSize < 0)
+      throw new IllegalArgumentException("Invalid statement cache size: " + statementCacheSize);
+
+    this.name = name;
+    this.factory = factory;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.acquireTimeoutNanos = acquireTimeout.toNanos();
+    this.idleTimeoutNanos = idleTimeout.toNanos();
+    this.statementCacheSize = statementCacheSize;
+    this.metrics = new PoolMetrics();
+    MetricsExporter.DEFAULT.register(metrics);
+
+    for (var i = 0; i < minSize; i++) {
+      total++;
+      idle.push(pooled(create()));
+    }
+  }
+
+  /**
+   * Borrows a connection, waiting up to the acquire timeout.
+   * @return a pooled connection, close it to return it to the pool.
+   */
+  @Override
+  public Connection get() {
+    var start = System.nanoTime();
+    var deadline = start + acquireTimeoutNanos;
+    try {
+      return acquire(deadline);
+    } finally {
+      metrics.acquired(System.nanoTime() - start);
+    }
+  }
+
+  private Connection acquire(long deadline) {
+    while (true) {
+      Pooled pooled = null;
+      var mustCreate = false;
+      List<Pooled> evicted;
+      lock.lock();
+      try {
+        ensureOpen();
+        evicted = evictIdle();
+        if (!idle.isEmpty()) {
+          pooled = idle.pop();
+        } else if (total < maxSize) {
+          total++;
+          mustCreate = true;
+        } else {
+          // eviction always leaves room to create, so nothing to close here
+          awaitAvailable(deadline);
+        }
+      } finally {
+        lock.unlock();
+      }
+      evicted.forEach(ConnectionPool::closeQuietly);
+
+      if (mustCreate)
+        return lend(pooled(createCounted()));
+      if (pooled == null)
+        continue;
+      if (System.nanoTime() - pooled.lastUsed < VALIDATION_IDLE_TIME.toNanos() || isValid(pooled))
+        return lend(pooled);
+
+      metrics.invalid.incrementAndGet();
+      discard(pooled);
+    }
+  }
+
+  private void awaitAvailable(long deadline) {
+    var remaining = deadline - System.nanoTime();
+    if (remaining <= 0) {
+      metrics.timeouts.incrementAndGet();
+      throw new IllegalStateException("Timeout acquiring a connection from pool " + name);
+    }
+    waiting++;
+    try {
+      available.awaitNanos(remaining);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      waiting--;
+    }
+  }
+
+  private Connection createCounted() {
+    try {
+      return create();
+    } catch (RuntimeException e) {
+      lock.lock();
+      try {
+        total--;
+        available.signal();
+      } finally {
+        lock.unlock();
+      }
+      throw e;
+    }
+  }
+
+  private Connection create() {
+    var connection = Objects.requireNonNull(factory.get());
+    metrics.created.incrementAndGet();
+    return connection;
+  }
+
+  private Pooled pooled(Connection connection) {
+    var statements = statementCacheSize == 0
+      ? null
+      : new StatementCache(statementCacheSize, metrics.statementHits, metrics.statementMisses, metrics.statementEvictions);
+    return new Pooled(connection, statements);
+  }
+
+  private Connection lend(Pooled pooled) {
+    metrics.active.incrementAndGet();
+    return (Connection) Proxy.newProxyInstance(
+      Connection.class.getClassLoader(),
+      new Class<?>[]{Connection.class},
+      new Lent(pooled));
+  }
+
+  private void release(Pooled pooled) {
+    metrics.active.decrementAndGet();
+    if (!reset(pooled)) {
+      discard(pooled);
+      return;
+    }
+    List<Pooled> evicted;
+    lock.lock();
+    try {
+      if (closed) {
+        total--;
+        evicted = List.of(pooled);
+      } else {
+        pooled.lastUsed = System.nanoTime();
+        idle.push(pooled);
+        evicted = evictIdle();
+        available.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    evicted.forEach(ConnectionPool::closeQuietly);
+  }
+
+  private void discard(Pooled pooled) {
+    lock.lock();
+    try {
+      total--;
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+    closeQuietly(pooled);
+  }
+
+  /**
+   * Must be called with the lock held.
+   * Connections are only removed from the pool here, closing them is left to
+   * the caller once the lock is released.
+   */
+  private List<Pooled> evictIdle() {
+    var evicted = new LinkedList<Pooled>();
+    var now = System.nanoTime();
+    while (total > minSize && !idle.isEmpty() && now - idle.peekLast().lastUsed > idleTimeoutNanos) {
+      evicted.add(idle.pollLast());
+      total--;
+      metrics.evicted.incrementAndGet();
+    }
+    return evicted;
+  }
+
+  private static boolean isValid(Pooled pooled) {
+    try {
+      return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private static boolean reset(Pooled pooled) {
+    try {
+      var connection = pooled.connection;
+      if (connection.isClosed())
+        return false;
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      if (connection.isReadOnly())
+        connection.setReadOnly(false);
+      return true;
+    } catch (SQLException e) {
+      LOGGER.log(Level.FINE, e, e::getMessage);
+      return false;
+    }
+  }
+
+  private static void closeQuietly(Pooled pooled) {
+    try {
+      if (pooled.statements != null)
+        pooled.statements.close();
+      pooled.connection.close();
+    } catch (SQLException e) {
+      LOGGER.log(Level.FINE, e, e::getMessage);
+    }
+  }
+
+  private void ensureOpen() {
+    if (closed)
+      throw new IllegalStateException("Pool " + name + " is closed");
+  }
+
+  /**
+   * Closes all idle connections, connections currently in use are closed
+   * when returned.
+   * After this no more connections can be borrowed.
+   */
+  @Override
+  public void close() {
+    List<Pooled> toClose;
+    lock.lock();
+    try {
+      closed = true;
+      toClose = List.copyOf(idle);
+      total -= idle.size();
+      idle.clear();
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    toClose.forEach(ConnectionPool::closeQuietly);
+    MetricsExporter.DEFAULT.unregister(metrics);
+  }
+
+  String name() {
+    return name;
+  }
+
+  int idleCount() {
+    return withLock(idle::size);
+  }
+
+  int totalCount() {
+    return withLock(() -> total);
+  }
+
+  private int withLock(Supplier<Integer> fn) {
+    lock.lock();
+    try {
+      return fn.get();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static final class Pooled {
+    final Connection connection;
+    final StatementCache statements;
+    long lastUsed;
+
+    Pooled(Connection connection, StatementCache statements) {
+      this.connection = connection;
+      this.statements = statements;
+      this.lastUsed = System.nanoTime();
+    }
+  }
+
+  private final class Lent implements InvocationHandler {
+    private final Pooled pooled;
+    private boolean returned;
+
+    Lent(Pooled pooled) {
+      this.pooled = pooled;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "close" -> {
+          if (!returned) {
+            returned = true;
+            release(pooled);
+          }
+          return null;
+        }
+        case "isClosed" -> {
+          if (returned)
+            return true;
+        }
+        case "toString" -> {
+          return "Pooled[" + name + "]: " + pooled.connection;
+        }
+        case "hashCode" -> {
+          return System.identityHashCode(proxy);
+        }
+        case "equals" -> {
+          return proxy == args[0];
+        }
+        default -> {
+          if (returned)
+            throw new SQLException("Connection was returned to the pool");
+          if (pooled.statements != null && StatementCache.isCacheable(method, args))
+            return pooled.statements.prepare((Connection) proxy, pooled.connection, method, args);
+        }
+      }
+      return StatementCache.invoke(method, pooled.connection, args);
+    }
+  }
+
+  class PoolMetrics implements MetricRegisterable {
+    final AtomicLong active = new AtomicLong();
+    final AtomicLong created = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+    final AtomicLong invalid = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong acquireCount = new AtomicLong();
+    final AtomicLong acquireNanosSum = new AtomicLong();
+    final AtomicLong acquireNanosMax = new AtomicLong();
+    final AtomicLong statementHits = new AtomicLong();
+    final AtomicLong statementMisses = new AtomicLong();
+    final AtomicLong statementEvictions = new AtomicLong();
+
+    void acquired(long nanos) {
+      acquireCount.incrementAndGet();
+      acquireNanosSum.addAndGet(nanos);
+      acquireNanosMax.getAndUpdate(x -> nanos > x ? nanos : x);
+    }
+
+    @Override
+    public void register(BiConsumer<String, Supplier<String>> registerFunction) {
+      registerFunction.accept(label("jdbcpool_connections_total"), () -> valueOf(totalCount()));
+      registerFunction.accept(label("jdbcpool_connections_idle"), () -> valueOf(idleCount()));
+      registerFunction.accept(label("jdbcpool_connections_active"), active::toString);
+      registerFunction.accept(label("jdbcpool_connections_waiting"), () -> valueOf(withLock(() -> waiting)));
+      registerFunction.accept(label("jdbcpool_connections_created_total"), created::toString);
+      registerFunction.accept(label("jdbcpool_connections_evicted_total"), evicted::toString);
+      registerFunction.accept(label("jdbcpool_connections_invalid_total"), invalid::toString);
+      registerFunction.accept(label("jdbcpool_acquire_timeout_total"), timeouts::toString);
+      registerFunction.accept(label("jdbcpool_acquire_count"), acquireCount::toString);
+      registerFunction.accept(label("jdbcpool_acquire_nanos_sum"), acquireNanosSum::toString);
+      registerFunction.accept(label("jdbcpool_acquire_nanos_max"), acquireNanosMax::toString);
+      registerFunction.accept(label("jdbcpool_statement_cache_hits_total"), statementHits::toString);
+      registerFunction.accept(label("jdbcpool_statement_cache_misses_total"), statementMisses::toString);
+      registerFunction.accept(label("jdbcpool_statement_cache_evictions_total"), statementEvictions::toString);
+    }
+
+    private String label(String metric) {
+      return metric+"{pool=\""+name+"\"}";
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.NameTransform;
+import baselib.json.JSONBuilder;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes the rows of a result set as a json array of objects, without
+ * mapping them to records first.
+ * Property names and column getters are resolved once from the result set
+ * metadata, then the rows are written as they are read, flushing to the
+ * writer every few kilobytes.
+ * Null columns are omitted, as JSONBuilder does for records.
+ *
+ * Not thread safe: one instance per result set.
+ * @author Raffaele Ragni
+ */
+final class JSONRows {
+  private static final int FLUSH_SIZE = 8192;
+
+  private final JSONBuilder json = new JSONBuilder();
+  private final Writer writer;
+  private final NameTransform names;
+  private String[] properties;
+  private RecordMapperImpl.Getter[] getters;
+
+  JSONRows(Writer writer, NameTransform names) {
+    this.writer = writer;
+    this.names = names;
+  }
+
+  void begin() {
+    json.beginArray();
+  }
+
+  void row(ResultSet rs) throws SQLException {
+    if (properties == null)
+      resolve(rs);
+    json.beginObject();
+    for (var i = 0; i < properties.length; i++) {
+      var value = getters[i].get(rs, i + 1);
+      if (value != null) {
+        json.property(properties[i]);
+        json.value(value);
+      }
+    }
+    json.endObject();
+    if (json.length() >= FLUSH_SIZE)
+      json.flush(writer);
+  }
+
+  void end() {
+    json.endArray();
+    json.flush(writer);
+  }
+
+  private void resolve(ResultSet rs) throws SQLException {
+    var meta = rs.getMetaData();
+    var count = meta.getColumnCount();
+    properties = new String[count];
+    getters = new RecordMapperImpl.Getter[count];
+    for (var i = 0; i < count; i++) {
+      properties[i] = names.transform(meta.getColumnLabel(i + 1));
+      getters[i] = getterOf(meta.getColumnType(i + 1));
+    }
+  }
+
+  private static RecordMapperImpl.Getter getterOf(int sqlType) {
+    return switch (sqlType) {
+      case Types.BIT, Types.BOOLEAN -> RecordMapperImpl.getterOf(Boolean.class);
+      case Types.TINYINT, Types.SMALLINT, Types.INTEGER -> RecordMapperImpl.getterOf(Integer.class);
+      case Types.BIGINT -> RecordMapperImpl.getterOf(Long.class);
+      case Types.REAL, Types.FLOAT, Types.DOUBLE -> RecordMapperImpl.getterOf(Double.class);
+      case Types.DECIMAL, Types.NUMERIC -> ResultSet::getBigDecimal;
+      default -> ResultSet::getString;
+    };
+  }
+}
@@ -17,16 +17,29 @@
 package baselib.jdbc;
 
 import baselib.Env;
+import baselib.NameTransform;
 import static baselib.ExceptionWrapper.ex;
 import baselib.Records;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * An object that wraps around a jdbc 'instance'.
@@ -34,11 +47,18 @@ import java.util.function.Supplier;
  * data source.
  * The lambda passed to the constructor will request a new connection every time
  * a method is called on this class, so that pools can taken advantage of.
+ * See ConnectionPool for a built in one.
  *
  * @author Raffaele Ragni <raffaele.ragni@gmail.com>
  */
 public final class JdbcInstance {
+  private static final int DEFAULT_BATCH_SIZE = 1000;
   private final Supplier<Connection> connectionSupplier;
+  private final int fetchSize;
+  private final QueryCache queryCache;
+  private final Replicas replicas;
+  // tables written within a transaction, to invalidate after commit
+  private final Set<String> writtenTables;
 
   /**
    *
@@ -47,21 +67,185 @@ public final class JdbcInstance {
    *                 class method.
    */
   public JdbcInstance(final Supplier<Connection> supplier) {
+    this(supplier, 0, null, null, null);
+  }
+
+  private JdbcInstance(
+      final Supplier<Connection> supplier,
+      final int fetchSize,
+      final QueryCache queryCache,
+      final Replicas replicas,
+      final Set<String> writtenTables) {
     this.connectionSupplier = Objects.requireNonNull(supplier);
+    this.fetchSize = fetchSize;
+    this.queryCache = queryCache;
+    this.replicas = replicas;
+    this.writtenTables = writtenTables;
+  }
+
+  /**
+   * Queries will hint the driver to fetch fetchSize rows at a time, instead
+   * of the driver default (which for some drivers is the whole result).
+   * Since some drivers only open server side cursors within a transaction
+   * (for example PostgreSQL), when a fetch size is set the queries run with
+   * auto commit disabled, and the auto commit is restored afterwards.
+   *
+   * @param fetchSize rows per round trip, 0 for the driver default.
+   * @return a copy of this instance using the fetch size.
+   */
+  public JdbcInstance withFetchSize(final int fetchSize) {
+    if (fetchSize < 0)
+      throw new IllegalArgumentException("fetch size must not be negative");
+    return new JdbcInstance(connectionSupplier, fetchSize, queryCache, replicas, writtenTables);
+  }
+
+  /**
+   * Results of makeCachedRecordSelector() are kept in the cache, and
+   * execute(sql, paramSetter, tables) drops the ones of the tables written.
+   *
+   * @param queryCache the cache to use, can be shared by many instances.
+   * @return a copy of this instance using the cache.
+   */
+  public JdbcInstance withQueryCache(final QueryCache queryCache) {
+    return new JdbcInstance(connectionSupplier, fetchSize, Objects.requireNonNull(queryCache), replicas, writtenTables);
+  }
+
+  /**
+   * Queries (streamed(), stream() and the selectors) and read only
+   * transactions run on the replicas, while the other statements and
+   * transactions run on the connections of this instance, the primary.
+   * See Replicas for how they are balanced.
+   *
+   * @param replicas the replicas to read from.
+   * @return a copy of this instance reading from the replicas.
+   */
+  public JdbcInstance withReplicas(final Replicas replicas) {
+    return new JdbcInstance(connectionSupplier, fetchSize, queryCache, Objects.requireNonNull(replicas), writtenTables);
+  }
+
+  /**
+   * Runs the work within a single transaction on a single connection.
+   * The instance passed to the work runs all its methods on that connection,
+   * so related statements share the transaction and the prepared statements,
+   * and acquire the connection only once.
+   * The transaction is committed when the work returns, and rolled back if it
+   * throws.
+   *
+   * Calling inTransaction() again on the instance passed to the work joins the
+   * same transaction.
+   * Results of makeCachedRecordSelector() are not cached within the
+   * transaction, and execute(sql, paramSetter, tables) invalidates the cached
+   * results only after the commit.
+   *
+   * @param <R> the type of the result
+   * @param work the statements to run, with the instance to use for them
+   * @return the result of the work
+   */
+  public <R> R inTransaction(final Function<JdbcInstance, R> work) {
+    return inTransaction(false, work);
+  }
+
+  /**
+   * Same as inTransaction(), but the connection is set read only so that the
+   * driver and the database can optimize it, for example by routing it to a
+   * replica or avoiding locks.
+   * With withReplicas() the transaction runs on a replica.
+   */
+  public <R> R inReadOnlyTransaction(final Function<JdbcInstance, R> work) {
+    return inTransaction(true, work);
+  }
+
+  private <R> R inTransaction(boolean readOnly, Function<JdbcInstance, R> work) {
+    Objects.requireNonNull(work);
+    if (writtenTables != null)
+      return work.apply(this);
+
+    var tables = new HashSet<String>();
+    R result = ex(() -> {
+      try (var connection = readOnly ? readSupplier().get() : connectionSupplier.get()) {
+        var autoCommit = connection.getAutoCommit();
+        var wasReadOnly = connection.isReadOnly();
+        if (readOnly != wasReadOnly)
+          connection.setReadOnly(readOnly);
+        connection.setAutoCommit(false);
+        try {
+          var tx = new JdbcInstance(nonClosing(connection), fetchSize, null, null, tables);
+          var value = work.apply(tx);
+          connection.commit();
+          return value;
+        } catch (Exception e) {
+          // the failure of the work matters more than the one of the rollback
+          try {
+            connection.rollback();
+          } catch (SQLException rollbackFailure) {
+            e.addSuppressed(rollbackFailure);
+          }
+          throw e;
+        } finally {
+          connection.setAutoCommit(autoCommit);
+          if (readOnly != wasReadOnly)
+            connection.setReadOnly(wasReadOnly);
+        }
+      }
+    });
+    if (!readOnly)
+      written();
+    if (queryCache != null && !tables.isEmpty())
+      queryCache.invalidate(tables.toArray(String[]::new));
+    return result;
+  }
+
+  /**
+   * @return the supplier of connections for queries, see withReplicas().
+   */
+  private Supplier<Connection> readSupplier() {
+    return replicas == null
+      ? connectionSupplier
+      : () -> replicas.connect(connectionSupplier);
+  }
+
+  private void written() {
+    if (replicas != null)
+      replicas.written();
+  }
+
+  /**
+   * @return a supplier always giving the same connection, ignoring close()
+   */
+  private static Supplier<Connection> nonClosing(Connection connection) {
+    var proxy = (Connection) Proxy.newProxyInstance(
+      Connection.class.getClassLoader(),
+      new Class<?>[]{Connection.class},
+      (p, method, args) -> "close".equals(method.getName())
+        ? null
+        : StatementCache.invoke(method, connection, args));
+    return () -> proxy;
   }
 
   /**
    *
    * @return a default jdbc instance: this will read jdbc url, user and password
    *         from environment variables: JDBC_URL, JDBC_USER, JDBC_PASSWORD
+   *         Connections are pooled with the ConnectionPool defaults, in a
+   *         single pool shared by all the default instances.
    */
   public static JdbcInstance defaultClient() {
-    var env = new Env();
-    return new JdbcInstance(() -> ex(() -> DriverManager.getConnection(
-      env.get(() -> "JDBC_URL"),
-      env.get(() -> "JDBC_USER"),
-      env.get(() -> "JDBC_PASSWORD")
-    )));
+    return new JdbcInstance(DefaultPool.INSTANCE);
+  }
+
+  private static final class DefaultPool {
+    static final ConnectionPool INSTANCE = create();
+
+    private DefaultPool() {}
+
+    private static ConnectionPool create() {
+      var env = new Env();
+      return new ConnectionPool(() -> ex(() -> DriverManager.getConnection(
+        env.get(() -> "JDBC_URL"),
+        env.get(() -> "JDBC_USER"),
+        env.get(() -> "JDBC_PASSWORD")
+      )));
+    }
   }
 
   /**
@@ -72,7 +256,11 @@ public final class JdbcInstance {
    *              possibly throws some exception.
    */
   public boolean healthCheck() {
-    return ex(() -> connectionSupplier.get().isValid(0));
+    return ex(() -> {
+      try (var connection = connectionSupplier.get()) {
+        return connection.isValid(0);
+      }
+    });
   }
 
   /**
@@ -94,22 +282,174 @@ public final class JdbcInstance {
     Objects.requireNonNull(sql);
     Objects.requireNonNull(paramSetter);
 
-    return ex(() -> {
-      try (var connection = connectionSupplier.get()) {
-        try (var st = connection.prepareStatement(sql,
-                        ResultSet.TYPE_SCROLL_SENSITIVE,
-                        ResultSet.CONCUR_READ_ONLY)) {
+    return measured(sql, call -> {
+      try (var connection = call.connect(connectionSupplier)) {
+        try (var st = connection.prepareStatement(sql)) {
           paramSetter.accept(st);
-          return st.executeUpdate();
+          var rows = st.executeUpdate();
+          call.rows(rows);
+          written();
+          return rows;
+        }
+      }
+    });
+  }
+
+  /**
+   * Same as execute(sql, paramSetter), then drops the cached results of the
+   * tables written by the statement (see withQueryCache()).
+   *
+   * @param tables the tables the statement writes
+   */
+  public int execute(
+    final String sql,
+    final ExConsumer<PreparedStatement> paramSetter,
+    final String... tables) {
+
+    try {
+      return execute(sql, paramSetter);
+    } finally {
+      if (writtenTables != null)
+        writtenTables.addAll(Arrays.asList(tables));
+      else if (queryCache != null)
+        queryCache.invalidate(tables);
+    }
+  }
+
+  /**
+   * Executes the same statement for many items, grouped with
+   * addBatch/executeBatch in chunks of 1000, on a single connection and
+   * transaction.
+   *
+   * @param <T> the type of items
+   * @param sql the sql statement to execute: supports positional parameters '?'
+   * @param items the items to execute the statement for
+   * @param binder sets the statement parameters for each item
+   * @return the total number of records being modified
+   */
+  public <T> long batch(
+      final String sql,
+      final Iterable<T> items,
+      final ExBiConsumer<PreparedStatement, T> binder) {
+    return batch(sql, items, DEFAULT_BATCH_SIZE, binder);
+  }
+
+  /**
+   * Executes the same statement for many items, grouped with
+   * addBatch/executeBatch in chunks of batchSize, on a single connection and
+   * transaction.
+   * The transaction is committed at the end, or rolled back entirely if any
+   * of the chunks fails.
+   * Within inTransaction() the batch is part of the outer transaction instead.
+   *
+   * @param <T> the type of items
+   * @param sql the sql statement to execute: supports positional parameters '?'
+   * @param items the items to execute the statement for
+   * @param batchSize how many items are sent to the database at once
+   * @param binder sets the statement parameters for each item
+   * @return the total number of records being modified
+   */
+  public <T> long batch(
+      final String sql,
+      final Iterable<T> items,
+      final int batchSize,
+      final ExBiConsumer<PreparedStatement, T> binder) {
+
+    Objects.requireNonNull(sql);
+    Objects.requireNonNull(items);
+    Objects.requireNonNull(binder);
+    if (batchSize < 1)
+      throw new IllegalArgumentException("batch size must be positive");
+
+    return measured(sql, call -> {
+      try (var connection = call.connect(connectionSupplier)) {
+        var autoCommit = connection.getAutoCommit();
+        if (autoCommit)
+          connection.setAutoCommit(false);
+        try (var st = connection.prepareStatement(sql)) {
+          var total = 0L;
+          var pending = 0;
+          for (var item: items) {
+            binder.accept(st, item);
+            st.addBatch();
+            if (++pending == batchSize) {
+              total += sum(st.executeBatch());
+              pending = 0;
+            }
+          }
+          if (pending > 0)
+            total += sum(st.executeBatch());
+          if (autoCommit)
+            connection.commit();
+          call.rows(total);
+          written();
+          return total;
+        } catch (Exception e) {
+          if (autoCommit)
+            connection.rollback();
+          throw e;
+        } finally {
+          if (autoCommit)
+            connection.setAutoCommit(true);
         }
       }
     });
   }
 
   /**
-   * Executes the query using concur TYPE_SCROLL_SENSITIVE + CONCUR_READ_ONLY
-   * (meanint it uses a cursor) and streams the result without either the db nor
+   * Same as batch(sql, items, batchSize, binder) for streams.
+   * The stream is consumed lazily, only one chunk is held at a time.
+   */
+  public <T> long batch(
+      final String sql,
+      final Stream<T> items,
+      final int batchSize,
+      final ExBiConsumer<PreparedStatement, T> binder) {
+    Objects.requireNonNull(items);
+    try (items) {
+      return batch(sql, items::iterator, batchSize, binder);
+    }
+  }
+
+  /**
+   * Batch execution for java records: the record components are bound, in
+   * declaration order, to the positional parameters.
+   * Example: for record Person(String id, String name) the statement
+   * 'insert into person(id, name) values(?, ?)' gets the id as first
+   * parameter and the name as second.
+   *
+   * @param <T> java record type
+   * @param sql the sql statement with one '?' per record component
+   * @param records the records to execute the statement for
+   * @return the total number of records being modified
+   */
+  public <T extends Record> long batchRecords(final String sql, final Iterable<T> records) {
+    return batchRecords(sql, records, DEFAULT_BATCH_SIZE);
+  }
+
+  public <T extends Record> long batchRecords(final String sql, final Iterable<T> records, final int batchSize) {
+    return batch(sql, records, batchSize, JdbcInstance::bindRecord);
+  }
+
+  static void bindRecord(PreparedStatement st, Object rec) throws SQLException {
+    var values = Records.componentValues(rec);
+    for (var i = 0; i < values.length; i++)
+      st.setObject(i + 1, values[i]);
+  }
+
+  private static long sum(int[] counts) {
+    var total = 0L;
+    for (var c: counts)
+      if (c > 0)
+        total += c;
+    return total;
+  }
+
+  /**
+   * Executes the query using TYPE_FORWARD_ONLY + CONCUR_READ_ONLY
+   * (meaning it uses a cursor) and streams the result without either the db nor
    * the client caching the whole list in memory.
+   * See withFetchSize() for drivers that need a fetch size to do so.
    *
    * @param sql the statement to run. No string replacement is used, but only
    *            positional parameters are supported, the ones with '?'.
@@ -130,22 +470,234 @@ public final class JdbcInstance {
     Objects.requireNonNull(paramSetter);
     Objects.requireNonNull(resultGetter);
 
-    ex(() -> {
-      try (var connection = connectionSupplier.get()) {
-        try (var st = connection.prepareStatement(sql,
-                        ResultSet.TYPE_SCROLL_SENSITIVE,
-                        ResultSet.CONCUR_READ_ONLY)) {
+    measured(sql, call -> {
+      try (var connection = call.connect(readSupplier())) {
+        var autoCommit = beginCursor(connection);
+        var completed = false;
+        try (var st = prepareQuery(connection, sql)) {
           paramSetter.accept(st);
           try (var rs = st.executeQuery()) {
             while (rs.next()) {
+              call.rows(1);
               resultGetter.accept(rs);
             }
           }
+          completed = true;
+        } finally {
+          endCursor(connection, autoCommit, completed);
         }
       }
+      return null;
     });
   }
 
+  /**
+   * Streams the query results to the writer as a json array of objects,
+   * without mapping the rows to records first.
+   * Column labels are turned into camel case property names, null columns are
+   * omitted.
+   *
+   * @param sql the statement to run, supports positional parameters.
+   * @param paramSetter setter for positional parameters on statement object.
+   * @param writer where the json is written, it is not closed.
+   */
+  public void streamedJSON(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final Writer writer) {
+    streamedJSON(sql, paramSetter, writer, NameTransform.CAMEL);
+  }
+
+  /**
+   * Streams the query results to the writer as a json array of objects,
+   * without mapping the rows to records first.
+   *
+   * @param sql the statement to run, supports positional parameters.
+   * @param paramSetter setter for positional parameters on statement object.
+   * @param writer where the json is written, it is not closed.
+   * @param names transforms the column labels into property names.
+   */
+  public void streamedJSON(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final Writer writer,
+      final NameTransform names) {
+    Objects.requireNonNull(writer);
+    Objects.requireNonNull(names);
+    var rows = new JSONRows(writer, names);
+    rows.begin();
+    streamed(sql, paramSetter, rows::row);
+    rows.end();
+  }
+
+  /**
+   * Executes the query and returns its rows as a lazy stream: rows are fetched
+   * from the cursor only when the stream pulls them, so they can flow into
+   * other streams or writers without being held in memory.
+   *
+   * The connection, statement and result set stay open until the stream is
+   * either exhausted or closed, so use it in a try-with-resources block if it
+   * may not be consumed entirely.
+   *
+   * @param <T> the type of rows
+   * @param sql the statement to run, supports positional parameters.
+   * @param paramSetter setter for positional parameters on statement object.
+   * @param mapper maps the current row of the result set, see mapperOfRecord().
+   * @return the stream of mapped rows.
+   */
+  public <T> Stream<T> stream(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final RecordMapper<T> mapper) {
+
+    Objects.requireNonNull(sql);
+    Objects.requireNonNull(paramSetter);
+    Objects.requireNonNull(mapper);
+
+    var call = StatementMetrics.DEFAULT.start(sql);
+    Connection connection;
+    try {
+      connection = call.connect(readSupplier());
+    } catch (RuntimeException e) {
+      call.failed();
+      call.end();
+      throw e;
+    }
+    var cursor = new Cursor<>(call, connection, mapper);
+    ex(() -> cursor.open(sql, paramSetter));
+    return StreamSupport.stream(cursor, false).onClose(cursor::close);
+  }
+
+  private final class Cursor<T> extends Spliterators.AbstractSpliterator<T> {
+    private final StatementMetrics.Call call;
+    private final Connection connection;
+    private final RecordMapper<T> mapper;
+    private boolean autoCommit;
+    private PreparedStatement statement;
+    private ResultSet resultSet;
+    private boolean closed;
+
+    Cursor(StatementMetrics.Call call, Connection connection, RecordMapper<T> mapper) {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.call = call;
+      this.connection = connection;
+      this.mapper = mapper;
+    }
+
+    void open(String sql, ExConsumer<PreparedStatement> paramSetter) throws Exception {
+      try {
+        autoCommit = beginCursor(connection);
+        statement = prepareQuery(connection, sql);
+        paramSetter.accept(statement);
+        resultSet = statement.executeQuery();
+      } catch (Exception e) {
+        close(false);
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (closed)
+        return false;
+      try {
+        if (!resultSet.next()) {
+          close(true);
+          return false;
+        }
+        call.rows(1);
+        action.accept(mapper.map(resultSet));
+        return true;
+      } catch (SQLException e) {
+        close(false);
+        throw new IllegalStateException(e.getMessage(), e);
+      } catch (RuntimeException e) {
+        close(false);
+        throw e;
+      }
+    }
+
+    void close() {
+      close(true);
+    }
+
+    private void close(boolean completed) {
+      if (closed)
+        return;
+      closed = true;
+      if (!completed)
+        call.failed();
+      try {
+        ex(() -> {
+          try (connection) {
+            try {
+              if (resultSet != null)
+                resultSet.close();
+            } finally {
+              if (statement != null)
+                statement.close();
+            }
+            endCursor(connection, autoCommit, completed);
+          }
+        });
+      } finally {
+        call.end();
+      }
+    }
+  }
+
+  /**
+   * Runs the body recording the statement metrics, see StatementMetrics.
+   */
+  private static <R> R measured(String sql, Measured<R> body) {
+    var call = StatementMetrics.DEFAULT.start(sql);
+    try {
+      return ex(() -> body.run(call));
+    } catch (RuntimeException e) {
+      call.failed();
+      throw e;
+    } finally {
+      call.end();
+    }
+  }
+
+  @FunctionalInterface
+  private interface Measured<R> {
+    R run(StatementMetrics.Call call) throws Exception; //NOSONAR
+  }
+
+  private PreparedStatement prepareQuery(Connection connection, String sql) throws SQLException {
+    var st = connection.prepareStatement(sql,
+      ResultSet.TYPE_FORWARD_ONLY,
+      ResultSet.CONCUR_READ_ONLY);
+    if (fetchSize > 0)
+      st.setFetchSize(fetchSize);
+    return st;
+  }
+
+  /**
+   * @return the auto commit to restore in endCursor().
+   */
+  private boolean beginCursor(Connection connection) throws SQLException {
+    var autoCommit = connection.getAutoCommit();
+    if (fetchSize > 0 && autoCommit)
+      connection.setAutoCommit(false);
+    return autoCommit;
+  }
+
+  private void endCursor(Connection connection, boolean autoCommit, boolean commit) throws SQLException {
+    if (fetchSize > 0 && autoCommit) {
+      try {
+        if (commit)
+          connection.commit();
+        else
+          connection.rollback();
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    }
+  }
+
   /**
    * Handy function to make a lambda selector for a select result of java
    * records.
@@ -168,6 +720,31 @@ public final class JdbcInstance {
     };
   }
 
+  /**
+   * Same as makeRecordSelector(), but the results are kept in the query cache
+   * of this instance, if any (see withQueryCache()).
+   * The cache key is made of the sql, the record class and the parameters
+   * bound by paramSetter, so paramSetter must always bind the same values for
+   * the same query.
+   * The returned lists are shared and not modifiable.
+   *
+   * @param tables the tables read by the query, to drop the cached results
+   *               when they are written.
+   */
+  public <T> Supplier<List<T>> makeCachedRecordSelector(
+      Class<T> clazz,
+      String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final String... tables) {
+    var selector = makeRecordSelector(clazz, sql, paramSetter);
+    if (queryCache == null)
+      return selector;
+    return () -> {
+      var key = QueryCache.keyOf(sql, clazz, paramSetter);
+      return key == null ? selector.get() : queryCache.get(key, tables, selector);
+    };
+  }
+
   public static <T> RecordMapper<T> mapperOfRecord(Class<T> clazz) {
     return new RecordMapperImpl<>(clazz);
   }
@@ -178,22 +755,18 @@ public final class JdbcInstance {
   }
 
   @FunctionalInterface
-  public interface RecordMapper<T> {
-    T map(ResultSet rs);
+  public interface ExBiConsumer<T, U> {
+    void accept(T t, U u) throws Exception; //NOSONAR
   }
 
-  private static class RecordMapperImpl<T> implements RecordMapper<T> {
-    private final Class<T> clazz;
-
-    public RecordMapperImpl(Class<T> clazz) {
-      if (!clazz.isRecord())
-        throw new IllegalArgumentException("works only with record classes");
-      this.clazz = clazz;
-    }
-
-    @Override
-    public T map(ResultSet rs) {
-      return Records.fromPropertyDiscover(clazz, name -> ex(() -> rs.getObject(name)));
-    }
+  /**
+   * Maps the current row of a result set.
+   * The mapper returned by mapperOfRecord() resolves the result set metadata
+   * on the first row of each query into a plan of column indexes and typed
+   * getters, then the following rows are mapped by index only.
+   */
+  @FunctionalInterface
+  public interface RecordMapper<T> {
+    T map(ResultSet rs);
   }
 }
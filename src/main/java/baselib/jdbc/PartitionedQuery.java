@@ -0,0 +1,358 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.jdbc.JdbcInstance.ExConsumer;
+import baselib.jdbc.JdbcInstance.RecordMapper;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a query split in ranges of a partition key, each range on its own
+ * connection and thread, so that big exports use more than one connection
+ * and core.
+ *
+ * The query is wrapped as
+ * 'select * from (query) p where p.key &gt;= ? and p.key &lt; ?'
+ * for each range, with the range bounds bound after the query parameters.
+ * The key is put in the sql as is, so it must not come from user input.
+ *
+ * Each partition takes a connection from the JdbcInstance, so the pool must
+ * allow as many connections as partitions to run them all at once.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class PartitionedQuery {
+  public static final int DEFAULT_BUFFER_SIZE = 1024;
+  public static final Duration DEFAULT_STALL_TIMEOUT = Duration.ofMinutes(1);
+
+  private final JdbcInstance jdbc;
+  private final Executor executor;
+  private final Duration stallTimeout;
+
+  /**
+   * A range of the partition key, from inclusive and to exclusive.
+   * A null bound means unbounded on that side.
+   */
+  public record Range(Object from, Object to) {}
+
+  public PartitionedQuery(final JdbcInstance jdbc) {
+    this(jdbc, AsyncJdbcInstance.defaultExecutor());
+  }
+
+  /**
+   *
+   * @param jdbc the instance to run the partitions on
+   * @param executor runs the partitions, needs at least as many threads as
+   *                 the partitions to run them all at once.
+   */
+  public PartitionedQuery(final JdbcInstance jdbc, final Executor executor) {
+    this(jdbc, executor, DEFAULT_STALL_TIMEOUT);
+  }
+
+  /**
+   *
+   * @param jdbc the instance to run the partitions on
+   * @param executor runs the partitions, needs at least as many threads as
+   *                 the partitions to run them all at once.
+   * @param stallTimeout how long the partitions of a stream wait for the
+   *                     reader when their buffer is full, before giving up
+   *                     and releasing their connections.
+   */
+  public PartitionedQuery(final JdbcInstance jdbc, final Executor executor, final Duration stallTimeout) {
+    this.jdbc = Objects.requireNonNull(jdbc);
+    this.executor = Objects.requireNonNull(executor);
+    this.stallTimeout = Objects.requireNonNull(stallTimeout);
+  }
+
+  /**
+   * Splits [min, max] in ranges of about the same size.
+   * The first and last ranges are unbounded, so that no row is missed if
+   * the bounds changed meanwhile.
+   *
+   * @param min the lowest value of the key
+   * @param max the highest value of the key
+   * @param partitions how many ranges, at most
+   * @return the ranges, covering the whole key space.
+   */
+  public static List<Range> ranges(final long min, final long max, final int partitions) {
+    if (partitions < 1)
+      throw new IllegalArgumentException("partitions must be positive");
+    var count = max < min ? 1 : (int) Math.min(partitions, max - min + 1);
+    var size = count == 1 ? 0 : (max - min + 1) / count;
+    var result = new ArrayList<Range>(count);
+    Long from = null;
+    for (var i = 1; i < count; i++) {
+      var to = min + size * i;
+      result.add(new Range(from, to));
+      from = to;
+    }
+    result.add(new Range(from, null));
+    return result;
+  }
+
+  /**
+   * Splits the numeric key of the query results in ranges, reading its
+   * min and max with a query.
+   *
+   * @param sql the query to split
+   * @param paramSetter setter for the query parameters
+   * @param key the numeric column to split on
+   * @param partitions how many ranges, at most
+   * @return the ranges, see ranges(min, max, partitions)
+   */
+  public List<Range> ranges(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final String key,
+      final int partitions) {
+    var bounds = new long[]{0, -1};
+    jdbc.streamed(
+      "select min(p." + key + "), max(p." + key + ") from (" + sql + ") p",
+      paramSetter,
+      rs -> {
+        bounds[0] = rs.getLong(1);
+        bounds[1] = rs.wasNull() ? -1 : rs.getLong(2);
+      });
+    return ranges(bounds[0], bounds[1], partitions);
+  }
+
+  /**
+   * Runs all the ranges at once, calling the result getter concurrently from
+   * the partition threads, and returns when all are done.
+   * If a partition fails, the first error is thrown once all the others
+   * ended.
+   *
+   * @param sql the query to split
+   * @param paramSetter setter for the query parameters, called once per range
+   * @param key the column to split on
+   * @param ranges the ranges of the key, one partition each
+   * @param resultGetter called for each row, from many threads at once.
+   */
+  public void forEach(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final String key,
+      final List<Range> ranges,
+      final ExConsumer<ResultSet> resultGetter) {
+    Objects.requireNonNull(resultGetter);
+    var futures = ranges.stream()
+      .map(range -> CompletableFuture.runAsync(() -> run(sql, paramSetter, key, range, resultGetter), executor))
+      .toArray(CompletableFuture[]::new);
+    try {
+      CompletableFuture.allOf(futures).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException r)
+        throw r;
+      throw e;
+    }
+  }
+
+  /**
+   * Runs all the ranges at once and merges their rows in a single stream, in
+   * no particular order.
+   * The partitions buffer at most DEFAULT_BUFFER_SIZE rows ahead of the
+   * stream, and wait when the stream is slower.
+   * The stream must be closed, which stops the partitions still running and
+   * gives back their connections.
+   * A stream left open and not read anymore keeps its partitions and their
+   * connections busy until the stall timeout: then the partitions give up and
+   * reading the stream further fails with an IllegalStateException.
+   *
+   * @param sql the query to split
+   * @param paramSetter setter for the query parameters, called once per range
+   * @param key the column to split on
+   * @param ranges the ranges of the key, one partition each
+   * @param mapper maps the rows, called from the partition threads
+   * @return the merged rows
+   */
+  public <T> Stream<T> stream(
+      final String sql,
+      final ExConsumer<PreparedStatement> paramSetter,
+      final String key,
+      final List<Range> ranges,
+      final RecordMapper<T> mapper) {
+    Objects.requireNonNull(mapper);
+    var merge = new Merge<T>(ranges.size(), DEFAULT_BUFFER_SIZE, stallTimeout);
+    try {
+      for (var range: ranges)
+        executor.execute(() -> merge.produce(() -> run(sql, paramSetter, key, range, rs -> merge.put(mapper.map(rs)))));
+    } catch (RuntimeException e) {
+      // stops the partitions already started
+      merge.cancel();
+      throw e;
+    }
+    return StreamSupport.stream(merge, false).onClose(merge::cancel);
+  }
+
+  private void run(
+      String sql,
+      ExConsumer<PreparedStatement> paramSetter,
+      String key,
+      Range range,
+      ExConsumer<ResultSet> resultGetter) {
+    var where = new StringBuilder();
+    if (range.from != null)
+      where.append("p.").append(key).append(" >= ?");
+    if (range.to != null)
+      where.append(where.length() > 0 ? " and " : "").append("p.").append(key).append(" < ?");
+    var partitionSql = where.length() == 0
+      ? sql
+      : "select * from (" + sql + ") p where " + where;
+
+    jdbc.streamed(partitionSql, st -> {
+      var index = bind(st, paramSetter);
+      if (range.from != null)
+        st.setObject(++index, range.from);
+      if (range.to != null)
+        st.setObject(++index, range.to);
+    }, resultGetter);
+  }
+
+  /**
+   * Runs the setter on the statement, recording the parameters it binds.
+   * @return the highest parameter index bound.
+   */
+  private static int bind(PreparedStatement statement, ExConsumer<PreparedStatement> paramSetter) throws Exception {
+    var last = new int[1];
+    var recorder = (PreparedStatement) Proxy.newProxyInstance(
+      PreparedStatement.class.getClassLoader(),
+      new Class<?>[]{PreparedStatement.class},
+      (proxy, method, args) -> {
+        // the parameter setters, not the statement properties
+        if (method.getDeclaringClass() == PreparedStatement.class
+            && method.getName().startsWith("set")
+            && args != null && args[0] instanceof Integer index)
+          last[0] = Math.max(last[0], index);
+        return StatementCache.invoke(method, statement, args);
+      });
+    paramSetter.accept(recorder);
+    return last[0];
+  }
+
+  /**
+   * Rows of all the partitions in one bounded queue.
+   */
+  private static final class Merge<T> extends Spliterators.AbstractSpliterator<T> {
+    private static final Object END = new Object();
+    private final BlockingQueue<Object> queue;
+    private final AtomicReference<RuntimeException> error = new AtomicReference<>();
+    private final Duration stallTimeout;
+    private volatile boolean cancelled;
+    private int running;
+
+    Merge(int partitions, int bufferSize, Duration stallTimeout) {
+      super(Long.MAX_VALUE, Spliterator.NONNULL);
+      this.queue = new ArrayBlockingQueue<>(bufferSize);
+      this.stallTimeout = stallTimeout;
+      this.running = partitions;
+    }
+
+    void produce(Runnable partition) {
+      try {
+        partition.run();
+      } catch (Throwable e) { //NOSONAR
+        // errors too, or the stream would end as if complete
+        if (!cancelled)
+          error.compareAndSet(null, e instanceof RuntimeException r ? r : new IllegalStateException(e.getMessage(), e));
+      } finally {
+        try {
+          put(END);
+        } catch (IllegalStateException e) {
+          // cancelled, nobody is reading anymore
+        }
+      }
+    }
+
+    void put(Object value) {
+      var start = System.nanoTime();
+      try {
+        while (!queue.offer(value, 100, TimeUnit.MILLISECONDS)) {
+          if (cancelled)
+            throw new IllegalStateException("cancelled");
+          if (System.nanoTime() - start > stallTimeout.toNanos()) {
+            error.compareAndSet(null, new IllegalStateException("stream not read for " + stallTimeout + ", partitions stopped"));
+            cancelled = true;
+            throw new IllegalStateException("cancelled");
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (running > 0) {
+        var value = take();
+        var e = error.get();
+        if (e != null) {
+          cancel();
+          throw e;
+        }
+        if (value == END) {
+          running--;
+          continue;
+        }
+        action.accept((T) value);
+        return true;
+      }
+      var e = error.get();
+      if (e != null)
+        throw e;
+      return false;
+    }
+
+    private Object take() {
+      try {
+        Object value;
+        while ((value = queue.poll(100, TimeUnit.MILLISECONDS)) == null)
+          if (cancelled)
+            throw Objects.requireNonNullElseGet(error.get(), () -> new IllegalStateException("cancelled"));
+        return value;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        cancel();
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+
+    void cancel() {
+      cancelled = true;
+      queue.clear();
+    }
+  }
+}
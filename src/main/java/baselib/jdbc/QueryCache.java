@@ -0,0 +1,340 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.Records;
+import baselib.jdbc.JdbcInstance.ExConsumer;
+import baselib.metrics.MetricRegisterable;
+import baselib.metrics.MetricsExporter;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import static java.lang.String.valueOf;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Cache of query results, to be passed to JdbcInstance.withQueryCache().
+ * Results are keyed by the sql, the bound parameters and the row type, and
+ * expire after the ttl.
+ * The cache is bounded either by number of entries or by an estimate of the
+ * bytes of the cached rows, and evicts the least recently used (LRU) or the
+ * least frequently used (LFU) entries first.
+ *
+ * Cached queries declare the tables they read, and statements executed through
+ * JdbcInstance.execute(sql, paramSetter, tables) drop the entries of the
+ * tables they write.
+ *
+ * Metrics are registered in MetricsExporter.DEFAULT labeled with the cache
+ * name, until the cache is closed.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class QueryCache implements AutoCloseable {
+  public enum Eviction { LRU, LFU }
+  public enum Weight { ENTRIES, BYTES }
+
+  private final String name;
+  private final long ttlNanos;
+  private final long maxWeight;
+  private final Weight weight;
+  private final Eviction eviction;
+  private final Map<Key, Entry> entries;
+  private final AtomicLong invalidations = new AtomicLong();
+  private long totalWeight;
+  final CacheMetrics metrics;
+
+  record Key(String sql, Class<?> type, List<Object> params) {}
+
+  private static final class Entry {
+    final List<?> rows;
+    final Set<String> tables;
+    final long weight;
+    final long expiresAt;
+    long hits;
+
+    Entry(List<?> rows, Set<String> tables, long weight, long expiresAt) {
+      this.rows = rows;
+      this.tables = tables;
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * A LRU cache bounded by number of entries.
+   */
+  public QueryCache(final String name, final Duration ttl, final int maxEntries) {
+    this(name, ttl, maxEntries, Weight.ENTRIES, Eviction.LRU);
+  }
+
+  /**
+   *
+   * @param name cache name, used as label in metrics
+   * @param ttl how long results are kept
+   * @param maxWeight the maximum number of entries or of bytes
+   * @param weight whether maxWeight counts entries or bytes
+   * @param eviction which entries to evict first when full
+   */
+  public QueryCache(
+      final String name,
+      final Duration ttl,
+      final long maxWeight,
+      final Weight weight,
+      final Eviction eviction) {
+    if (ttl.isNegative() || ttl.isZero())
+      throw new IllegalArgumentException("ttl must be positive");
+    if (maxWeight < 1)
+      throw new IllegalArgumentException("max weight must be positive");
+    this.name = Objects.requireNonNull(name);
+    this.ttlNanos = ttl.toNanos();
+    this.maxWeight = maxWeight;
+    this.weight = Objects.requireNonNull(weight);
+    this.eviction = Objects.requireNonNull(eviction);
+    this.entries = new LinkedHashMap<>(16, 0.75f, eviction == Eviction.LRU);
+    this.metrics = new CacheMetrics();
+    MetricsExporter.DEFAULT.register(metrics);
+  }
+
+  /**
+   * Drops all the cached results that read from any of the tables.
+   */
+  public void invalidate(final String... tables) {
+    var names = normalize(tables);
+    if (names.isEmpty())
+      return;
+    invalidations.incrementAndGet();
+    synchronized (entries) {
+      removeIf(e -> e.tables.stream().anyMatch(names::contains), metrics.invalidated);
+    }
+  }
+
+  public void clear() {
+    invalidations.incrementAndGet();
+    synchronized (entries) {
+      metrics.invalidated.addAndGet(entries.size());
+      entries.clear();
+      totalWeight = 0;
+    }
+  }
+
+  /**
+   * Drops all the cached results and unregisters the metrics.
+   */
+  @Override
+  public void close() {
+    clear();
+    MetricsExporter.DEFAULT.unregister(metrics);
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the key for the query, or null if the parameters cannot be
+   *         compared (such as streams).
+   */
+  static Key keyOf(String sql, Class<?> type, ExConsumer<PreparedStatement> paramSetter) {
+    var params = new ArrayList<Object>();
+    var comparable = new boolean[]{true};
+    var recorder = (PreparedStatement) Proxy.newProxyInstance(
+      PreparedStatement.class.getClassLoader(),
+      new Class<?>[]{PreparedStatement.class},
+      (proxy, method, args) -> {
+        params.add(method.getName());
+        for (var arg: args == null ? new Object[0] : args) {
+          if (arg instanceof InputStream || arg instanceof Reader || arg instanceof Blob || arg instanceof Clob)
+            comparable[0] = false;
+          params.add(arg instanceof byte[] b ? ByteBuffer.wrap(b.clone()) : arg);
+        }
+        return defaultValue(method.getReturnType());
+      });
+    ex(() -> paramSetter.accept(recorder));
+    return comparable[0] ? new Key(sql, type, Collections.unmodifiableList(params)) : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  <T> List<T> get(Key key, String[] tables, Supplier<List<T>> loader) {
+    synchronized (entries) {
+      var entry = entries.get(key);
+      if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+        entry.hits++;
+        metrics.hits.incrementAndGet();
+        return (List<T>) entry.rows;
+      }
+      if (entry != null)
+        remove(key, entry);
+    }
+
+    metrics.misses.incrementAndGet();
+    var generation = invalidations.get();
+    var rows = Collections.unmodifiableList(new ArrayList<>(loader.get()));
+    var entry = new Entry(rows, normalize(tables), weigh(rows), System.nanoTime() + ttlNanos);
+    synchronized (entries) {
+      // a write during the load may have made the rows stale already
+      if (generation == invalidations.get() && entry.weight <= maxWeight) {
+        var previous = entries.put(key, entry);
+        if (previous != null)
+          totalWeight -= previous.weight;
+        totalWeight += entry.weight;
+        evict(key);
+      }
+    }
+    return rows;
+  }
+
+  private void evict(Key added) {
+    if (totalWeight <= maxWeight)
+      return;
+    var now = System.nanoTime();
+    removeIf(e -> e.expiresAt - now <= 0, metrics.expired);
+    while (totalWeight > maxWeight) {
+      var victim = eviction == Eviction.LRU
+        ? entries.entrySet().iterator().next()
+        : leastFrequent(added);
+      remove(victim.getKey(), victim.getValue());
+      metrics.evicted.incrementAndGet();
+    }
+  }
+
+  private Map.Entry<Key, Entry> leastFrequent(Key added) {
+    // the entry just added has no hits yet, but it must get a chance
+    Map.Entry<Key, Entry> result = null;
+    for (var e: entries.entrySet())
+      if (!e.getKey().equals(added) && (result == null || e.getValue().hits < result.getValue().hits))
+        result = e;
+    return result;
+  }
+
+  private void removeIf(Predicate<Entry> predicate, AtomicLong counter) {
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      var entry = it.next();
+      if (predicate.test(entry)) {
+        it.remove();
+        totalWeight -= entry.weight;
+        counter.incrementAndGet();
+      }
+    }
+  }
+
+  private void remove(Key key, Entry entry) {
+    entries.remove(key);
+    totalWeight -= entry.weight;
+  }
+
+  private long weigh(List<?> rows) {
+    return weight == Weight.ENTRIES ? 1 : estimateBytes(rows);
+  }
+
+  /**
+   * Rough estimate of the heap used by an object graph of records, strings,
+   * boxed values and collections, assuming compressed references.
+   */
+  static long estimateBytes(Object value) {
+    if (value == null)
+      return 0;
+    if (value instanceof String s)
+      return 40L + s.length();
+    if (value instanceof byte[] b)
+      return 16L + b.length;
+    if (value instanceof Collection<?> c) {
+      var total = 24L + 4L * c.size();
+      for (var item: c)
+        total += estimateBytes(item);
+      return total;
+    }
+    if (value instanceof Record) {
+      var values = Records.componentValues(value);
+      var total = 16L + 4L * values.length;
+      for (var v: values)
+        total += estimateBytes(v);
+      return total;
+    }
+    return 16;
+  }
+
+  private static Set<String> normalize(String[] tables) {
+    return Arrays.stream(tables).map(t -> t.toLowerCase(Locale.ROOT)).collect(toSet());
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class)
+      return false;
+    if (type == int.class)
+      return 0;
+    if (type == long.class)
+      return 0L;
+    return null;
+  }
+
+  class CacheMetrics implements MetricRegisterable {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+    final AtomicLong expired = new AtomicLong();
+    final AtomicLong invalidated = new AtomicLong();
+
+    @Override
+    public void register(BiConsumer<String, Supplier<String>> registerFunction) {
+      registerFunction.accept(label("querycache_hits_total"), hits::toString);
+      registerFunction.accept(label("querycache_misses_total"), misses::toString);
+      registerFunction.accept(label("querycache_hit_ratio"), this::hitRatio);
+      registerFunction.accept(label("querycache_evictions_total"), evicted::toString);
+      registerFunction.accept(label("querycache_expired_total"), expired::toString);
+      registerFunction.accept(label("querycache_invalidations_total"), invalidated::toString);
+      registerFunction.accept(label("querycache_entries"), () -> valueOf(size()));
+      registerFunction.accept(label("querycache_weight"), () -> {
+        synchronized (entries) {
+          return valueOf(totalWeight);
+        }
+      });
+    }
+
+    private String hitRatio() {
+      var h = hits.get();
+      var total = h + misses.get();
+      return total == 0 ? "0" : valueOf((double) h / total);
+    }
+
+    private String label(String metric) {
+      return metric+"{cache=\""+name+"\"}";
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.NameTransform;
+import baselib.RecordCodecs;
+import baselib.Records;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Record mapper that resolves the columns once per query.
+ * On the first row of a result set the metadata is read and each record
+ * component is matched to a column index, by name in all its variants (as is,
+ * snake case and kebab case) ignoring the case, and to a typed getter.
+ * Rows are then mapped by index with no name lookups.
+ * Components with no matching column get null.
+ *
+ * When the result set has no metadata the mapping falls back to name lookups
+ * through Records.fromPropertyDiscover().
+ *
+ * Thread safe: each thread keeps its own plan, bound to the result set it was
+ * made for, so a mapper shared by threads reading different result sets does
+ * not rebuild the plan at every row.
+ * @author Raffaele Ragni
+ */
+final class RecordMapperImpl<T> implements JdbcInstance.RecordMapper<T> {
+  private static final Getter NULL_GETTER = (rs, i) -> null;
+
+  private final Class<T> clazz;
+  private final RecordComponent[] components;
+  private final Constructor<T> constructor;
+  private final ThreadLocal<Plan> plan = new ThreadLocal<>();
+
+  @FunctionalInterface
+  interface Getter {
+    Object get(ResultSet rs, int index) throws SQLException;
+  }
+
+  private record Plan(WeakReference<ResultSet> resultSet, int[] indexes, Getter[] getters) {}
+
+  RecordMapperImpl(Class<T> clazz) {
+    if (!clazz.isRecord())
+      throw new IllegalArgumentException("works only with record classes");
+    this.clazz = clazz;
+    this.components = clazz.getRecordComponents();
+    var types = Arrays.stream(components).map(RecordComponent::getType).toArray(Class<?>[]::new);
+    this.constructor = ex(() -> clazz.getDeclaredConstructor(types));
+  }
+
+  @Override
+  public T map(ResultSet rs) {
+    var current = plan.get();
+    if (current == null || current.resultSet.get() != rs) {
+      current = ex(() -> plan(rs));
+      if (current == null)
+        return Records.fromPropertyDiscover(clazz, name -> ex(() -> rs.getObject(name)));
+      plan.set(current);
+    }
+
+    var rowPlan = current;
+    return construct(ex(() -> read(rs, rowPlan)));
+  }
+
+  private Object[] read(ResultSet rs, Plan plan) throws SQLException {
+    var values = new Object[components.length];
+    for (var i = 0; i < values.length; i++)
+      values[i] = plan.getters[i].get(rs, plan.indexes[i]);
+    return values;
+  }
+
+  private T construct(Object[] values) {
+    var codec = RecordCodecs.of(clazz);
+    if (codec == null)
+      return ex(() -> constructor.newInstance(values));
+
+    var byName = new HashMap<String, Object>();
+    for (var i = 0; i < values.length; i++)
+      byName.put(components[i].getName(), values[i]);
+    return codec.fromPropertyDiscover(byName::get);
+  }
+
+  private Plan plan(ResultSet rs) throws SQLException {
+    var meta = rs.getMetaData();
+    if (meta == null)
+      return null;
+
+    var indexes = new int[components.length];
+    var getters = new Getter[components.length];
+    for (var i = 0; i < components.length; i++) {
+      indexes[i] = columnOf(meta, components[i].getName());
+      getters[i] = indexes[i] == 0 ? NULL_GETTER : getterOf(components[i].getType());
+    }
+    return new Plan(new WeakReference<>(rs), indexes, getters);
+  }
+
+  private static int columnOf(ResultSetMetaData meta, String name) throws SQLException {
+    var snake = NameTransform.SNAKE.apply(name);
+    var kebab = NameTransform.KEBAB.apply(name);
+    var count = meta.getColumnCount();
+    for (var candidate: new String[]{name, snake, kebab})
+      for (var i = 1; i <= count; i++)
+        if (candidate.equalsIgnoreCase(meta.getColumnLabel(i)))
+          return i;
+    return 0;
+  }
+
+  static Getter getterOf(Class<?> type) {
+    if (type == int.class || type == Integer.class)
+      return (rs, i) -> nullable(rs, rs.getInt(i));
+    if (type == long.class || type == Long.class)
+      return (rs, i) -> nullable(rs, rs.getLong(i));
+    if (type == double.class || type == Double.class)
+      return (rs, i) -> nullable(rs, rs.getDouble(i));
+    if (type == float.class || type == Float.class)
+      return (rs, i) -> nullable(rs, rs.getFloat(i));
+    if (type == short.class || type == Short.class)
+      return (rs, i) -> nullable(rs, rs.getShort(i));
+    if (type == byte.class || type == Byte.class)
+      return (rs, i) -> nullable(rs, rs.getByte(i));
+    if (type == boolean.class || type == Boolean.class)
+      return (rs, i) -> nullable(rs, rs.getBoolean(i));
+    if (type == String.class)
+      return ResultSet::getString;
+    if (type == BigDecimal.class)
+      return ResultSet::getBigDecimal;
+    if (type == byte[].class)
+      return ResultSet::getBytes;
+    if (type == Instant.class || type == LocalDate.class || type == LocalDateTime.class
+        || type == LocalTime.class || type == OffsetDateTime.class || type == UUID.class)
+      return (rs, i) -> rs.getObject(i, type);
+    return ResultSet::getObject;
+  }
+
+  private static Object nullable(ResultSet rs, Object value) throws SQLException {
+    return rs.wasNull() ? null : value;
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.metrics.MetricRegisterable;
+import baselib.metrics.MetricsExporter;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read replicas of a database, to be passed to JdbcInstance.withReplicas().
+ * Reads of that instance are balanced across the healthy replicas, while
+ * writes and transactions stay on the primary.
+ *
+ * Replicas are picked at random, weighted by the inverse of their latency:
+ * a moving average of the round trip of the health checks. The time to get a
+ * connection is not sampled, since borrowing from a pool says nothing of the
+ * replica. A replica failing to give a connection is marked down and
+ * the next one is tried; with no replica up the primary is used.
+ * There is no background thread: call checkHealth() periodically to measure
+ * the latencies and bring back the replicas that recovered.
+ *
+ * With read your writes enabled, a thread that wrote through the instance
+ * reads from the primary for the given window, so that it does not miss its
+ * own writes because of the replication lag.
+ * The pin applies only to the thread that wrote: calls run on other threads,
+ * such as through AsyncJdbcInstance or PartitionedQuery, are not pinned.
+ * To pin a session that spans threads, such as a request, use an instance
+ * made with session() for that session only.
+ *
+ * Metrics are registered in MetricsExporter.DEFAULT labeled with the name.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+public final class Replicas {
+  private static final Logger LOGGER = Logger.getLogger(Replicas.class.getName());
+  // weight of a new latency sample in the moving average
+  private static final double SMOOTHING = 0.2;
+
+  private final String name;
+  private final List<Replica> replicas;
+  private final long pinNanos;
+  private final ThreadLocal<Long> pinnedUntil;
+  // shared by all the threads of a session, null when pinning per thread
+  private final AtomicLong sessionPinnedUntil;
+
+  /**
+   *
+   * @param name name used as label in metrics
+   * @param replicas the suppliers of connections to the replicas, such as
+   *                 ConnectionPool.
+   */
+  public Replicas(final String name, final List<Supplier<Connection>> replicas) {
+    this(name, wrap(replicas), 0, false);
+    var metrics = new ReplicaMetrics();
+    MetricsExporter.DEFAULT.register(metrics);
+  }
+
+  private Replicas(String name, List<Replica> replicas, long pinNanos, boolean session) {
+    this.name = Objects.requireNonNull(name);
+    this.replicas = replicas;
+    this.pinNanos = pinNanos;
+    this.pinnedUntil = new ThreadLocal<>();
+    this.sessionPinnedUntil = session ? new AtomicLong(System.nanoTime()) : null;
+  }
+
+  private static List<Replica> wrap(List<Supplier<Connection>> suppliers) {
+    if (suppliers.isEmpty())
+      throw new IllegalArgumentException("at least one replica is needed");
+    var result = new ArrayList<Replica>(suppliers.size());
+    for (var supplier: suppliers)
+      result.add(new Replica(Objects.requireNonNull(supplier)));
+    return List.copyOf(result);
+  }
+
+  /**
+   * After a write, the writing thread reads from the primary for the window.
+   * The window should cover the replication lag.
+   * Only the writing thread is pinned, see session() to pin across threads.
+   *
+   * @param window how long reads stay on the primary after a write.
+   * @return a copy of these replicas, sharing their health and latencies.
+   */
+  public Replicas withReadYourWrites(final Duration window) {
+    if (window.isNegative() || window.isZero())
+      throw new IllegalArgumentException("window must be positive");
+    return new Replicas(name, replicas, window.toNanos(), sessionPinnedUntil != null);
+  }
+
+  /**
+   * Makes a copy for a single session, such as a request, whose read your
+   * writes pin is held by the copy instead of the thread: after a write from
+   * any thread, all the threads using the copy read from the primary for the
+   * window.
+   * The copy is meant to be dropped with the session, since all its users
+   * are pinned together.
+   *
+   * @return a copy of these replicas, sharing their health and latencies.
+   */
+  public Replicas session() {
+    return new Replicas(name, replicas, pinNanos, true);
+  }
+
+  /**
+   * Checks each replica with JdbcInstance.healthCheck(), marking it up or
+   * down and measuring its latency.
+   *
+   * @return how many replicas are up.
+   */
+  public int checkHealth() {
+    var up = 0;
+    for (var replica: replicas) {
+      var start = System.nanoTime();
+      boolean healthy;
+      try {
+        healthy = replica.jdbc.healthCheck();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.FINE, "replica health check failed", e);
+        healthy = false;
+      }
+      if (healthy) {
+        replica.sample(System.nanoTime() - start);
+        up++;
+      }
+      replica.healthy = healthy;
+    }
+    return up;
+  }
+
+  /**
+   * Called by JdbcInstance after writing, to pin the reads of the thread, or
+   * of the session.
+   */
+  void written() {
+    if (pinNanos == 0)
+      return;
+    var until = System.nanoTime() + pinNanos;
+    if (sessionPinnedUntil != null)
+      sessionPinnedUntil.accumulateAndGet(until, (a, b) -> b - a > 0 ? b : a);
+    else
+      pinnedUntil.set(until);
+  }
+
+  private boolean pinned() {
+    if (sessionPinnedUntil != null)
+      return sessionPinnedUntil.get() - System.nanoTime() > 0;
+    var until = pinnedUntil.get();
+    if (until == null)
+      return false;
+    if (until - System.nanoTime() > 0)
+      return true;
+    pinnedUntil.remove();
+    return false;
+  }
+
+  /**
+   * @return a connection to a replica, or to the primary when the thread or
+   *         session is pinned or no replica is up.
+   */
+  Connection connect(Supplier<Connection> primary) {
+    if (pinned())
+      return primary.get();
+    for (var replica = pick(); replica != null; replica = pick()) {
+      try {
+        return replica.supplier.get();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "replica marked down", e);
+        replica.healthy = false;
+      }
+    }
+    return primary.get();
+  }
+
+  /**
+   * @return a healthy replica at random, weighted by inverse latency, or null
+   */
+  Replica pick() {
+    var total = 0.0;
+    for (var replica: replicas)
+      if (replica.healthy)
+        total += replica.weight();
+    if (total == 0)
+      return null;
+    var point = ThreadLocalRandom.current().nextDouble(total);
+    Replica last = null;
+    for (var replica: replicas) {
+      if (!replica.healthy)
+        continue;
+      last = replica;
+      point -= replica.weight();
+      if (point < 0)
+        break;
+    }
+    return last;
+  }
+
+  List<Replica> replicas() {
+    return replicas;
+  }
+
+  static final class Replica {
+    final Supplier<Connection> supplier;
+    final JdbcInstance jdbc;
+    volatile boolean healthy = true;
+    // moving average, 0 until the first sample
+    volatile double latencyNanos;
+
+    Replica(Supplier<Connection> supplier) {
+      this.supplier = supplier;
+      this.jdbc = new JdbcInstance(supplier);
+    }
+
+    void sample(long nanos) {
+      var current = latencyNanos;
+      // racing updates may lose a sample, which is fine for an average
+      latencyNanos = current == 0 ? Math.max(nanos, 1) : current + SMOOTHING * (nanos - current);
+    }
+
+    double weight() {
+      // unmeasured replicas get the weight of a 1ms latency
+      var latency = latencyNanos;
+      return 1.0 / (latency == 0 ? 1_000_000 : latency);
+    }
+  }
+
+  private class ReplicaMetrics implements MetricRegisterable {
+    @Override
+    public void register(BiConsumer<String, Supplier<String>> registerFunction) {
+      for (var i = 0; i < replicas.size(); i++) {
+        var replica = replicas.get(i);
+        var label = "{replicas=\"" + name + "\",replica=\"" + i + "\"}";
+        registerFunction.accept("replica_up" + label, () -> replica.healthy ? "1" : "0");
+        registerFunction.accept("replica_latency_seconds" + label,
+          () -> String.format(Locale.ROOT, "%.6f", replica.latencyNanos / 1e9));
+      }
+    }
+  }
+}
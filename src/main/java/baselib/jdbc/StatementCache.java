@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LRU cache of prepared statements of a single physical connection.
+ * Statements are keyed by the sql text and the result set options passed to
+ * prepareStatement().
+ * Closing a cached statement only clears it and gives it back to the cache:
+ * its result set, parameters, pending batch and warnings are cleared and its
+ * fetch size, max rows and query timeout restored. A statement that cannot
+ * be cleared is closed and dropped.
+ * If the same statement is prepared again while still in use, a non cached
+ * one is returned instead.
+ *
+ * Not thread safe: a pooled connection is used by one thread at a time.
+ * @author Raffaele Ragni
+ */
+final class StatementCache {
+  private static final Logger LOGGER = Logger.getLogger(StatementCache.class.getName());
+
+  private final Map<Key, Cached> statements;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  record Key(String sql, List<Object> options) {}
+
+  StatementCache(int maxSize, AtomicLong hits, AtomicLong misses, AtomicLong evictions) {
+    this.hits = hits;
+    this.misses = misses;
+    this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+        if (size() <= maxSize || eldest.getValue().inUse)
+          return false;
+        evictions.incrementAndGet();
+        eldest.getValue().closePhysical();
+        return true;
+      }
+    };
+  }
+
+  static boolean isCacheable(Method method, Object[] args) {
+    return "prepareStatement".equals(method.getName())
+      && args != null
+      && args[0] instanceof String
+      && Arrays.stream(args, 1, args.length).allMatch(Integer.class::isInstance);
+  }
+
+  /**
+   * @param connection the connection that getConnection() of the statement
+   *                   will return
+   * @param physical the physical connection to prepare statements on
+   */
+  PreparedStatement prepare(Connection connection, Connection physical, Method method, Object[] args) throws Throwable {
+    var key = new Key((String) args[0], List.of(Arrays.copyOfRange(args, 1, args.length)));
+    var cached = statements.get(key);
+    if (cached != null && cached.inUse)
+      return (PreparedStatement) invoke(method, physical, args);
+
+    if (cached == null) {
+      misses.incrementAndGet();
+      cached = new Cached(key, (PreparedStatement) invoke(method, physical, args));
+      statements.put(key, cached);
+    } else {
+      hits.incrementAndGet();
+    }
+    cached.inUse = true;
+    return cached.lend(connection);
+  }
+
+  void close() {
+    statements.values().forEach(Cached::closePhysical);
+    statements.clear();
+  }
+
+  int size() {
+    return statements.size();
+  }
+
+  static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private final class Cached {
+    final Key key;
+    final PreparedStatement statement;
+    final int fetchSize;
+    final int maxRows;
+    final int queryTimeout;
+    boolean inUse;
+
+    Cached(Key key, PreparedStatement statement) throws SQLException {
+      this.key = key;
+      this.statement = statement;
+      this.fetchSize = statement.getFetchSize();
+      this.maxRows = statement.getMaxRows();
+      this.queryTimeout = statement.getQueryTimeout();
+    }
+
+    PreparedStatement lend(Connection connection) {
+      return (PreparedStatement) Proxy.newProxyInstance(
+        PreparedStatement.class.getClassLoader(),
+        new Class<?>[]{PreparedStatement.class},
+        new Lent(connection));
+    }
+
+    void giveBack() {
+      inUse = false;
+      try {
+        var rs = statement.getResultSet();
+        if (rs != null)
+          rs.close();
+        statement.clearParameters();
+        // left by a batch failed before executing it
+        statement.clearBatch();
+        statement.clearWarnings();
+        // max rows first, some drivers check the fetch size against it
+        if (statement.getMaxRows() != maxRows)
+          statement.setMaxRows(maxRows);
+        if (statement.getFetchSize() != fetchSize)
+          statement.setFetchSize(fetchSize);
+        if (statement.getQueryTimeout() != queryTimeout)
+          statement.setQueryTimeout(queryTimeout);
+      } catch (SQLException e) {
+        LOGGER.log(Level.FINE, e, e::getMessage);
+        statements.remove(key, this);
+        closePhysical();
+      }
+    }
+
+    void closePhysical() {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        LOGGER.log(Level.FINE, e, e::getMessage);
+      }
+    }
+
+    private final class Lent implements InvocationHandler {
+      private final Connection connection;
+      private boolean returned;
+
+      Lent(Connection connection) {
+        this.connection = connection;
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+          case "close" -> {
+            if (!returned) {
+              returned = true;
+              giveBack();
+            }
+            return null;
+          }
+          case "isClosed" -> {
+            if (returned)
+              return true;
+          }
+          case "getConnection" -> {
+            return connection;
+          }
+          case "hashCode" -> {
+            return System.identityHashCode(proxy);
+          }
+          case "equals" -> {
+            return proxy == args[0];
+          }
+          default -> {
+            if (returned)
+              throw new SQLException("Statement is closed");
+          }
+        }
+        return StatementCache.invoke(method, statement, args);
+      }
+    }
+  }
+}
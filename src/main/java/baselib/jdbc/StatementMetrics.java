@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.metrics.MetricRegisterable;
+import baselib.metrics.MetricsExporter;
+import java.sql.Connection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import static java.lang.String.valueOf;
+
+/**
+ * Metrics of the statements run by JdbcInstance, grouped by sql fingerprint:
+ * the sql with literals replaced by '?', lower case and with collapsed
+ * whitespace, so that the same statement with different values is counted
+ * once.
+ * For each fingerprint: calls, errors, a latency histogram, rows returned or
+ * affected and the time spent waiting for a connection.
+ *
+ * At most maxFingerprints are tracked, the statements beyond are counted
+ * under the fingerprint 'other'.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+final class StatementMetrics {
+  static final StatementMetrics DEFAULT = new StatementMetrics(MetricsExporter.DEFAULT, 200);
+  static final String OTHER = "other";
+  static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5};
+  private static final int MAX_FINGERPRINT_LENGTH = 200;
+  // 'in (?, ?, ?)' and 'values (?, ?), (?, ?)' lists of any length
+  private static final Pattern PARAMETERS = Pattern.compile("\\?( ?, ?\\?)+");
+  private static final Pattern LISTS = Pattern.compile("(\\([^()]*\\))( ?, ?\\1)+");
+
+  private final MetricsExporter exporter;
+  private final int maxFingerprints;
+  private final Map<String, Stats> byFingerprint = new ConcurrentHashMap<>();
+  private final Map<String, Stats> bySql = new ConcurrentHashMap<>();
+
+  StatementMetrics(MetricsExporter exporter, int maxFingerprints) {
+    this.exporter = exporter;
+    this.maxFingerprints = maxFingerprints;
+  }
+
+  /**
+   * Starts timing a statement, the timing includes the connection wait.
+   */
+  Call start(String sql) {
+    return new Call(of(sql));
+  }
+
+  Stats of(String sql) {
+    var stats = bySql.get(sql);
+    if (stats != null)
+      return stats;
+
+    var fingerprint = fingerprint(sql);
+    stats = byFingerprint.get(fingerprint);
+    if (stats == null)
+      stats = register(byFingerprint.size() < maxFingerprints ? fingerprint : OTHER);
+    // many distinct texts may share a fingerprint, so this is bounded too
+    if (bySql.size() < maxFingerprints * 8)
+      bySql.put(sql, stats);
+    return stats;
+  }
+
+  private Stats register(String fingerprint) {
+    var stats = new Stats(fingerprint);
+    var existing = byFingerprint.putIfAbsent(fingerprint, stats);
+    if (existing != null)
+      return existing;
+    exporter.register(stats);
+    return stats;
+  }
+
+  static String fingerprint(String sql) {
+    var sb = new StringBuilder(Math.min(sql.length(), MAX_FINGERPRINT_LENGTH));
+    var i = 0;
+    var length = sql.length();
+    while (i < length && sb.length() < MAX_FINGERPRINT_LENGTH * 4) {
+      var c = sql.charAt(i);
+      if (c == '\'') {
+        i = skipString(sql, i + 1);
+        sb.append('?');
+      } else if (Character.isDigit(c) && !partOfWord(sb)) {
+        while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+          i++;
+        sb.append('?');
+      } else if (Character.isWhitespace(c)) {
+        while (i < length && Character.isWhitespace(sql.charAt(i)))
+          i++;
+        if (sb.length() > 0 && i < length)
+          sb.append(' ');
+      } else {
+        sb.append(Character.toLowerCase(c));
+        i++;
+      }
+    }
+    var result = LISTS.matcher(PARAMETERS.matcher(sb).replaceAll("?, ...")).replaceAll("$1, ...");
+    return result.length() > MAX_FINGERPRINT_LENGTH ? result.substring(0, MAX_FINGERPRINT_LENGTH) : result;
+  }
+
+  private static int skipString(String sql, int from) {
+    var i = from;
+    while (i < sql.length()) {
+      if (sql.charAt(i++) == '\'') {
+        if (i < sql.length() && sql.charAt(i) == '\'')
+          i++;
+        else
+          break;
+      }
+    }
+    return i;
+  }
+
+  private static boolean partOfWord(StringBuilder sb) {
+    if (sb.length() == 0)
+      return false;
+    var last = sb.charAt(sb.length() - 1);
+    return Character.isLetterOrDigit(last) || last == '_';
+  }
+
+  /**
+   * A single run of a statement, used by one thread.
+   */
+  static final class Call {
+    private final Stats stats;
+    private final long start = System.nanoTime();
+    private long waitNanos;
+    private long rows;
+    private boolean error;
+
+    Call(Stats stats) {
+      this.stats = stats;
+    }
+
+    Connection connect(Supplier<Connection> supplier) {
+      var begin = System.nanoTime();
+      try {
+        return supplier.get();
+      } finally {
+        waitNanos += System.nanoTime() - begin;
+      }
+    }
+
+    void rows(long count) {
+      rows += count;
+    }
+
+    void failed() {
+      error = true;
+    }
+
+    void end() {
+      stats.record(waitNanos, System.nanoTime() - start, rows, error);
+    }
+  }
+
+  static final class Stats implements MetricRegisterable {
+    final String fingerprint;
+    final LongAdder count = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder nanosSum = new LongAdder();
+    final LongAdder waitNanosSum = new LongAdder();
+    final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+
+    Stats(String fingerprint) {
+      this.fingerprint = fingerprint;
+      for (var i = 0; i < buckets.length; i++)
+        buckets[i] = new LongAdder();
+    }
+
+    void record(long waitNanos, long nanos, long rowCount, boolean error) {
+      count.increment();
+      if (error)
+        errors.increment();
+      rows.add(rowCount);
+      nanosSum.add(nanos);
+      waitNanosSum.add(waitNanos);
+      var seconds = nanos / 1e9;
+      for (var i = 0; i < BUCKETS.length; i++) {
+        if (seconds <= BUCKETS[i]) {
+          buckets[i].increment();
+          break;
+        }
+      }
+    }
+
+    @Override
+    public void register(BiConsumer<String, Supplier<String>> registerFunction) {
+      var label = "sql=\"" + escape(fingerprint) + "\"";
+      registerFunction.accept("jdbc_statement_count{" + label + "}", count::toString);
+      registerFunction.accept("jdbc_statement_errors_total{" + label + "}", errors::toString);
+      registerFunction.accept("jdbc_statement_rows_total{" + label + "}", rows::toString);
+      registerFunction.accept("jdbc_statement_connection_wait_seconds_sum{" + label + "}", () -> seconds(waitNanosSum));
+      for (var i = 0; i < BUCKETS.length; i++) {
+        var index = i;
+        registerFunction.accept("jdbc_statement_seconds_bucket{" + label + ",le=\"" + BUCKETS[i] + "\"}", () -> valueOf(cumulative(index)));
+      }
+      registerFunction.accept("jdbc_statement_seconds_bucket{" + label + ",le=\"+Inf\"}", count::toString);
+      registerFunction.accept("jdbc_statement_seconds_sum{" + label + "}", () -> seconds(nanosSum));
+      registerFunction.accept("jdbc_statement_seconds_count{" + label + "}", count::toString);
+    }
+
+    long cumulative(int bucket) {
+      var total = 0L;
+      for (var i = 0; i <= bucket; i++)
+        total += buckets[i].sum();
+      return total;
+    }
+
+    private static String seconds(LongAdder nanos) {
+      return String.format(Locale.ROOT, "%.6f", nanos.sum() / 1e9);
+    }
+
+    private static String escape(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+  }
+}
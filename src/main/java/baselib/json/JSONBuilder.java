@@ -17,6 +17,9 @@
 package baselib.json;
 
 import static baselib.ExceptionWrapper.ex;
+import baselib.RecordCodec;
+import baselib.RecordCodecs;
+import java.io.Writer;
 import java.lang.reflect.Array;
 import java.util.Collection;
 import java.util.Map;
@@ -48,6 +51,25 @@ public final class JSONBuilder {
     return sb.toString();
   }
 
+  /**
+   * Writes what was built so far and empties the builder, keeping its state,
+   * so that big documents can be written in parts with constant memory.
+   *
+   * @param writer where to write the json built so far
+   */
+  public void flush(Writer writer) {
+    ex(() -> writer.append(sb));
+    sb.setLength(0);
+  }
+
+  /**
+   *
+   * @return the length of the json built since the last flush.
+   */
+  public int length() {
+    return sb.length();
+  }
+
   public void beginArray() {
     if (comma)
       sb.append(',');
@@ -125,8 +147,20 @@ public final class JSONBuilder {
     prop = false;
   }
 
+  @SuppressWarnings("unchecked")
   private void doRecord(Object o) {
     beginObject();
+    var codec = (RecordCodec<Object>) RecordCodecs.of(o.getClass());
+    if (codec != null) {
+      codec.components(o, (name, value) -> {
+        if (value != null) {
+          property(name);
+          value(value);
+        }
+      });
+      endObject();
+      return;
+    }
     for (var e: o.getClass().getRecordComponents()) {
       Object value = ex(() -> e.getAccessor().invoke(o));
       if (value != null) {
@@ -24,12 +24,17 @@ import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
 import static java.lang.Character.isWhitespace;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * JSON reader, it wraps around an actual reader and uses constant memory within
@@ -45,7 +50,12 @@ import java.util.function.Consumer;
  */
 public class JSONReader implements AutoCloseable {
 
+  private static final int NONE = -2;
+
   final Reader reader;
+  // the char ending a literal, given back by the next read
+  private int pushedBack = NONE;
+
   public JSONReader(final Reader reader) {
     this.reader = reader;
   }
@@ -63,6 +73,14 @@ public class JSONReader implements AutoCloseable {
     return new JSONReader(new StringReader(string)).toRecord(clazz);
   }
 
+  /**
+   * Reads a record from UTF-8 bytes in place, without decoding them to a
+   * string first. The buffer position is moved past the bytes read.
+   */
+  public static <T> T toRecord(Class<T> clazz, final ByteBuffer buffer) {
+    return new JSONReader(new UTF8Reader(buffer)).toRecord(clazz);
+  }
+
   public static <T> List<T> toRecordList(Class<T> clazz, final String string) {
     return new JSONReader(new StringReader(string)).toRecordList(clazz);
   }
@@ -113,6 +131,47 @@ public class JSONReader implements AutoCloseable {
     }
   }
 
+  /**
+   * Reads records lazily, one at a time, from either a JSON array of objects
+   * or from objects one after the other, such as NDJSON (one object per line).
+   * Only the record being read is held in memory.
+   * Closing the stream closes the reader.
+   *
+   * @param <T> the record type
+   * @param clazz the record class
+   * @return the records, as they are read
+   */
+  public <T> Stream<T> toRecordStream(Class<T> clazz) {
+    if (isNotRecord(clazz))
+      throw recordRequiredException();
+
+    var next = new int[]{nextNonWhitespaceChar()};
+    var array = next[0] == '[';
+    if (array)
+      next[0] = nextNonWhitespaceChar();
+    var iterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+      @Override
+      public boolean tryAdvance(Consumer<? super T> action) {
+        while (true) {
+          var ch = next[0];
+          while (ch == ',')
+            ch = nextNonWhitespaceChar();
+          if (ch == -1 || array && ch == ']')
+            return false;
+          if (ch != '{')
+            throw invalidJSONException();
+          var map = readObject();
+          next[0] = nextNonWhitespaceChar();
+          if (!isEmptyMap(map)) {
+            action.accept(Records.fromMap(clazz, map));
+            return true;
+          }
+        }
+      }
+    };
+    return StreamSupport.stream(iterator, false).onClose(this::close);
+  }
+
   private Object readItem(Integer prev) {
     var ch = prev != null ? prev : nextNonWhitespaceChar();
     return switch (ch) {
@@ -132,6 +191,11 @@ public class JSONReader implements AutoCloseable {
   }
 
   private int nextChar() {
+    if (pushedBack != NONE) {
+      var ch = pushedBack;
+      pushedBack = NONE;
+      return ch;
+    }
     return ex(() -> reader.read()); //NOSONAR
   }
 
@@ -141,6 +205,8 @@ public class JSONReader implements AutoCloseable {
       builder.append((char)ch);
       ch = nextNonWhitespaceChar();
     }
+    if (ch != -1)
+      pushedBack = ch;
     var s = builder.toString();
     if ("null".equalsIgnoreCase(s))
       return null;
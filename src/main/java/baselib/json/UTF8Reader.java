@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.json;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader decoding UTF-8 straight from a byte buffer, one char at a time, so
+ * that the bytes are read in place (even from a mapped file) without being
+ * copied to a string first.
+ * Malformed sequences are read as U+FFFD.
+ *
+ * Not thread safe.
+ * @author Raffaele Ragni
+ */
+final class UTF8Reader extends Reader {
+  private static final char REPLACEMENT = '\uFFFD';
+
+  private final ByteBuffer buffer;
+  // second half of a surrogate pair, 0 if none
+  private char pendingLow;
+
+  UTF8Reader(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    if (pendingLow != 0) {
+      var ch = pendingLow;
+      pendingLow = 0;
+      return ch;
+    }
+    if (!buffer.hasRemaining())
+      return -1;
+    var b = buffer.get();
+    if (b >= 0)
+      return b;
+    return decode(b & 0xFF);
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) {
+    var count = 0;
+    while (count < len) {
+      var ch = read();
+      if (ch == -1)
+        break;
+      cbuf[off + count++] = (char) ch;
+    }
+    return count == 0 && len > 0 ? -1 : count;
+  }
+
+  @Override
+  public void close() {
+    // nothing to release
+  }
+
+  private int decode(int first) {
+    int extra;
+    int codePoint;
+    if ((first & 0xE0) == 0xC0) {
+      extra = 1;
+      codePoint = first & 0x1F;
+    } else if ((first & 0xF0) == 0xE0) {
+      extra = 2;
+      codePoint = first & 0x0F;
+    } else if ((first & 0xF8) == 0xF0) {
+      extra = 3;
+      codePoint = first & 0x07;
+    } else {
+      return REPLACEMENT;
+    }
+    for (var i = 0; i < extra; i++) {
+      if (!buffer.hasRemaining())
+        return REPLACEMENT;
+      var next = buffer.get(buffer.position()) & 0xFF;
+      if ((next & 0xC0) != 0x80)
+        return REPLACEMENT;
+      buffer.get();
+      codePoint = (codePoint << 6) | (next & 0x3F);
+    }
+    if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+      return codePoint;
+    if (codePoint > Character.MAX_CODE_POINT)
+      return REPLACEMENT;
+    pendingLow = Character.lowSurrogate(codePoint);
+    return Character.highSurrogate(codePoint);
+  }
+}
@@ -19,7 +19,10 @@ package baselib.metrics;
 import static baselib.ExceptionWrapper.ex;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
@@ -35,7 +38,7 @@ public class MetricsExporter {
   private final BiConsumer<String, Supplier<String>> registerFunction;
 
   public MetricsExporter() {
-    metricPrinters = new LinkedHashMap<>();
+    metricPrinters = Collections.synchronizedMap(new LinkedHashMap<>());
     registerFunction = metricPrinters::put;
     registerJVMMetrics();
   }
@@ -44,8 +47,22 @@ public class MetricsExporter {
     registerable.register(registerFunction);
   }
 
+  /**
+   * Removes the metrics with the names the registerable registers, such as
+   * when the object they measure is closed.
+   */
+  public void unregister(MetricRegisterable registerable) {
+    registerable.register((name, printer) -> metricPrinters.remove(name));
+  }
+
   public void export(Writer writer) {
-    metricPrinters.forEach((name, value) -> printMetric(writer, name, value.get()));
+    // metrics can be registered at any time, such as pools or clients
+    // created lazily, so export works on a copy
+    List<Map.Entry<String, Supplier<String>>> entries;
+    synchronized (metricPrinters) {
+      entries = new ArrayList<>(metricPrinters.entrySet());
+    }
+    entries.forEach(e -> printMetric(writer, e.getKey(), e.getValue().get()));
   }
 
   private void printMetric(Writer writer, String name, String value) {
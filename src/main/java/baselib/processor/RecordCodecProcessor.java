@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.processor;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.GenerateCodec;
+import baselib.NameTransform;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.RecordComponentElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a RecordCodec for each record annotated with GenerateCodec.
+ * The processor is not registered as a service, so it will not run unless
+ * enabled explicitly, for example with:
+ *   javac -processor baselib.processor.RecordCodecProcessor ...
+ * or in maven with the compiler plugin 'annotationProcessors' option.
+ *
+ * @author Raffaele Ragni
+ */
+@SupportedAnnotationTypes("baselib.GenerateCodec")
+public class RecordCodecProcessor extends AbstractProcessor {
+
+  static final String SUFFIX = "Codec";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (var element: roundEnv.getElementsAnnotatedWith(GenerateCodec.class)) {
+      if (element.getKind() != ElementKind.RECORD) {
+        error(element, "@GenerateCodec is only supported on java records");
+        continue;
+      }
+      if (element.getModifiers().contains(Modifier.PRIVATE)) {
+        error(element, "@GenerateCodec records cannot be private");
+        continue;
+      }
+      if (!((TypeElement) element).getTypeParameters().isEmpty()) {
+        error(element, "@GenerateCodec records cannot be generic");
+        continue;
+      }
+      generate((TypeElement) element);
+    }
+    return true;
+  }
+
+  private void generate(TypeElement rec) {
+    var packageName = processingEnv.getElementUtils().getPackageOf(rec).getQualifiedName().toString();
+    var codecName = codecName(rec);
+    var qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+    var source = source(packageName, codecName, rec);
+    ex(() -> {
+      var file = processingEnv.getFiler().createSourceFile(qualifiedCodecName, rec);
+      try (var writer = file.openWriter()) {
+        writer.write(source);
+      }
+    });
+  }
+
+  static String codecName(TypeElement rec) {
+    var name = new StringBuilder(rec.getSimpleName());
+    var enclosing = rec.getEnclosingElement();
+    while (enclosing instanceof TypeElement t) {
+      name.insert(0, '_').insert(0, t.getSimpleName());
+      enclosing = enclosing.getEnclosingElement();
+    }
+    return name.append(SUFFIX).toString();
+  }
+
+  private String source(String packageName, String codecName, TypeElement rec) {
+    var type = rec.getQualifiedName().toString();
+    var components = rec.getRecordComponents();
+    var sb = new StringBuilder();
+    if (!packageName.isEmpty())
+      sb.append("package ").append(packageName).append(";\n\n");
+
+    sb.append("""
+      @javax.annotation.processing.Generated("%s")
+      public final class %s implements baselib.RecordCodec<%s> {
+
+        @Override
+        public Class<%s> type() {
+          return %s.class;
+        }
+
+        @Override
+        public void components(%s rec, java.util.function.BiConsumer<String, Object> consumer) {
+      """.formatted(getClass().getName(), codecName, type, type, type, type));
+
+    for (var c: components)
+      sb.append("    consumer.accept(\"%s\", rec.%s());\n".formatted(c.getSimpleName(), c.getSimpleName()));
+
+    sb.append("""
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public %s fromPropertyDiscover(java.util.function.Function<String, Object> fetch) {
+          return new %s(
+      """.formatted(type, type));
+
+    sb.append(components.stream()
+      .map(c -> "      " + convert(c.asType(), discover(c)))
+      .collect(Collectors.joining(",\n")));
+
+    sb.append("""
+
+          );
+        }
+      }
+      """);
+    return sb.toString();
+  }
+
+  private static String discover(RecordComponentElement c) {
+    var name = c.getSimpleName().toString();
+    var snake = NameTransform.SNAKE.apply(name);
+    var kebab = NameTransform.KEBAB.apply(name);
+    var names = new LinkedHashSet<String>();
+    names.add(name);
+    names.add(snake.toLowerCase());
+    names.add(snake.toUpperCase());
+    names.add(kebab.toLowerCase());
+    names.add(kebab.toUpperCase());
+    return names.stream()
+      .map(n -> "\"" + n + "\"")
+      .collect(Collectors.joining(", ", "baselib.RecordCodecs.discover(fetch, ", ")"));
+  }
+
+  private String convert(TypeMirror type, String value) {
+    return switch (type.getKind()) {
+      case INT -> "baselib.RecordCodecs.asInt(" + value + ")";
+      case LONG -> "baselib.RecordCodecs.asLong(" + value + ")";
+      case SHORT -> "baselib.RecordCodecs.asShort(" + value + ")";
+      case BYTE -> "baselib.RecordCodecs.asByte(" + value + ")";
+      case DOUBLE -> "baselib.RecordCodecs.asDouble(" + value + ")";
+      case FLOAT -> "baselib.RecordCodecs.asFloat(" + value + ")";
+      case BOOLEAN -> "baselib.RecordCodecs.asBoolean(" + value + ")";
+      case CHAR -> "baselib.RecordCodecs.asChar(" + value + ")";
+      default -> convertReference(type, value);
+    };
+  }
+
+  private String convertReference(TypeMirror type, String value) {
+    var erasure = processingEnv.getTypeUtils().erasure(type).toString();
+    if (type instanceof DeclaredType d && d.asElement().getKind() == ElementKind.RECORD)
+      return "baselib.RecordCodecs.asRecord(" + erasure + ".class, " + value + ")";
+    if (erasure.equals(type.toString()))
+      return "(" + erasure + ") " + value;
+    return "(" + type + ") (" + erasure + ") " + value;
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
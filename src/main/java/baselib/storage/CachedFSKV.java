@@ -0,0 +1,381 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import baselib.metrics.MetricRegisterable;
+import baselib.metrics.MetricsExporter;
+import static java.lang.String.valueOf;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * An FSKV keeping the most used values in memory, in front of another FSKV.
+ * Puts are written through to the other store and cached, gets read from the
+ * other store only on a miss.
+ * The cache is bounded either by number of entries or by the serialized size
+ * of the values, and evicts either the least recently used (LRU) or, with
+ * TINY_LFU, the values less frequently used: new values enter a small LRU
+ * window, and when leaving it they replace the LRU value of the main area only
+ * if they were used more often, according to a counting sketch of the recent
+ * accesses. This keeps popular values cached through scans of many keys read
+ * once.
+ *
+ * Values must not be written to the other store bypassing the cache.
+ * Metrics are registered in MetricsExporter.DEFAULT labeled with the cache
+ * name, until the cache is closed.
+ *
+ * Thread safe if the other store is.
+ * @param <V> type of the storage record.
+ * @author Raffaele Ragni
+ */
+public class CachedFSKV<V> extends FSKV<V> implements AutoCloseable {
+  public enum Eviction { LRU, TINY_LFU }
+  public enum Weight { ENTRIES, BYTES }
+
+  // share of the capacity for the window of new values, in TINY_LFU
+  private static final double WINDOW_SHARE = 0.01;
+  private static final int STRIPES = 64;
+
+  private final FSKV<V> store;
+  private final long maxWeight;
+  private final Weight weight;
+  private final FrequencySketch sketch;
+  // a key is written to the store and to the cache under its stripe
+  private final Object[] stripes = new Object[STRIPES];
+  // with LRU all the entries are in main
+  private final LinkedHashMap<String, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+  private final long maxWindowWeight;
+  private long windowWeight;
+  private long mainWeight;
+  final CacheMetrics metrics;
+
+  private record Entry<V>(V value, long weight) {}
+
+  /**
+   * A LRU cache bounded by number of entries.
+   */
+  public CachedFSKV(final String name, final FSKV<V> store, final long maxEntries) {
+    this(name, store, maxEntries, Weight.ENTRIES, Eviction.LRU);
+  }
+
+  /**
+   *
+   * @param name cache name, used as label in metrics
+   * @param store the store to cache
+   * @param maxWeight the maximum number of entries or of bytes
+   * @param weight whether maxWeight counts entries or serialized bytes
+   * @param eviction which values to evict first when full
+   */
+  public CachedFSKV(
+      final String name,
+      final FSKV<V> store,
+      final long maxWeight,
+      final Weight weight,
+      final Eviction eviction) {
+    super(store);
+    if (maxWeight < 1)
+      throw new IllegalArgumentException("max weight must be positive");
+    Objects.requireNonNull(eviction);
+    this.store = store;
+    this.maxWeight = maxWeight;
+    this.weight = Objects.requireNonNull(weight);
+    if (eviction == Eviction.TINY_LFU) {
+      this.maxWindowWeight = Math.max(1, (long) (maxWeight * WINDOW_SHARE));
+      this.sketch = new FrequencySketch(weight == Weight.ENTRIES ? maxWeight : maxWeight / 256);
+    } else {
+      this.maxWindowWeight = 0;
+      this.sketch = null;
+    }
+    for (var i = 0; i < STRIPES; i++)
+      stripes[i] = new Object();
+    this.metrics = new CacheMetrics(Objects.requireNonNull(name));
+    MetricsExporter.DEFAULT.register(metrics);
+  }
+
+  @Override
+  public void put(String uuid, V rec) {
+    Objects.requireNonNull(uuid);
+    var entry = new Entry<>(rec, weigh(rec));
+    synchronized (stripe(uuid)) {
+      store.put(uuid, rec);
+      synchronized (main) {
+        record(uuid);
+        remove(uuid);
+        admit(uuid, entry);
+      }
+    }
+  }
+
+  @Override
+  public Optional<V> get(String uuid) {
+    Objects.requireNonNull(uuid);
+    synchronized (main) {
+      record(uuid);
+      var entry = lookup(uuid);
+      if (entry != null) {
+        metrics.hits.incrementAndGet();
+        return Optional.of(entry.value());
+      }
+    }
+
+    metrics.misses.incrementAndGet();
+    // no put or delete of the key can happen between the read and the admission
+    synchronized (stripe(uuid)) {
+      var result = store.get(uuid);
+      if (result.isPresent()) {
+        var entry = new Entry<>(result.get(), weigh(result.get()));
+        synchronized (main) {
+          if (!main.containsKey(uuid) && !window.containsKey(uuid))
+            admit(uuid, entry);
+        }
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public boolean delete(String uuid) {
+    Objects.requireNonNull(uuid);
+    synchronized (stripe(uuid)) {
+      var deleted = store.delete(uuid);
+      invalidate(uuid);
+      return deleted;
+    }
+  }
+
+  /**
+   * Lists the keys of the other store.
+   */
+  @Override
+  public Stream<String> keys(String prefix) {
+    return store.keys(prefix);
+  }
+
+  /**
+   * Reads the entries from the other store, without caching them.
+   */
+  @Override
+  public Stream<Map.Entry<String, V>> entries(String prefix, boolean parallel) {
+    return store.entries(prefix, parallel);
+  }
+
+  /**
+   * Moves the files of the other store, see FSKV.migrate().
+   */
+  @Override
+  public long migrate() {
+    return store.migrate();
+  }
+
+  /**
+   * Drops the cached value of the key, if any.
+   */
+  public void invalidate(String uuid) {
+    synchronized (main) {
+      remove(uuid);
+    }
+  }
+
+  /**
+   * Drops the cached values and unregisters the metrics.
+   * The other store is left open.
+   */
+  @Override
+  public void close() {
+    synchronized (main) {
+      window.clear();
+      main.clear();
+      windowWeight = 0;
+      mainWeight = 0;
+    }
+    MetricsExporter.DEFAULT.unregister(metrics);
+  }
+
+  long size() {
+    synchronized (main) {
+      return (long) main.size() + window.size();
+    }
+  }
+
+  private Object stripe(String uuid) {
+    return stripes[Math.floorMod(uuid.hashCode(), STRIPES)];
+  }
+
+  private Entry<V> lookup(String uuid) {
+    var entry = window.get(uuid);
+    return entry != null ? entry : main.get(uuid);
+  }
+
+  private void record(String uuid) {
+    if (sketch != null)
+      sketch.increment(uuid.hashCode());
+  }
+
+  private void admit(String uuid, Entry<V> entry) {
+    if (entry.weight() > maxWeight)
+      return;
+    if (sketch == null) {
+      main.put(uuid, entry);
+      mainWeight += entry.weight();
+      while (mainWeight > maxWeight)
+        evictMainEldest();
+      return;
+    }
+
+    window.put(uuid, entry);
+    windowWeight += entry.weight();
+    while (windowWeight > maxWindowWeight && !window.isEmpty()) {
+      var candidate = eldest(window);
+      window.remove(candidate.getKey());
+      windowWeight -= candidate.getValue().weight();
+      promote(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  /**
+   * Moves a value out of the window into main, if it is used more often than
+   * the least recently used value of main, that it would evict.
+   */
+  private void promote(String uuid, Entry<V> entry) {
+    var maxMainWeight = maxWeight - maxWindowWeight;
+    if (entry.weight() > maxMainWeight) {
+      metrics.evicted.incrementAndGet();
+      return;
+    }
+    if (mainWeight + entry.weight() > maxMainWeight && !main.isEmpty()) {
+      var victim = eldest(main).getKey();
+      if (sketch.frequency(uuid.hashCode()) <= sketch.frequency(victim.hashCode())) {
+        metrics.evicted.incrementAndGet();
+        return;
+      }
+    }
+    while (mainWeight + entry.weight() > maxMainWeight)
+      evictMainEldest();
+    main.put(uuid, entry);
+    mainWeight += entry.weight();
+  }
+
+  private void evictMainEldest() {
+    var eldest = eldest(main);
+    main.remove(eldest.getKey());
+    mainWeight -= eldest.getValue().weight();
+    metrics.evicted.incrementAndGet();
+  }
+
+  private void remove(String uuid) {
+    var entry = window.remove(uuid);
+    if (entry != null)
+      windowWeight -= entry.weight();
+    entry = main.remove(uuid);
+    if (entry != null)
+      mainWeight -= entry.weight();
+  }
+
+  private static <V> Map.Entry<String, Entry<V>> eldest(LinkedHashMap<String, Entry<V>> map) {
+    return map.entrySet().iterator().next();
+  }
+
+  private long weigh(V rec) {
+    return weight == Weight.ENTRIES ? 1 : format.encode(rec).length;
+  }
+
+  /**
+   * Count-min sketch of 4 bit counters, halved periodically so that it counts
+   * the recent accesses only.
+   */
+  static final class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+    private final byte[] table;
+    private final int mask;
+    private final int resetAt;
+    private int additions;
+
+    FrequencySketch(long capacity) {
+      var size = Integer.highestOneBit((int) Math.max(1024, Math.min(capacity * 8, 1 << 24)) - 1) << 1;
+      this.table = new byte[size];
+      this.mask = size - 1;
+      this.resetAt = (int) Math.min(Integer.MAX_VALUE, Math.max(64, capacity) * 10);
+    }
+
+    void increment(int hash) {
+      var added = false;
+      for (var seed: SEEDS) {
+        var i = index(hash, seed);
+        if (table[i] < MAX_COUNT) {
+          table[i]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= resetAt)
+        halve();
+    }
+
+    int frequency(int hash) {
+      var min = MAX_COUNT;
+      for (var seed: SEEDS)
+        min = Math.min(min, table[index(hash, seed)]);
+      return min;
+    }
+
+    private int index(int hash, int seed) {
+      var h = (hash ^ seed) * 0x45d9f3b;
+      h ^= h >>> 16;
+      return h & mask;
+    }
+
+    private void halve() {
+      for (var i = 0; i < table.length; i++)
+        table[i] >>= 1;
+      additions /= 2;
+    }
+  }
+
+  class CacheMetrics implements MetricRegisterable {
+    final String name;
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+
+    CacheMetrics(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void register(BiConsumer<String, Supplier<String>> registerFunction) {
+      registerFunction.accept(label("fskv_cache_hits_total"), hits::toString);
+      registerFunction.accept(label("fskv_cache_misses_total"), misses::toString);
+      registerFunction.accept(label("fskv_cache_evictions_total"), evicted::toString);
+      registerFunction.accept(label("fskv_cache_entries"), () -> valueOf(size()));
+      registerFunction.accept(label("fskv_cache_weight"), () -> {
+        synchronized (main) {
+          return valueOf(mainWeight + windowWeight);
+        }
+      });
+    }
+
+    private String label(String metric) {
+      return metric+"{cache=\""+name+"\"}";
+    }
+  }
+}
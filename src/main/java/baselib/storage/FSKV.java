@@ -15,45 +15,405 @@
  */
 package baselib.storage;
 
+import baselib.DefaultExecutor;
 import static baselib.ExceptionWrapper.ex;
-import static baselib.json.JSONBuilder.toJSON;
-import static baselib.json.JSONReader.toRecord;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 /**
  * File system based key-value store.
+ *
+ * Values are one file per key, all in the same directory unless sharded:
+ * with N shard levels each file goes under N levels of subdirectories named
+ * after the hash of the key (dir/3f/a1/key.json), 256 per level, so that no
+ * directory grows too large to list, lookup or back up.
+ * The flat layout can be moved to the sharded one with migrate(): until it is
+ * over, the values still in the flat layout are not found, so run it before
+ * using the store.
+ *
+ * A put writes a temp file next to the value and renames it over the value,
+ * so a crash leaves either the old value or the new one, never a truncated
+ * one. The Durability tells whether the put also waits for the value to be
+ * on disk. A crash can leave behind *.tmp files, which are never read.
+ *
+ * getAll() and putAll() work on many keys at once, running up to a number of
+ * gets or puts at the same time so that their I/O waits overlap. By default
+ * they run on a shared executor of virtual threads when the JVM supports
+ * them, otherwise of daemon threads.
+ *
  * @param <V> type of the storage record.
  * @author Raffaele Ragni
  */
 public class FSKV<V> {
-  static final String EXTENSION = ".json";
+  public enum Durability {
+    /** Atomic writes, left to the OS to flush. */
+    NONE,
+    /** Each put syncs its file and directory before returning. */
+    SYNC,
+    /** Concurrent puts are synced together, sharing the directory syncs. */
+    GROUP
+  }
+
+  public static final int DEFAULT_PARALLELISM = 16;
+  static final int MAX_SHARD_LEVELS = 4;
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final String SHARD_GLOB = "[0-9a-f][0-9a-f]";
+
   final Path dir;
   final Class<V> clazz;
+  final ValueFormat format;
+  final int shardLevels;
+  final Durability durability;
+  final GroupCommit groupCommit;
 
   public FSKV(Path dir, Class<V> clazz) {
+    this(dir, clazz, ValueFormat.JSON);
+  }
+
+  /**
+   *
+   * @param dir the directory where values are stored
+   * @param clazz the record class of the values
+   * @param format the serialization of the values, files will have the
+   *               extension of the format.
+   */
+  public FSKV(Path dir, Class<V> clazz, ValueFormat format) {
+    this(dir, clazz, format, 0);
+  }
+
+  /**
+   *
+   * @param shardLevels levels of hash subdirectories for the files, 0 to 4.
+   */
+  public FSKV(Path dir, Class<V> clazz, ValueFormat format, int shardLevels) {
+    this(dir, clazz, format, shardLevels, Durability.NONE);
+  }
+
+  /**
+   *
+   * @param durability whether puts wait for their value to be on disk.
+   */
+  public FSKV(Path dir, Class<V> clazz, ValueFormat format, int shardLevels, Durability durability) {
     Objects.requireNonNull(dir);
     Objects.requireNonNull(clazz);
+    Objects.requireNonNull(format);
+    Objects.requireNonNull(durability);
+    if (shardLevels < 0 || shardLevels > MAX_SHARD_LEVELS)
+      throw new IllegalArgumentException("shard levels must be between 0 and " + MAX_SHARD_LEVELS);
     ex(() -> Files.createDirectories(dir));
 
     this.dir = dir;
     this.clazz = clazz;
+    this.format = format;
+    this.shardLevels = shardLevels;
+    this.durability = durability;
+    this.groupCommit = durability == Durability.GROUP ? new GroupCommit(DefaultExecutor.get()) : null;
+  }
+
+  /**
+   * For stores in front of another store, taking its configuration.
+   * They must override the methods touching the files, and delegate them.
+   */
+  FSKV(FSKV<V> store) {
+    this.dir = store.dir;
+    this.clazz = store.clazz;
+    this.format = store.format;
+    this.shardLevels = store.shardLevels;
+    this.durability = store.durability;
+    this.groupCommit = store.groupCommit;
   }
 
   public void put(String uuid, V rec) {
     Objects.requireNonNull(uuid);
     Objects.requireNonNull(rec);
 
-    var itemPath = dir.resolve(uuid + EXTENSION).normalize();
+    var itemPath = pathOf(uuid);
+
+    var itemBytes = format.encode(rec);
+    ex(() -> {
+      var tempPath = itemPath.resolveSibling(itemPath.getFileName() + "."
+        + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_EXTENSION);
+      try {
+        write(tempPath, itemBytes);
+      } catch (NoSuchFileException e) {
+        if (shardLevels == 0)
+          throw e;
+        // first file of the shard
+        Files.createDirectories(itemPath.getParent());
+        if (durability != Durability.NONE)
+          for (var shard = itemPath.getParent(); !shard.equals(dir); shard = shard.getParent())
+            GroupCommit.syncDirectory(shard.getParent());
+        write(tempPath, itemBytes);
+      }
+      try {
+        commit(tempPath, itemPath);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(tempPath);
+        throw e;
+      }
+    });
+  }
+
+  private void write(Path path, byte[] bytes) throws IOException {
+    try (var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      var buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      if (durability != Durability.NONE)
+        channel.force(true);
+    }
+  }
+
+  private void commit(Path tempPath, Path itemPath) throws IOException {
+    switch (durability) {
+      case NONE -> Files.move(tempPath, itemPath, StandardCopyOption.ATOMIC_MOVE);
+      case SYNC -> {
+        Files.move(tempPath, itemPath, StandardCopyOption.ATOMIC_MOVE);
+        GroupCommit.syncDirectory(itemPath.getParent());
+      }
+      case GROUP -> groupCommit.commit(tempPath, itemPath);
+    }
+  }
+
+  /**
+   * Gets the values of all the keys, DEFAULT_PARALLELISM at a time.
+   * @return the values found, in the order of the keys.
+   */
+  public Map<String, V> getAll(Collection<String> uuids) {
+    return getAll(uuids, DefaultExecutor.get(), DEFAULT_PARALLELISM);
+  }
+
+  /**
+   *
+   * @param uuids the keys to get
+   * @param executor runs the gets, together with the calling thread
+   * @param parallelism how many gets can run at the same time
+   * @return the values found, in the order of the keys.
+   */
+  public Map<String, V> getAll(Collection<String> uuids, Executor executor, int parallelism) {
+    var keys = List.copyOf(uuids);
+    var values = new ArrayList<Optional<V>>(keys.size());
+    for (var i = 0; i < keys.size(); i++)
+      values.add(null);
+    runAll(keys.size(), i -> values.set(i, get(keys.get(i))), executor, parallelism);
+
+    var result = new LinkedHashMap<String, V>();
+    for (var i = 0; i < keys.size(); i++) {
+      var index = i;
+      values.get(i).ifPresent(v -> result.put(keys.get(index), v));
+    }
+    return result;
+  }
+
+  /**
+   * Puts all the entries, DEFAULT_PARALLELISM at a time.
+   */
+  public void putAll(Map<String, V> recs) {
+    putAll(recs, DefaultExecutor.get(), DEFAULT_PARALLELISM);
+  }
+
+  /**
+   *
+   * @param recs the values by key
+   * @param executor runs the puts, together with the calling thread
+   * @param parallelism how many puts can run at the same time
+   */
+  public void putAll(Map<String, V> recs, Executor executor, int parallelism) {
+    var entries = List.copyOf(recs.entrySet());
+    runAll(entries.size(), i -> put(entries.get(i).getKey(), entries.get(i).getValue()), executor, parallelism);
+  }
+
+  /**
+   * Runs the task for each index from 0 to count, with at most parallelism
+   * tasks at the same time, one of them on the calling thread.
+   * The first failure is thrown once all the tasks are over.
+   */
+  private static void runAll(int count, IntConsumer task, Executor executor, int parallelism) {
+    Objects.requireNonNull(executor);
+    if (parallelism < 1)
+      throw new IllegalArgumentException("parallelism must be positive");
+    var next = new AtomicInteger();
+    Runnable worker = () -> {
+      for (var i = next.getAndIncrement(); i < count; i = next.getAndIncrement())
+        task.accept(i);
+    };
+    var workers = new ArrayList<CompletableFuture<Void>>();
+    for (var i = 1; i < Math.min(parallelism, count); i++)
+      workers.add(CompletableFuture.runAsync(worker, executor));
+    workers.add(CompletableFuture.runAsync(worker, Runnable::run));
+    try {
+      CompletableFuture.allOf(workers.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause)
+        throw cause;
+      throw e;
+    }
+  }
+
+  /**
+   * Deletes the value of the key.
+   * Unless durability is NONE, the removal is synced to disk before returning.
+   * @return true if there was a value.
+   */
+  public boolean delete(String uuid) {
+    Objects.requireNonNull(uuid);
+    var itemPath = pathOf(uuid);
+    return ex(() -> {
+      var deleted = Files.deleteIfExists(itemPath);
+      if (deleted && durability != Durability.NONE)
+        GroupCommit.syncDirectory(itemPath.getParent());
+      return deleted;
+    });
+  }
+
+  /**
+   * Lists the keys of all the values, reading the directories as the stream
+   * is consumed. Close the stream to release the directories.
+   */
+  public Stream<String> keys() {
+    return keys("");
+  }
+
+  /**
+   * Lists the keys starting with the prefix.
+   * Files are not ordered by key, so all the keys are still read.
+   */
+  public Stream<String> keys(String prefix) {
+    Objects.requireNonNull(prefix);
+    var extension = format.extension();
+    var directories = Stream.of(dir);
+    for (var level = 0; level < shardLevels; level++)
+      directories = directories.flatMap(d -> list(d, SHARD_GLOB));
+    return directories
+      .flatMap(d -> list(d, "*" + extension))
+      .map(p -> p.getFileName().toString())
+      .map(name -> name.substring(0, name.length() - extension.length()))
+      .filter(key -> key.startsWith(prefix));
+  }
+
+  /**
+   * Streams the keys and their values, reading each value as the stream is
+   * consumed. Close the stream to release the directories.
+   */
+  public Stream<Map.Entry<String, V>> entries() {
+    return entries("", false);
+  }
+
+  /**
+   *
+   * @param prefix only the keys starting with it
+   * @param parallel whether the values are read and decoded in parallel, in
+   *                 the common fork join pool.
+   */
+  public Stream<Map.Entry<String, V>> entries(String prefix, boolean parallel) {
+    var keys = keys(prefix);
+    return (parallel ? keys.parallel() : keys)
+      // deleted meanwhile if missing
+      .flatMap(key -> get(key).map(value -> Map.entry(key, value)).stream());
+  }
+
+  private static Stream<Path> list(Path directory, String glob) {
+    var files = ex(() -> Files.newDirectoryStream(directory, glob));
+    return StreamSupport.stream(files.spliterator(), false)
+      .onClose(() -> ex(files::close));
+  }
+
+  /**
+   * Moves the files of the flat layout, directly in the directory, to their
+   * shard directories. Can be interrupted and run again.
+   * A value already in its shard directory was put after the flat one, which
+   * is then deleted instead of moved.
+   * @return the number of files moved.
+   */
+  public long migrate() {
+    if (shardLevels == 0)
+      return 0;
+    var extension = format.extension();
+    return ex(() -> {
+      var moved = 0L;
+      try (var files = Files.newDirectoryStream(dir, "*" + extension)) {
+        for (var path: files) {
+          if (!Files.isRegularFile(path))
+            continue;
+          var name = path.getFileName().toString();
+          var target = pathOf(name.substring(0, name.length() - extension.length()));
+          Files.createDirectories(target.getParent());
+          if (moveIfAbsent(path, target))
+            moved++;
+        }
+      }
+      return moved;
+    });
+  }
+
+  /**
+   * Moves the file unless the target exists, atomically where the file
+   * system has hard links.
+   * @return false if the target existed, and the file was deleted.
+   */
+  private static boolean moveIfAbsent(Path path, Path target) throws IOException {
+    try {
+      try {
+        Files.createLink(target, path);
+        Files.delete(path);
+      } catch (UnsupportedOperationException e) {
+        Files.move(path, target);
+      }
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      Files.delete(path);
+      return false;
+    }
+  }
+
+  /**
+   * @return the file of the key, checked to stay in its directory.
+   */
+  final Path pathOf(String uuid) {
+    var parent = shardOf(uuid);
+    var itemPath = parent.resolve(uuid + format.extension()).normalize();
     ensureNotParented(itemPath);
+    if (!itemPath.startsWith(parent))
+      throw new IllegalArgumentException("Path is not absolute");
+    return itemPath;
+  }
 
-    var itemString = toJSON(rec);
-    ex(() -> Files.writeString(itemPath, itemString));
+  private Path shardOf(String uuid) {
+    if (shardLevels == 0)
+      return dir;
+    var crc = new CRC32();
+    crc.update(uuid.getBytes(UTF_8));
+    var hash = crc.getValue();
+    var parent = dir;
+    for (var level = 0; level < shardLevels; level++)
+      parent = parent.resolve(Integer.toHexString((int) (hash >>> (24 - level * 8)) & 0xFF | 0x100).substring(1));
+    return parent;
   }
 
   final void ensureNotParented(Path itemPath) {
@@ -66,11 +426,10 @@ public class FSKV<V> {
       try {
         Objects.requireNonNull(uuid);
 
-        var itemPath = dir.resolve(uuid + EXTENSION).normalize();
-        ensureNotParented(itemPath);
+        var itemPath = pathOf(uuid);
 
-        var itemString = Files.readString(itemPath);
-        return of(toRecord(clazz, itemString));
+        var itemBytes = Files.readAllBytes(itemPath);
+        return of(format.decode(clazz, ByteBuffer.wrap(itemBytes)));
       } catch (NoSuchFileException ex) {
         return empty();
       }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.ExceptionWrapper.ex;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes written files durable in groups: the commits arriving while a group
+ * is being synced wait for it and are then renamed all together by one of
+ * them, sharing the sync of their directories.
+ * Each file must be synced by its own caller before the commit, so the files
+ * of a group are synced in parallel, and a target is either the previous
+ * complete file or the new complete one.
+ * The directories of a group are synced in parallel on the executor.
+ *
+ * Thread safe.
+ * @author Raffaele Ragni
+ */
+final class GroupCommit {
+  // windows can not open directories, and makes the renames durable by itself
+  private static final boolean DIRECTORY_SYNC = !System.getProperty("os.name", "")
+    .toLowerCase(Locale.ROOT).startsWith("windows");
+
+  private record Pending(Path temp, Path target, CompletableFuture<Void> done) {}
+
+  private final Executor executor;
+  private final ReentrantLock flushing = new ReentrantLock();
+  private List<Pending> pending = new ArrayList<>();
+
+  GroupCommit(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Renames the synced temp file to the target, and returns after the rename
+   * is durable.
+   */
+  void commit(Path temp, Path target) {
+    var entry = new Pending(temp, target, new CompletableFuture<>());
+    synchronized (this) {
+      pending.add(entry);
+    }
+    flushing.lock();
+    try {
+      // an earlier flush may have done it already
+      if (!entry.done().isDone())
+        flush();
+    } finally {
+      flushing.unlock();
+    }
+    ex(() -> entry.done().get());
+  }
+
+  private void flush() {
+    List<Pending> group;
+    synchronized (this) {
+      group = pending;
+      pending = new ArrayList<>();
+    }
+    var directories = new LinkedHashMap<Path, List<Pending>>();
+    for (var entry: group) {
+      try {
+        Files.move(entry.temp(), entry.target(), StandardCopyOption.ATOMIC_MOVE);
+        directories.computeIfAbsent(entry.target().getParent(), d -> new ArrayList<>()).add(entry);
+      } catch (IOException | RuntimeException e) {
+        entry.done().completeExceptionally(e);
+      }
+    }
+    var syncs = directories.entrySet().stream()
+      .map(directory -> CompletableFuture
+        .runAsync(() -> ex(() -> syncDirectory(directory.getKey())), directories.size() == 1 ? Runnable::run : executor)
+        .whenComplete((result, e) -> directory.getValue().forEach(entry -> {
+          if (e == null)
+            entry.done().complete(null);
+          else
+            entry.done().completeExceptionally(e);
+        })))
+      .toArray(CompletableFuture[]::new);
+    CompletableFuture.allOf(syncs).exceptionally(e -> null).join();
+  }
+
+  /**
+   * Makes the renames in the directory durable.
+   * Does nothing on windows, where directories can not be synced.
+   */
+  static void syncDirectory(Path directory) throws IOException {
+    if (!DIRECTORY_SYNC)
+      return;
+    try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.ExceptionWrapper.ex;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * An FSKV indexing the values by some of their record components, in front
+ * of another FSKV.
+ * findBy() finds the values having a component equal to a value, and
+ * findRange() the ones having it within a range, reading from the other store
+ * only the matching values.
+ * Indexed components can be strings, numbers, booleans or chars;
+ * values with a null component are not indexed for it.
+ *
+ * The indexes are kept in memory and logged to the file .index.log in the
+ * directory of the other store: each put or delete appends a binary record
+ * with the key and its indexed values, strings as length prefixed UTF-8, and
+ * the log is rewritten when it grows to twice the number of keys.
+ * Closing the store appends a marker record. When the store is opened the
+ * indexes are read back from the log if it ends with the marker, otherwise
+ * they are rebuilt reading all the values: the log is missing, unreadable,
+ * for other components, or the store was not closed, as after a crash.
+ * After values were written bypassing this store, call rebuildIndexes().
+ *
+ * Close the store to release the log, or the next opening rebuilds the
+ * indexes.
+ *
+ * Thread safe if the other store is.
+ * @param <V> type of the storage record.
+ * @author Raffaele Ragni
+ */
+public class IndexedFSKV<V> extends FSKV<V> implements AutoCloseable {
+  static final String LOG_NAME = ".index.log";
+  private static final int LOG_MAGIC = 0x49445831;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte CLOSED = 3;
+  private static final int STRIPES = 64;
+  // records allowed in the log on top of twice the keys before rewriting it
+  private static final int LOG_SLACK = 1024;
+  private static final Set<Class<?>> INDEXABLE = Set.of(
+    String.class, Integer.class, Long.class, Short.class, Byte.class,
+    Double.class, Float.class, Boolean.class, Character.class);
+
+  private final FSKV<V> store;
+  private final List<Index> indexes;
+  // the indexed values of each key, in the order of the indexes
+  private final Map<String, Object[]> indexed = new ConcurrentHashMap<>();
+  private final Object[] stripes = new Object[STRIPES];
+  // puts share it, rebuilding and rewriting the log take it exclusively
+  private final ReentrantReadWriteLock rebuilding = new ReentrantReadWriteLock();
+  private final Path logPath;
+  private FileChannel log;
+  private long logRecords;
+
+  private static final class Index {
+    final String name;
+    final Class<?> type;
+    final Method accessor;
+    // guarded by itself
+    final TreeMap<Object, Set<String>> keys = new TreeMap<>();
+
+    Index(RecordComponent component) {
+      this.name = component.getName();
+      this.type = MethodType.methodType(component.getType()).wrap().returnType();
+      this.accessor = component.getAccessor();
+    }
+  }
+
+  /**
+   *
+   * @param store the store to index
+   * @param components names of the record components to index
+   */
+  public IndexedFSKV(final FSKV<V> store, final String... components) {
+    super(store);
+    if (components.length == 0)
+      throw new IllegalArgumentException("no components to index");
+    this.store = store;
+    this.indexes = Arrays.stream(components).map(this::index).toList();
+    this.logPath = store.dir.resolve(LOG_NAME);
+    for (var i = 0; i < STRIPES; i++)
+      stripes[i] = new Object();
+    ex(this::open);
+  }
+
+  @Override
+  public void put(String uuid, V rec) {
+    Objects.requireNonNull(uuid);
+    Objects.requireNonNull(rec);
+    var values = valuesOf(rec);
+    rebuilding.readLock().lock();
+    try {
+      synchronized (stripe(uuid)) {
+        store.put(uuid, rec);
+        update(uuid, values);
+        ex(() -> append(uuid, values));
+      }
+    } finally {
+      rebuilding.readLock().unlock();
+    }
+    compactLogIfNeeded();
+  }
+
+  @Override
+  public Optional<V> get(String uuid) {
+    return store.get(uuid);
+  }
+
+  @Override
+  public boolean delete(String uuid) {
+    Objects.requireNonNull(uuid);
+    boolean deleted;
+    rebuilding.readLock().lock();
+    try {
+      synchronized (stripe(uuid)) {
+        deleted = store.delete(uuid);
+        if (update(uuid, null))
+          ex(() -> append(uuid, null));
+      }
+    } finally {
+      rebuilding.readLock().unlock();
+    }
+    compactLogIfNeeded();
+    return deleted;
+  }
+
+  @Override
+  public Stream<String> keys(String prefix) {
+    return store.keys(prefix);
+  }
+
+  @Override
+  public Stream<Map.Entry<String, V>> entries(String prefix, boolean parallel) {
+    return store.entries(prefix, parallel);
+  }
+
+  /**
+   * Moves the files of the other store, see FSKV.migrate().
+   */
+  @Override
+  public long migrate() {
+    return store.migrate();
+  }
+
+  /**
+   * Finds the values having the component equal to the value.
+   * @return the values by key.
+   */
+  public Map<String, V> findBy(String component, Object value) {
+    Objects.requireNonNull(value);
+    var index = indexOf(component, value);
+    List<String> keys;
+    synchronized (index.keys) {
+      keys = new ArrayList<>(index.keys.getOrDefault(value, Set.of()));
+    }
+    return fetch(index, keys, value::equals);
+  }
+
+  /**
+   * Finds the values having the component from (inclusive) to (exclusive).
+   * @return the values by key, in the order of the component.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public Map<String, V> findRange(String component, Object from, Object to) {
+    Objects.requireNonNull(from);
+    Objects.requireNonNull(to);
+    var index = indexOf(component, from);
+    indexOf(component, to);
+    var keys = new ArrayList<String>();
+    synchronized (index.keys) {
+      index.keys.subMap(from, true, to, false).values().forEach(keys::addAll);
+    }
+    return fetch(index, keys, v -> ((Comparable) from).compareTo(v) <= 0 && ((Comparable) to).compareTo(v) > 0);
+  }
+
+  /**
+   * Rebuilds the indexes reading all the values of the other store, and
+   * rewrites the log.
+   */
+  public void rebuildIndexes() {
+    rebuilding.writeLock().lock();
+    try {
+      indexed.clear();
+      for (var index: indexes)
+        synchronized (index.keys) {
+          index.keys.clear();
+        }
+      try (var entries = store.entries("", true)) {
+        entries.forEach(e -> update(e.getKey(), valuesOf(e.getValue())));
+      }
+      ex(this::rewriteLog);
+    } finally {
+      rebuilding.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Marks the log as complete and closes it.
+   */
+  @Override
+  public synchronized void close() {
+    if (log == null || !log.isOpen())
+      return;
+    ex(() -> {
+      // the marker must not reach the disk before the records it covers
+      log.force(true);
+      write(new byte[]{CLOSED});
+      log.force(true);
+      log.close();
+    });
+  }
+
+  private Index index(String component) {
+    var recordComponent = Arrays.stream(clazz.getRecordComponents())
+      .filter(c -> c.getName().equals(component))
+      .findFirst()
+      .orElseThrow(() -> new IllegalArgumentException("no component " + component + " in " + clazz.getName()));
+    var index = new Index(recordComponent);
+    if (!INDEXABLE.contains(index.type))
+      throw new IllegalArgumentException("component " + component + " can not be indexed");
+    return index;
+  }
+
+  private Index indexOf(String component, Object value) {
+    var index = indexes.stream()
+      .filter(i -> i.name.equals(component))
+      .findFirst()
+      .orElseThrow(() -> new IllegalArgumentException("component " + component + " is not indexed"));
+    if (!index.type.isInstance(value))
+      throw new IllegalArgumentException("component " + component + " is a " + index.type.getName());
+    return index;
+  }
+
+  private Object stripe(String uuid) {
+    return stripes[Math.floorMod(uuid.hashCode(), STRIPES)];
+  }
+
+  private Object[] valuesOf(V rec) {
+    var values = new Object[indexes.size()];
+    for (var i = 0; i < values.length; i++) {
+      var accessor = indexes.get(i).accessor;
+      values[i] = ex(() -> accessor.invoke(rec));
+    }
+    return values;
+  }
+
+  /**
+   * Reads the values of the keys from the other store, skipping the ones
+   * changed meanwhile to no longer match.
+   */
+  private Map<String, V> fetch(Index index, Collection<String> keys, Predicate<Object> matches) {
+    var result = new LinkedHashMap<String, V>();
+    store.getAll(keys).forEach((key, value) -> {
+      if (matches.test(ex(() -> index.accessor.invoke(value))))
+        result.put(key, value);
+    });
+    return result;
+  }
+
+  /**
+   * Moves the key in the indexes to the new values, null to remove it.
+   * @return true if the key was indexed or is now.
+   */
+  private boolean update(String uuid, Object[] values) {
+    var old = values == null ? indexed.remove(uuid) : indexed.put(uuid, values);
+    for (var i = 0; i < indexes.size(); i++) {
+      var index = indexes.get(i);
+      synchronized (index.keys) {
+        if (old != null && old[i] != null) {
+          var keys = index.keys.get(old[i]);
+          keys.remove(uuid);
+          if (keys.isEmpty())
+            index.keys.remove(old[i]);
+        }
+        if (values != null && values[i] != null)
+          index.keys.computeIfAbsent(values[i], v -> new HashSet<>()).add(uuid);
+      }
+    }
+    return old != null || values != null;
+  }
+
+  private void open() throws IOException {
+    if (!Files.exists(logPath) || !readLog()) {
+      rebuildIndexes();
+      return;
+    }
+    log = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    // drop the marker before any write, or a crash would leave a log still looking closed
+    log.truncate(log.size() - 1);
+    log.force(true);
+    logRecords--;
+  }
+
+  /**
+   * @return false if the log can not be used.
+   */
+  private boolean readLog() throws IOException {
+    var size = Files.size(logPath);
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+      if (in.readInt() != LOG_MAGIC || !header().equals(readHeader(in, size)))
+        return false;
+      logRecords = 1;
+      var closed = false;
+      for (var type = in.read(); type != -1; type = in.read()) {
+        closed = type == CLOSED;
+        if (type == PUT) {
+          var key = readString(in, size);
+          var values = new Object[indexes.size()];
+          for (var i = 0; i < values.length; i++)
+            values[i] = readValue(in, indexes.get(i).type, size);
+          update(key, values);
+        } else if (type == DELETE) {
+          update(readString(in, size), null);
+        } else if (type != CLOSED) {
+          throw new IOException("unknown record type " + type);
+        }
+        logRecords++;
+      }
+      if (closed)
+        return true;
+    } catch (IOException | RuntimeException e) {
+      // cut by a crash, or not a log of this store
+    }
+    indexed.clear();
+    for (var index: indexes)
+      index.keys.clear();
+    return false;
+  }
+
+  private void append(String uuid, Object[] values) throws IOException {
+    var record = recordOf(uuid, values);
+    synchronized (this) {
+      write(record);
+      logRecords++;
+    }
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    var buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining())
+      log.write(buffer);
+  }
+
+  private void compactLogIfNeeded() {
+    synchronized (this) {
+      if (logRecords <= 2L * indexed.size() + LOG_SLACK)
+        return;
+    }
+    rebuilding.writeLock().lock();
+    try {
+      if (logRecords > 2L * indexed.size() + LOG_SLACK)
+        ex(this::rewriteLog);
+    } finally {
+      rebuilding.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the current indexes to a new log replacing the old one.
+   * Puts must be excluded.
+   */
+  private synchronized void rewriteLog() throws IOException {
+    if (log != null)
+      log.close();
+    var temp = logPath.resolveSibling(LOG_NAME + ".tmp");
+    try (var out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+      var header = new DataOutputStream(out);
+      header.writeInt(LOG_MAGIC);
+      header.writeInt(indexes.size());
+      for (var index: indexes)
+        writeString(header, index.name);
+      for (var e: indexed.entrySet())
+        out.write(recordOf(e.getKey(), e.getValue()));
+    }
+    Files.move(temp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    logRecords = 1L + indexed.size();
+  }
+
+  private List<String> header() {
+    return indexes.stream().map(i -> i.name).toList();
+  }
+
+  private static List<String> readHeader(DataInputStream in, long size) throws IOException {
+    var count = in.readInt();
+    if (count < 0 || count > size)
+      throw new IOException("invalid header");
+    var names = new ArrayList<String>(count);
+    for (var i = 0; i < count; i++)
+      names.add(readString(in, size));
+    return names;
+  }
+
+  /**
+   * @return a put record with the key and its values, a delete record if
+   *         the values are null.
+   */
+  private static byte[] recordOf(String uuid, Object[] values) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    out.writeByte(values == null ? DELETE : PUT);
+    writeString(out, uuid);
+    if (values != null)
+      for (var value: values)
+        writeValue(out, value);
+    return bytes.toByteArray();
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value instanceof String v)
+      writeString(out, v);
+    else if (value instanceof Integer v)
+      out.writeInt(v);
+    else if (value instanceof Long v)
+      out.writeLong(v);
+    else if (value instanceof Short v)
+      out.writeShort(v);
+    else if (value instanceof Byte v)
+      out.writeByte(v);
+    else if (value instanceof Double v)
+      out.writeDouble(v);
+    else if (value instanceof Float v)
+      out.writeFloat(v);
+    else if (value instanceof Boolean v)
+      out.writeBoolean(v);
+    else if (value instanceof Character v)
+      out.writeChar(v);
+  }
+
+  private static Object readValue(DataInputStream in, Class<?> type, long size) throws IOException {
+    if (!in.readBoolean())
+      return null;
+    if (type == String.class)
+      return readString(in, size);
+    if (type == Integer.class)
+      return in.readInt();
+    if (type == Long.class)
+      return in.readLong();
+    if (type == Short.class)
+      return in.readShort();
+    if (type == Byte.class)
+      return in.readByte();
+    if (type == Double.class)
+      return in.readDouble();
+    if (type == Float.class)
+      return in.readFloat();
+    if (type == Boolean.class)
+      return in.readBoolean();
+    return in.readChar();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    var bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in, long size) throws IOException {
+    var length = in.readInt();
+    if (length < 0 || length > size)
+      throw new IOException("invalid string length " + length);
+    var bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
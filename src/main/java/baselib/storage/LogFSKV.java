@@ -0,0 +1,454 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.ExceptionWrapper.ex;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An FSKV appending the values to a few large segment files instead of
+ * writing one file per key.
+ * Each put appends a record (checksum, key and value) to the active segment,
+ * and an in memory index maps each key to the position of its latest value.
+ * When the active segment is full a new one is started.
+ * A delete appends a tombstone record (a value length of -1) for the key.
+ *
+ * The index is rebuilt by scanning the segments when the store is opened; a
+ * record left incomplete by a crash at the end of the last segment is
+ * discarded. A segment is synced to disk before a new one is started, so an
+ * invalid record in any other segment is a corruption and fails the opening.
+ * Segments where most of the records were overwritten are compacted: their
+ * live records are appended again to the active segment, which is synced,
+ * and the segment file is deleted. Compaction runs on the executor when a
+ * segment is full, or by calling compact().
+ *
+ * With ReadMode.MAPPED the segments are read through memory mappings, so a
+ * get costs no system call and the value is decoded in place from the
+ * mapping. The mapping of a segment is extended when a read goes past it,
+ * which makes it best for stores read much more than written.
+ *
+ * Close the store to release the segment files.
+ *
+ * Thread safe.
+ * @param <V> type of the storage record.
+ * @author Raffaele Ragni
+ */
+public class LogFSKV<V> extends FSKV<V> implements AutoCloseable {
+  public enum ReadMode { CHANNEL, MAPPED }
+
+  private static final Logger LOGGER = Logger.getLogger(LogFSKV.class.getName());
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+  // crc, key length, value length
+  private static final int HEADER_SIZE = 12;
+  private static final int TOMBSTONE = -1;
+  // compact segments with at least this share of overwritten bytes
+  private static final double COMPACTION_THRESHOLD = 0.5;
+  // a segment can grow past its size by one value, this leaves room for it
+  private static final long MAX_MAPPED_SEGMENT_SIZE = 1L << 30;
+
+  private final long segmentSize;
+  private final Executor compactionExecutor;
+  private final ReadMode readMode;
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private volatile Segment active;
+
+  record Location(long segment, long offset, int keyLength, int length) {}
+
+  public LogFSKV(Path dir, Class<V> clazz) {
+    this(dir, clazz, ValueFormat.JSON);
+  }
+
+  public LogFSKV(Path dir, Class<V> clazz, ValueFormat format) {
+    this(dir, clazz, format, DEFAULT_SEGMENT_SIZE, LogFSKV::daemon);
+  }
+
+  /**
+   *
+   * @param dir the directory of the segment files
+   * @param clazz the record class of the values
+   * @param format the serialization of the values
+   * @param segmentSize the size after which a new segment is started
+   * @param compactionExecutor runs the compactions started when a segment is
+   *                           full, by default on a new daemon thread.
+   */
+  public LogFSKV(Path dir, Class<V> clazz, ValueFormat format, long segmentSize, Executor compactionExecutor) {
+    this(dir, clazz, format, segmentSize, compactionExecutor, ReadMode.CHANNEL);
+  }
+
+  /**
+   *
+   * @param readMode whether values are read with a positional read of the
+   *                 file or from a memory mapping of the segment. Mapped
+   *                 segments must be smaller than 1GB.
+   */
+  public LogFSKV(
+      Path dir,
+      Class<V> clazz,
+      ValueFormat format,
+      long segmentSize,
+      Executor compactionExecutor,
+      ReadMode readMode) {
+    super(dir, clazz, format);
+    if (segmentSize < 1)
+      throw new IllegalArgumentException("segment size must be positive");
+    if (readMode == ReadMode.MAPPED && segmentSize > MAX_MAPPED_SEGMENT_SIZE)
+      throw new IllegalArgumentException("mapped segments must be smaller than 1GB");
+    this.segmentSize = segmentSize;
+    this.compactionExecutor = Objects.requireNonNull(compactionExecutor);
+    this.readMode = Objects.requireNonNull(readMode);
+    ex(this::open);
+  }
+
+  @Override
+  public void put(String uuid, V rec) {
+    Objects.requireNonNull(uuid);
+    Objects.requireNonNull(rec);
+    var value = format.encode(rec);
+    var full = false;
+    synchronized (this) {
+      var location = ex(() -> append(uuid.getBytes(UTF_8), value));
+      discard(index.put(uuid, location));
+      if (active.size >= segmentSize) {
+        ex(this::roll);
+        full = true;
+      }
+    }
+    if (full)
+      compactInBackground();
+  }
+
+  @Override
+  public Optional<V> get(String uuid) {
+    Objects.requireNonNull(uuid);
+    var buffer = read(uuid);
+    return buffer == null ? Optional.empty() : Optional.of(format.decode(clazz, buffer));
+  }
+
+  @Override
+  public boolean delete(String uuid) {
+    Objects.requireNonNull(uuid);
+    var full = false;
+    synchronized (this) {
+      if (!index.containsKey(uuid))
+        return false;
+      ex(() -> appendTombstone(uuid.getBytes(UTF_8)));
+      discard(index.remove(uuid));
+      if (active.size >= segmentSize) {
+        ex(this::roll);
+        full = true;
+      }
+    }
+    if (full)
+      compactInBackground();
+    return true;
+  }
+
+  /**
+   * Lists the keys from the in memory index.
+   */
+  @Override
+  public Stream<String> keys(String prefix) {
+    Objects.requireNonNull(prefix);
+    return index.keySet().stream().filter(key -> key.startsWith(prefix));
+  }
+
+  /**
+   * @return the bytes of the value, null if there is none.
+   */
+  ByteBuffer read(String uuid) {
+    while (true) {
+      var location = index.get(uuid);
+      if (location == null)
+        return null;
+      var segment = segments.get(location.segment());
+      // a compaction moved the value meanwhile
+      if (segment == null)
+        continue;
+      try {
+        return readMode == ReadMode.MAPPED
+          ? segment.slice(location.offset(), location.length())
+          : segment.read(location.offset(), location.length());
+      } catch (ClosedChannelException e) {
+        continue; //NOSONAR
+      } catch (IOException e) {
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Compacts the full segments having most of their records overwritten.
+   */
+  public void compact() {
+    if (!compacting.compareAndSet(false, true))
+      return;
+    try {
+      // only segments already full: one rolled meanwhile may not be active yet
+      var activeId = active.id;
+      for (var segment: segments.headMap(activeId).values())
+        if (segment.dead.get() >= segment.size * COMPACTION_THRESHOLD)
+          ex(() -> compact(segment));
+    } finally {
+      compacting.set(false);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    for (var segment: segments.values())
+      ex(segment.channel::close);
+  }
+
+  int segmentCount() {
+    return segments.size();
+  }
+
+  private void compactInBackground() {
+    try {
+      compactionExecutor.execute(this::compact);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "compaction not started", e);
+    }
+  }
+
+  private static void daemon(Runnable runnable) {
+    var thread = new Thread(runnable, "fskv-compaction");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void compact(Segment segment) throws IOException {
+    // older segments may still have values the tombstones delete
+    var oldest = segment.id == segments.firstKey();
+    segment.scan((key, location) -> {
+      if (location.length() == TOMBSTONE) {
+        if (!oldest)
+          keepTombstone(key);
+        return;
+      }
+      if (!location.equals(index.get(key)))
+        return;
+      var value = segment.read(location.offset(), location.length());
+      var bytes = new byte[value.remaining()];
+      value.get(bytes);
+      synchronized (this) {
+        // written again meanwhile, a copy would replace the newer value on
+        // the next opening
+        if (!location.equals(index.get(key)))
+          return;
+        index.put(key, append(key.getBytes(UTF_8), bytes));
+        if (active.size >= segmentSize)
+          roll();
+      }
+    });
+    // the copies must be on disk before the segment is deleted
+    synchronized (this) {
+      active.channel.force(true);
+    }
+    GroupCommit.syncDirectory(dir);
+    segments.remove(segment.id);
+    segment.channel.close();
+    Files.deleteIfExists(segment.path);
+  }
+
+  private synchronized void keepTombstone(String key) throws IOException {
+    // not put again meanwhile
+    if (index.containsKey(key))
+      return;
+    appendTombstone(key.getBytes(UTF_8));
+    if (active.size >= segmentSize)
+      roll();
+  }
+
+  private void open() throws IOException {
+    try (var files = Files.list(dir)) {
+      for (var path: (Iterable<Path>) files::iterator) {
+        var matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+        if (matcher.matches()) {
+          var id = Long.parseLong(matcher.group(1));
+          segments.put(id, new Segment(id, path));
+        }
+      }
+    }
+    for (var segment: segments.values()) {
+      var end = segment.scan((key, location) -> discard(location.length() == TOMBSTONE
+        ? index.remove(key)
+        : index.put(key, location)));
+      if (end == segment.size)
+        continue;
+      // only the last segment can be left incomplete by a crash
+      if (segment.id != segments.lastKey()) {
+        close();
+        throw new IOException("corrupted record in " + segment.path + " at " + end);
+      }
+      LOGGER.log(Level.WARNING, "truncating incomplete records of {0} at {1}", new Object[]{segment.path, end});
+      segment.channel.truncate(end);
+      segment.size = end;
+    }
+    if (segments.isEmpty())
+      roll();
+    else
+      active = segments.lastEntry().getValue();
+  }
+
+  private void roll() throws IOException {
+    if (active != null)
+      active.channel.force(true);
+    var id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    var segment = new Segment(id, dir.resolve(String.format("segment-%08d.log", id)));
+    segments.put(id, segment);
+    active = segment;
+  }
+
+  private Location append(byte[] key, byte[] value) throws IOException {
+    var buffer = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+    var crc = new CRC32();
+    crc.update(key);
+    crc.update(value);
+    buffer.putInt((int) crc.getValue()).putInt(key.length).putInt(value.length).put(key).put(value).flip();
+    var offset = active.size;
+    while (buffer.hasRemaining())
+      active.channel.write(buffer, offset + buffer.position());
+    active.size += buffer.limit();
+    return new Location(active.id, offset + HEADER_SIZE + key.length, key.length, value.length);
+  }
+
+  private void appendTombstone(byte[] key) throws IOException {
+    var buffer = ByteBuffer.allocate(HEADER_SIZE + key.length);
+    var crc = new CRC32();
+    crc.update(key);
+    buffer.putInt((int) crc.getValue()).putInt(key.length).putInt(TOMBSTONE).put(key).flip();
+    var offset = active.size;
+    while (buffer.hasRemaining())
+      active.channel.write(buffer, offset + buffer.position());
+    active.size += buffer.limit();
+  }
+
+  /**
+   * Accounts an overwritten record as dead in its segment.
+   */
+  private void discard(Location location) {
+    if (location == null)
+      return;
+    var segment = segments.get(location.segment());
+    if (segment != null)
+      segment.dead.addAndGet(HEADER_SIZE + (long) location.keyLength() + location.length());
+  }
+
+  @FunctionalInterface
+  private interface RecordConsumer {
+    void accept(String key, Location location) throws IOException;
+  }
+
+  private static final class Segment {
+    final long id;
+    final Path path;
+    final FileChannel channel;
+    final AtomicLong dead = new AtomicLong();
+    volatile long size;
+    private volatile MappedByteBuffer mapped;
+
+    Segment(long id, Path path) throws IOException {
+      this.id = id;
+      this.path = path;
+      this.channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.size = channel.size();
+    }
+
+    ByteBuffer read(long offset, int length) throws IOException {
+      var buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining())
+        if (channel.read(buffer, offset + buffer.position()) < 0)
+          throw new IOException("unexpected end of segment " + path);
+      return buffer.flip();
+    }
+
+    /**
+     * @return a view of the bytes in the mapping of the segment, mapping it
+     *         again if it grew past the current mapping.
+     */
+    ByteBuffer slice(long offset, int length) throws IOException {
+      var map = mapped;
+      if (map == null || offset + length > map.capacity()) {
+        synchronized (this) {
+          map = mapped;
+          if (map == null || offset + length > map.capacity()) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped = map;
+          }
+        }
+      }
+      return map.slice((int) offset, length);
+    }
+
+    /**
+     * Reads all the valid records in order.
+     * @return the end of the last valid record.
+     */
+    long scan(RecordConsumer consumer) throws IOException {
+      var end = size;
+      var offset = 0L;
+      var header = ByteBuffer.allocate(HEADER_SIZE);
+      while (offset + HEADER_SIZE <= end) {
+        header.clear();
+        channel.read(header, offset);
+        header.flip();
+        var crc = header.getInt();
+        var keyLength = header.getInt();
+        var valueLength = header.getInt();
+        var storedLength = valueLength == TOMBSTONE ? 0 : valueLength;
+        if (keyLength < 0 || storedLength < 0 || offset + HEADER_SIZE + keyLength + storedLength > end)
+          break;
+        var key = read(offset + HEADER_SIZE, keyLength);
+        var valueOffset = offset + HEADER_SIZE + keyLength;
+        var value = read(valueOffset, storedLength);
+        var check = new CRC32();
+        check.update(key);
+        check.update(value);
+        if ((int) check.getValue() != crc)
+          break;
+        consumer.accept(UTF_8.decode(key.flip()).toString(), new Location(id, valueOffset, keyLength, valueLength));
+        offset = valueOffset + storedLength;
+      }
+      return offset;
+    }
+  }
+}
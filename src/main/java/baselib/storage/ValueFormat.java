@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import baselib.binary.BinaryReader;
+import baselib.binary.BinaryWriter;
+import baselib.json.JSONBuilder;
+import baselib.json.JSONReader;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * How stored values are serialized.
+ * JSON is the default and is human readable, BINARY is compact and faster to
+ * read and write, POSITIONAL is the binary layout without component names.
+ *
+ * @author Raffaele Ragni
+ */
+public interface ValueFormat {
+  ValueFormat JSON = new ValueFormat() {
+    @Override
+    public String extension() {
+      return ".json";
+    }
+
+    @Override
+    public byte[] encode(Object rec) {
+      return JSONBuilder.toJSON(rec).getBytes(UTF_8);
+    }
+
+    @Override
+    public <V> V decode(Class<V> clazz, ByteBuffer buffer) {
+      return JSONReader.toRecord(clazz, buffer);
+    }
+  };
+
+  ValueFormat BINARY = new BinaryFormat(BinaryWriter.Layout.NAMED);
+  ValueFormat POSITIONAL = new BinaryFormat(BinaryWriter.Layout.POSITIONAL);
+
+  /**
+   *
+   * @return file extension for the stored values, dot included.
+   */
+  String extension();
+
+  byte[] encode(Object rec);
+
+  <V> V decode(Class<V> clazz, ByteBuffer buffer);
+}
+
+class BinaryFormat implements ValueFormat {
+  private final BinaryWriter.Layout layout;
+
+  BinaryFormat(BinaryWriter.Layout layout) {
+    this.layout = layout;
+  }
+
+  @Override
+  public String extension() {
+    return ".bin";
+  }
+
+  @Override
+  public byte[] encode(Object rec) {
+    return BinaryWriter.toBinary(rec, layout);
+  }
+
+  @Override
+  public <V> V decode(Class<V> clazz, ByteBuffer buffer) {
+    return BinaryReader.toRecord(clazz, buffer);
+  }
+}
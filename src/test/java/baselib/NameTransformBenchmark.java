@@ -16,6 +16,8 @@
 package baselib;
 
 import static baselib.extra.BenchmarkRun.run;
+import java.util.regex.Pattern;
+import static java.util.regex.Pattern.compile;
 import org.openjdk.jmh.annotations.Benchmark;
 
 /**
@@ -23,17 +25,54 @@ import org.openjdk.jmh.annotations.Benchmark;
  * @author Raffaele Ragni
  */
 public class NameTransformBenchmark {
+  private static final NameTransform REGEX_SNAKE = new RegexSplitCase('_');
+  private static final NameTransform SCANNING_SNAKE = new ToSplitCase('_');
+
   public static void main(String[] args) {
     run(NameTransformBenchmark.class);
   }
 
   @Benchmark
-  public void withSnake() {
-    NameTransform.SNAKE.transform("wordWithAnotherWord");
+  public String withSnake() {
+    return NameTransform.SNAKE.transform("wordWithAnotherWord");
+  }
+
+  @Benchmark
+  public String withKebab() {
+    return NameTransform.KEBAB.transform("wordWithAnotherWord");
+  }
+
+  @Benchmark
+  public String withCamel() {
+    return NameTransform.CAMEL.transform("word_with_another_word");
   }
 
   @Benchmark
-  public void withKebab() {
-    NameTransform.KEBAB.transform("wordWithAnotherWord");
+  public String withSnakeNotMemoized() {
+    return SCANNING_SNAKE.transform("wordWithAnotherWord");
+  }
+
+  @Benchmark
+  public String withSnakeRegex() {
+    return REGEX_SNAKE.transform("wordWithAnotherWord");
+  }
+
+  /**
+   * The previous regex based implementation, kept as a baseline.
+   */
+  static class RegexSplitCase implements NameTransform {
+    final Pattern pattern = compile("(?<=[a-z0-9])[A-Z]");
+    final char separator;
+
+    RegexSplitCase(char separator) {
+      this.separator = separator;
+    }
+
+    @Override
+    public String transform(String from) {
+      return pattern.matcher(from)
+        .replaceAll(match -> separator + match.group().toLowerCase())
+        .toLowerCase();
+    }
   }
 }
@@ -73,6 +73,44 @@ class NameTransformTest {
     assertTransformed(NameTransform.KEBAB, from, to);
   }
 
+  @ParameterizedTest
+  @CsvSource(value = {
+    "a,a",
+    "A,a",
+    "wordWithAnotherWord,wordWithAnotherWord",
+    "WordWithAnotherWord,wordWithAnotherWord",
+    "word_with_another_word,wordWithAnotherWord",
+    "WORD_WITH_ANOTHER_WORD,wordWithAnotherWord",
+    "word-with-another-word,wordWithAnotherWord",
+    "word2_numbers,word2Numbers",
+    "_leading,leading"
+  })
+  void testToCamel(String from, String to) {
+    assertTransformed(NameTransform.CAMEL, from, to);
+  }
+
+  @ParameterizedTest
+  @CsvSource(value = {
+    "a,A",
+    "wordWithAnotherWord,WordWithAnotherWord",
+    "word_with_another_word,WordWithAnotherWord",
+    "WORD-WITH-ANOTHER-WORD,WordWithAnotherWord"
+  })
+  void testToPascal(String from, String to) {
+    assertTransformed(NameTransform.PASCAL, from, to);
+  }
+
+  @Test
+  void testMemoizedIsBounded() {
+    var memo = new Memoized(new ToSplitCase('_'), 2);
+    assertThat(memo.transform("aA"), is("a_a"));
+    assertThat(memo.transform("bB"), is("b_b"));
+    assertThat(memo.transform("cC"), is("c_c"));
+    assertThat(memo.transform("cC"), is("c_c"));
+    assertThat(memo.cache.size(), is(2));
+    assertThat(memo.transform(null), is(nullValue()));
+  }
+
   private void assertTransformed(NameTransform transformer, String from, String to) {
     assertThat(transformer.transform(from), is(to));
     assertThat(transformer.apply(from), is(to));
@@ -60,6 +60,13 @@ class RecordsTest {
     assertThat(map, is(Map.of("visible", true, "sample", Map.of("id", 1, "name", "test"))));
   }
 
+  @Test
+  void testComponentValues() {
+    var rec = new Sample(1, "test");
+    assertThat(Records.componentValues(rec), is(new Object[]{1, "test"}));
+    assertThrows(IllegalArgumentException.class, () -> Records.componentValues(new Object()));
+  }
+
   @Test
   void testToRecordFromNull() {
     var rec = fromMap(Sample.class, null);
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.binary;
+
+import static baselib.binary.BinaryReader.toRecord;
+import baselib.binary.BinaryWriter.Layout;
+import static baselib.binary.BinaryWriter.toBinary;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class BinaryReaderTest {
+  public record Sample(int id, String name) {}
+  public record SampleReordered(String name, int id) {}
+  public record Nested(boolean visible, Sample sample) {}
+  public record AllTypes(
+    int i, long l, short s, byte b, char c, double d, float f, boolean bool,
+    Integer boxed, String nullString, String unicode, BigDecimal decimal,
+    byte[] bytes, List<String> list, Map<String, Object> map) {}
+
+  @ParameterizedTest
+  @EnumSource(Layout.class)
+  void testRoundTrip(Layout layout) {
+    var rec = new Sample(1, "test");
+    assertThat(toRecord(Sample.class, toBinary(rec, layout)), is(rec));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Layout.class)
+  void testNested(Layout layout) {
+    var rec = new Nested(true, new Sample(-300, "test"));
+    assertThat(toRecord(Nested.class, toBinary(rec, layout)), is(rec));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Layout.class)
+  void testAllTypes(Layout layout) {
+    var rec = new AllTypes(
+      Integer.MIN_VALUE, Long.MAX_VALUE, (short) -2, (byte) 3, 'x', 1.5, 2.5f, true,
+      7, null, "àè€😀", new BigDecimal("12.345"),
+      new byte[]{1, 2, 3}, List.of("a", "b"), Map.of("k", 1L));
+
+    var result = toRecord(AllTypes.class, toBinary(rec, layout));
+
+    assertThat(result.i(), is(rec.i()));
+    assertThat(result.l(), is(rec.l()));
+    assertThat(result.s(), is(rec.s()));
+    assertThat(result.b(), is(rec.b()));
+    assertThat(result.c(), is(rec.c()));
+    assertThat(result.d(), is(rec.d()));
+    assertThat(result.f(), is(rec.f()));
+    assertThat(result.bool(), is(rec.bool()));
+    assertThat(result.boxed(), is(rec.boxed()));
+    assertThat(result.nullString(), is(rec.nullString()));
+    assertThat(result.unicode(), is(rec.unicode()));
+    assertThat(result.decimal(), is(rec.decimal()));
+    assertThat(result.bytes(), is(rec.bytes()));
+    assertThat(result.list(), is(rec.list()));
+    assertThat(result.map(), is(rec.map()));
+  }
+
+  @Test
+  void testNamedToleratesOtherShape() {
+    var bytes = toBinary(new Sample(1, "test"), Layout.NAMED);
+    assertThat(toRecord(SampleReordered.class, bytes), is(new SampleReordered("test", 1)));
+  }
+
+  @Test
+  void testPositionalSchemaMismatch() {
+    var bytes = toBinary(new Sample(1, "test"), Layout.POSITIONAL);
+    assertThrows(IllegalStateException.class, () -> toRecord(SampleReordered.class, bytes));
+  }
+
+  @Test
+  void testFromBufferSlice() {
+    var bytes = toBinary(new Sample(1, "test"));
+    var buffer = ByteBuffer.allocateDirect(bytes.length + 4);
+    buffer.putInt(0xCAFE);
+    buffer.put(bytes);
+    buffer.position(4);
+
+    assertThat(toRecord(Sample.class, buffer.slice()), is(new Sample(1, "test")));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Layout.class)
+  void testTruncated(Layout layout) {
+    var bytes = toBinary(new Sample(1, "test"), layout);
+    for (var length = 0; length < bytes.length; length++) {
+      var truncated = Arrays.copyOf(bytes, length);
+      assertThrows(IllegalStateException.class, () -> toRecord(Sample.class, truncated));
+    }
+  }
+
+  @Test
+  void testInvalid() {
+    var bytes = new byte[]{9, 9, 9};
+    assertThrows(IllegalStateException.class, () -> toRecord(Sample.class, bytes));
+    assertThrows(IllegalArgumentException.class, () -> toRecord(Object.class, bytes));
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.binary;
+
+import baselib.binary.BinaryWriter.Layout;
+import static baselib.binary.BinaryWriter.toBinary;
+import java.util.UUID;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class BinaryWriterTest {
+  public record Sample(int id, String name) {}
+  public record SampleRenamed(int id, String label) {}
+  public record WithUUID(UUID id) {}
+
+  @Test
+  void testUnsupportedType() {
+    var rec = new WithUUID(UUID.randomUUID());
+    assertThrows(IllegalArgumentException.class, () -> toBinary(rec));
+  }
+
+  @Test
+  void testNoRecord() {
+    var o = new Object();
+    assertThrows(IllegalArgumentException.class, () -> toBinary(o));
+  }
+
+  @Test
+  void testPositionalHasNoNames() {
+    var named = toBinary(new Sample(1, "x"), Layout.NAMED);
+    var positional = toBinary(new Sample(1, "x"), Layout.POSITIONAL);
+
+    assertThat(positional.length, lessThan(named.length));
+    // header (10) + int tag and value (2) + string tag, length and char (3)
+    assertThat(positional.length, is(15));
+  }
+
+  @Test
+  void testFingerprint() {
+    assertThat(Schema.of(Sample.class).fingerprint, is(Schema.of(Sample.class).fingerprint));
+    assertThat(Schema.of(Sample.class).fingerprint, is(not(Schema.of(SampleRenamed.class).fingerprint)));
+  }
+
+  @ParameterizedTest
+  @CsvSource(value = {
+    "0,1",
+    "-1,1",
+    "63,1",
+    "64,2",
+    "-65,2",
+    "8191,2",
+    "8192,3"
+  })
+  void testVarintSize(long value, int bytes) {
+    var writer = new BinaryWriter();
+    writer.writeVarLong(BinaryWriter.zigzag(value));
+    assertThat(writer.toByteArray().length, is(bytes));
+  }
+}
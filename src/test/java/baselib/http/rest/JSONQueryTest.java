@@ -0,0 +1,83 @@
+package baselib.http.rest;
+
+import baselib.TestHelper;
+import baselib.http.HttpServer.Context;
+import baselib.http.HttpServer.HttpStatus;
+import baselib.jdbc.JdbcInstance;
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.util.UUID;
+import java.util.function.Consumer;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class JSONQueryTest {
+  JdbcInstance jdbc;
+
+  @BeforeEach
+  void setup() {
+    var dbname = UUID.randomUUID().toString();
+    jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table item(id int, item_name varchar(255))", st -> {});
+    jdbc.execute("insert into item values(1, 'one'), (2, 'two')", st -> {});
+  }
+
+  @Test
+  void testConstructorValidation() {
+    assertThrows(NullPointerException.class, () -> JSONQuery.from(null, "select 1"));
+    assertThrows(NullPointerException.class, () -> JSONQuery.from(jdbc, null));
+    assertThrows(NullPointerException.class, () -> JSONQuery.from(jdbc, "select 1", null));
+  }
+
+  @Test
+  void testStreamsRows() {
+    var out = new StringWriter();
+    var ctx = contextWith("GET", "", out);
+
+    var result = JSONQuery.from(jdbc, "select * from item order by id").apply(ctx);
+
+    assertThat(result, is(""));
+    assertThat(out.toString(), is("[{\"id\":1,\"itemName\":\"one\"},{\"id\":2,\"itemName\":\"two\"}]"));
+  }
+
+  @Test
+  void testParametersFromRequest() {
+    var out = new StringWriter();
+    var ctx = contextWith("GET", "2", out);
+
+    JSONQuery.from(jdbc, "select * from item where id = ?", (c, st) -> st.setInt(1, Integer.parseInt(c.variablePath()))).apply(ctx);
+
+    assertThat(out.toString(), is("[{\"id\":2,\"itemName\":\"two\"}]"));
+  }
+
+  @Test
+  void testOnlyGet() {
+    var ctx = contextWith("POST", "", new StringWriter());
+    var query = JSONQuery.from(jdbc, "select * from item");
+
+    var ex = assertThrows(HttpStatus.class, () -> query.apply(ctx));
+
+    assertThat(ex.status(), is(415));
+  }
+
+  @SuppressWarnings("unchecked")
+  Context contextWith(String method, String variablePath, StringWriter out) {
+    var ctx = mock(Context.class);
+    when(ctx.method()).thenReturn(method);
+    when(ctx.variablePath()).thenReturn(variablePath);
+    doAnswer(inv -> {
+      try (var writer = new BufferedWriter(out)) {
+        ((Consumer<BufferedWriter>) inv.getArgument(0)).accept(writer);
+      }
+      return null;
+    }).when(ctx).writer(any());
+    return ctx;
+  }
+}
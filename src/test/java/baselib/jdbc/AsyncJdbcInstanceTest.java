@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.TestHelper;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class AsyncJdbcInstanceTest {
+  public record Num(int x) {}
+
+  JdbcInstance jdbc;
+
+  @BeforeEach
+  void setup() {
+    var dbname = UUID.randomUUID().toString();
+    jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table num(x int)", st -> {});
+  }
+
+  @Test
+  void testQueries() throws Exception {
+    var async = new AsyncJdbcInstance(jdbc);
+    var inserts = IntStream.range(0, 10)
+      .mapToObj(i -> async.execute("insert into num values(?)", st -> st.setInt(1, i)))
+      .toArray(CompletableFuture[]::new);
+    CompletableFuture.allOf(inserts).get(10, TimeUnit.SECONDS);
+
+    var rows = async.list("select x from num order by x", st -> {}, JdbcInstance.mapperOfRecord(Num.class))
+      .get(10, TimeUnit.SECONDS);
+
+    assertThat(rows, is(IntStream.range(0, 10).mapToObj(Num::new).collect(toList())));
+  }
+
+  @Test
+  void testBatch() throws Exception {
+    var async = new AsyncJdbcInstance(jdbc);
+    var count = new AtomicInteger();
+
+    assertThat(async.batch("insert into num values(?)", List.of(1, 2, 3), (st, i) -> st.setInt(1, i))
+      .get(10, TimeUnit.SECONDS), is(3L));
+    async.streamed("select x from num", st -> {}, rs -> count.incrementAndGet()).get(10, TimeUnit.SECONDS);
+
+    assertThat(count.get(), is(3));
+  }
+
+  @Test
+  void testConcurrencyLimit() throws Exception {
+    var async = new AsyncJdbcInstance(jdbc, AsyncJdbcInstance.defaultExecutor(), 2);
+    var release = new CountDownLatch(1);
+    var started = new CountDownLatch(2);
+    var peak = new AtomicInteger();
+    var active = new AtomicInteger();
+    var futures = IntStream.range(0, 6).mapToObj(i -> async.supply(j -> {
+      peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+      started.countDown();
+      ex(() -> release.await());
+      active.decrementAndGet();
+      return i;
+    })).toArray(CompletableFuture[]::new);
+
+    started.await(10, TimeUnit.SECONDS);
+    assertThat(async.running(), is(2));
+    assertThat(async.queued(), is(4));
+
+    release.countDown();
+    CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+    assertThat(peak.get(), is(2));
+    // a slot is freed right after its future completes
+    for (var i = 0; i < 100 && async.running() > 0; i++)
+      Thread.sleep(10);
+    assertThat(async.running(), is(0));
+  }
+
+  @Test
+  void testFailure() {
+    var async = new AsyncJdbcInstance(jdbc);
+    var future = async.execute("insert into nope values(1)", st -> {});
+
+    var e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+    assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+  }
+
+  @Test
+  void testRejected() {
+    var async = new AsyncJdbcInstance(jdbc, r -> { throw new RejectedExecutionException(); }, 1);
+    var future = async.execute("insert into num values(1)", st -> {});
+
+    var e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+    assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+    assertThat(async.running(), is(0));
+  }
+
+  @Test
+  void testInvalidConcurrency() {
+    var executor = AsyncJdbcInstance.defaultExecutor();
+    assertThrows(IllegalArgumentException.class, () -> new AsyncJdbcInstance(jdbc, executor, 0));
+  }
+}
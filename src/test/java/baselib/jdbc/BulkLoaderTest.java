@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.TestHelper;
+import baselib.metrics.MetricsExporter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class BulkLoaderTest {
+  public record Item(int id, String name) {}
+
+  JdbcInstance jdbc;
+
+  @BeforeEach
+  void setup() {
+    var dbname = UUID.randomUUID().toString();
+    jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table item(id int primary key, name varchar(255))", st -> {});
+  }
+
+  @Test
+  void testLoadJSONArray() {
+    var json = IntStream.rangeClosed(1, 2500)
+      .mapToObj(i -> "{\"id\": " + i + ", \"name\": \"item" + i + "\"}")
+      .reduce((a, b) -> a + ",\n" + b)
+      .map(s -> "[" + s + "]")
+      .orElseThrow();
+    var loader = BulkLoader.<Item>ofRecords("array", jdbc, "insert into item values(?, ?)").withBatchSize(100);
+
+    assertThat(loader.loadJSON(Item.class, new StringReader(json)), is(2500L));
+    assertThat(count(), is(2500));
+    assertThat(loader.metrics.batches.get(), is(25L));
+    assertThat(loader.metrics.items.get(), is(2500L));
+  }
+
+  @Test
+  void testLoadNDJSON() {
+    var json = """
+      {"id": 1, "name": "one"}
+      {"id": 2, "name": "two"}
+      {"id": 3}
+      """;
+    var loader = new BulkLoader<Item>("ndjson", jdbc, "insert into item(id, name) values(?, ?)", (st, item) -> {
+      st.setInt(1, item.id());
+      st.setString(2, item.name() == null ? "none" : item.name());
+    });
+
+    assertThat(loader.loadJSON(Item.class, new StringReader(json)), is(3L));
+    var names = new StringBuilder();
+    jdbc.streamed("select name from item order by id", st -> {}, rs -> names.append(rs.getString(1)).append(' '));
+    assertThat(names.toString(), is("one two none "));
+  }
+
+  @Test
+  void testReaderError() {
+    var json = "[{\"id\": 1, \"name\": \"one\"}, {\"id\": 2, \"name\": \"two\"}, 3]";
+    var loader = BulkLoader.<Item>ofRecords("readererror", jdbc, "insert into item values(?, ?)").withBatchSize(1);
+    var reader = new StringReader(json);
+
+    assertThrows(IllegalStateException.class, () -> loader.loadJSON(Item.class, reader));
+    assertThat(count(), is(2));
+  }
+
+  @Test
+  void testReaderFailsWithError() {
+    var loader = BulkLoader.<Item>ofRecords("readerfailure", jdbc, "insert into item values(?, ?)").withBatchSize(1);
+    var items = IntStream.range(0, 10).mapToObj(i -> {
+      if (i == 5)
+        throw new AssertionError("failed");
+      return new Item(i, "item" + i);
+    });
+
+    assertThrows(IllegalStateException.class, () -> loader.load(items));
+  }
+
+  @Test
+  void testWriterErrorStopsReader() {
+    var closed = new AtomicBoolean();
+    var items = Stream.iterate(1, i -> i + 1)
+      .map(i -> new Item(i < 50 ? i : 1, "x"))
+      .limit(1_000_000)
+      .onClose(() -> closed.set(true));
+    var loader = BulkLoader.<Item>ofRecords("writererror", jdbc, "insert into item values(?, ?)")
+      .withBatchSize(10)
+      .withQueueSize(1);
+
+    assertThrows(IllegalStateException.class, () -> loader.load(items));
+    assertThat(count(), is(40));
+    // the reader closes the stream once it sees the cancellation
+    for (var i = 0; i < 100 && !closed.get(); i++)
+      sleep(10);
+    assertThat(closed.get(), is(true));
+  }
+
+  @Test
+  void testBackpressure() {
+    var loader = new BulkLoader<Integer>("backpressure", jdbc, "insert into item values(?, 'x')", (st, i) -> {
+      sleep(1);
+      st.setInt(1, i);
+    }).withBatchSize(5).withQueueSize(1);
+
+    assertThat(loader.load(IntStream.range(0, 100).boxed()), is(100L));
+    assertThat(loader.metrics.readerWaitNanos.get(), greaterThan(0L));
+  }
+
+  @Test
+  void testMetrics() {
+    var loader = BulkLoader.<Item>ofRecords("metricstest", jdbc, "insert into item values(?, ?)");
+    loader.load(Stream.of(new Item(1, "one"), new Item(2, "two")));
+
+    var sw = new StringWriter();
+    MetricsExporter.DEFAULT.export(sw);
+    var out = sw.toString();
+    assertThat(out, containsString("bulkload_items_total{loader=\"metricstest\"} 2"));
+    assertThat(out, containsString("bulkload_batches_total{loader=\"metricstest\"} 1"));
+    assertThat(out, containsString("bulkload_reader_wait_seconds_total{loader=\"metricstest\"}"));
+
+    loader.close();
+    var closed = new StringWriter();
+    MetricsExporter.DEFAULT.export(closed);
+    assertThat(closed.toString(), not(containsString("loader=\"metricstest\"")));
+  }
+
+  @Test
+  void testInvalidArguments() {
+    var loader = BulkLoader.<Item>ofRecords("invalid", jdbc, "insert into item values(?, ?)");
+    assertThrows(IllegalArgumentException.class, () -> loader.withBatchSize(0));
+    assertThrows(IllegalArgumentException.class, () -> loader.withQueueSize(0));
+  }
+
+  private int count() {
+    var count = new int[1];
+    jdbc.streamed("select count(*) from item", st -> {}, rs -> count[0] = rs.getInt(1));
+    return count[0];
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.TestHelper;
+import baselib.metrics.MetricsExporter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class ConnectionPoolTest {
+  String dbname;
+  AtomicInteger created;
+
+  @BeforeEach
+  void setup() {
+    dbname = UUID.randomUUID().toString();
+    created = new AtomicInteger();
+  }
+
+  @Test
+  void testReuse() throws SQLException {
+    try (var pool = pool(0, 2, Duration.ofMinutes(1))) {
+      try (var c = pool.get()) {
+        assertThat(c.isValid(0), is(true));
+      }
+      try (var c = pool.get()) {
+        assertThat(c.isValid(0), is(true));
+      }
+      assertThat(created.get(), is(1));
+      assertThat(pool.idleCount(), is(1));
+    }
+  }
+
+  @Test
+  void testMinSize() {
+    try (var pool = pool(2, 4, Duration.ofMinutes(1))) {
+      assertThat(created.get(), is(2));
+      assertThat(pool.idleCount(), is(2));
+    }
+  }
+
+  @Test
+  void testReturnedConnectionUnusable() throws SQLException {
+    try (var pool = pool(0, 1, Duration.ofMinutes(1))) {
+      var c = pool.get();
+      c.close();
+      c.close();
+      assertThat(c.isClosed(), is(true));
+      assertThrows(SQLException.class, c::createStatement);
+      assertThat(pool.idleCount(), is(1));
+    }
+  }
+
+  @Test
+  void testAcquireTimeout() {
+    try (var pool = new ConnectionPool("timeout", this::connect, 0, 1, Duration.ofMillis(50), Duration.ofMinutes(1))) {
+      var c = pool.get();
+      assertThrows(IllegalStateException.class, pool::get);
+      ex(c::close);
+      ex(pool.get()::close);
+    }
+  }
+
+  @Test
+  void testWaitsForReturnedConnection() throws Exception {
+    try (var pool = new ConnectionPool("wait", this::connect, 0, 1, Duration.ofSeconds(10), Duration.ofMinutes(1))) {
+      var c = pool.get();
+      var thread = new Thread(() -> ex(c::close));
+      thread.start();
+      try (var c2 = pool.get()) {
+        assertThat(c2.isValid(0), is(true));
+      }
+      thread.join();
+      assertThat(created.get(), is(1));
+    }
+  }
+
+  @Test
+  void testInvalidReplacedOnBorrow() throws SQLException {
+    var bad = mock(Connection.class);
+    when(bad.isValid(anyInt())).thenReturn(false);
+    when(bad.getAutoCommit()).thenReturn(true);
+    var first = new AtomicInteger();
+    try (var pool = new ConnectionPool("invalid",
+        () -> first.getAndIncrement() == 0 ? bad : connect(),
+        0, 1, Duration.ofSeconds(1), Duration.ofMinutes(1))) {
+      pool.get().close();
+      // validated only once idle
+      ex(() -> Thread.sleep(ConnectionPool.VALIDATION_IDLE_TIME.toMillis() + 100));
+      try (var c = pool.get()) {
+        assertThat(c.isValid(0), is(true));
+      }
+      verify(bad).close();
+    }
+  }
+
+  @Test
+  void testRecentlyUsedNotValidated() throws SQLException {
+    var connection = mock(Connection.class);
+    when(connection.getAutoCommit()).thenReturn(true);
+    try (var pool = new ConnectionPool("recent", () -> connection, 0, 1, Duration.ofSeconds(1), Duration.ofMinutes(1))) {
+      pool.get().close();
+      pool.get().close();
+      verify(connection, never()).isValid(anyInt());
+    }
+  }
+
+  @Test
+  void testIdleEviction() throws Exception {
+    try (var pool = pool(0, 2, Duration.ofMillis(50))) {
+      var c1 = pool.get();
+      var c2 = pool.get();
+      c1.close();
+      c2.close();
+      Thread.sleep(100);
+      pool.get().close();
+      assertThat(pool.totalCount(), is(1));
+    }
+  }
+
+  @Test
+  void testResetOnReturn() throws SQLException {
+    try (var pool = pool(0, 1, Duration.ofMinutes(1))) {
+      try (var c = pool.get()) {
+        c.setAutoCommit(false);
+        c.setReadOnly(true);
+      }
+      try (var c = pool.get()) {
+        assertThat(c.getAutoCommit(), is(true));
+        assertThat(c.isReadOnly(), is(false));
+      }
+    }
+  }
+
+  @Test
+  void testClosedPool() {
+    var pool = pool(0, 1, Duration.ofMinutes(1));
+    pool.close();
+    assertThrows(IllegalStateException.class, pool::get);
+  }
+
+  @Test
+  void testWithJdbcInstance() {
+    try (var pool = pool(0, 2, Duration.ofMinutes(1))) {
+      var instance = new JdbcInstance(pool);
+      instance.execute("create table test(id int)", st -> {});
+      instance.execute("insert into test values(1)", st -> {});
+      assertThat(instance.healthCheck(), is(true));
+      assertThat(pool.idleCount(), is(1));
+      assertThat(created.get(), is(1));
+    }
+  }
+
+  @Test
+  void testMetrics() {
+    try (var pool = new ConnectionPool("metricstest", this::connect, 0, 1, Duration.ofMinutes(1), Duration.ofMinutes(1))) {
+      ex(pool.get()::close);
+      var sw = new StringWriter();
+      MetricsExporter.DEFAULT.export(sw);
+      var metrics = sw.toString();
+      assertThat(metrics, containsString("jdbcpool_connections_total{pool=\"metricstest\"} 1"));
+      assertThat(metrics, containsString("jdbcpool_connections_idle{pool=\"metricstest\"} 1"));
+      assertThat(metrics, containsString("jdbcpool_acquire_count{pool=\"metricstest\"} 1"));
+      assertThat(metrics, not(containsString("jdbcpool_connections_active{pool=\"metricstest\"} 1")));
+    }
+  }
+
+  @Test
+  void testMetricsPerPool() {
+    var sw = new StringWriter();
+    try (var p1 = new ConnectionPool(this::connect); var p2 = new ConnectionPool(this::connect)) {
+      MetricsExporter.DEFAULT.export(sw);
+      assertThat(sw.toString(), containsString("jdbcpool_connections_total{pool=\"" + p1.name() + "\"}"));
+      assertThat(sw.toString(), containsString("jdbcpool_connections_total{pool=\"" + p2.name() + "\"}"));
+      assertThat(p1.name(), not(p2.name()));
+    }
+    var closed = new StringWriter();
+    try (var pool = new ConnectionPool("closedpool", this::connect, 0, 1, Duration.ofMinutes(1), Duration.ofMinutes(1))) {
+      ex(pool.get()::close);
+    }
+    MetricsExporter.DEFAULT.export(closed);
+    assertThat(closed.toString(), not(containsString("pool=\"closedpool\"")));
+  }
+
+  @Test
+  void testStatementReused() throws SQLException {
+    try (var pool = statementPool("stcache", 2)) {
+      var first = physicalStatement(pool, "select 1");
+      var second = physicalStatement(pool, "select 1");
+      assertThat(second == first, is(true));
+      assertThat(first.isClosed(), is(false));
+      assertThat(pool.metrics.statementHits.get(), is(1L));
+      assertThat(pool.metrics.statementMisses.get(), is(1L));
+    }
+  }
+
+  @Test
+  void testStatementCacheKeyedByOptions() throws SQLException {
+    try (var pool = statementPool("stcacheoptions", 2)) {
+      PreparedStatement first;
+      PreparedStatement second;
+      try (var c = pool.get();
+          var st1 = c.prepareStatement("select 1");
+          var st2 = c.prepareStatement("select 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        first = st1.unwrap(PreparedStatement.class);
+        second = st2.unwrap(PreparedStatement.class);
+      }
+      assertThat(second == first, is(false));
+      assertThat(pool.metrics.statementMisses.get(), is(2L));
+    }
+  }
+
+  @Test
+  void testStatementInUseNotShared() throws SQLException {
+    try (var pool = statementPool("stcacheinuse", 2);
+        var c = pool.get();
+        var st1 = c.prepareStatement("select 1");
+        var st2 = c.prepareStatement("select 1")) {
+      assertThat(st1.unwrap(PreparedStatement.class) == st2.unwrap(PreparedStatement.class), is(false));
+      assertThat(st1.getConnection(), is(c));
+    }
+  }
+
+  @Test
+  void testStatementEviction() throws SQLException {
+    try (var pool = statementPool("stcacheevict", 1)) {
+      var first = physicalStatement(pool, "select 1");
+      physicalStatement(pool, "select 2");
+      assertThat(first.isClosed(), is(true));
+      assertThat(pool.metrics.statementEvictions.get(), is(1L));
+    }
+  }
+
+  @Test
+  void testStatementCacheDisabled() throws SQLException {
+    try (var pool = statementPool("stcachedisabled", 0)) {
+      var first = physicalStatement(pool, "select 1");
+      assertThat(first.isClosed(), is(true));
+      assertThat(pool.metrics.statementMisses.get(), is(0L));
+    }
+  }
+
+  @Test
+  void testClosedStatementUnusable() throws SQLException {
+    try (var pool = statementPool("stcacheclosed", 2); var c = pool.get()) {
+      var st = c.prepareStatement("select 1");
+      st.close();
+      assertThat(st.isClosed(), is(true));
+      assertThrows(SQLException.class, st::executeQuery);
+    }
+  }
+
+  @Test
+  void testStatementClearedAfterFailedBatch() {
+    try (var pool = statementPool("stcachebatch", 2)) {
+      var instance = new JdbcInstance(pool);
+      instance.execute("create table test(id int)", st -> {});
+      var sql = "insert into test values(?)";
+      assertThrows(IllegalStateException.class, () -> instance.batch(sql, List.of(1, 2, 3), 10, (st, i) -> {
+        if (i == 3)
+          throw new IllegalArgumentException("failed");
+        st.setInt(1, i);
+      }));
+      instance.batch(sql, List.of(4), 10, (st, i) -> st.setInt(1, i));
+
+      try (var ids = instance.stream("select id from test order by id", st -> {}, rs -> ex(() -> rs.getInt(1)))) {
+        assertThat(ids.toList(), is(List.of(4)));
+      }
+      assertThat(pool.metrics.statementHits.get() >= 1, is(true));
+    }
+  }
+
+  @Test
+  void testStatementPropertiesRestored() throws SQLException {
+    try (var pool = statementPool("stcacheprops", 2)) {
+      try (var c = pool.get(); var st = c.prepareStatement("select 1")) {
+        st.setFetchSize(50);
+        st.setMaxRows(3);
+        st.setQueryTimeout(7);
+      }
+      try (var c = pool.get(); var st = c.prepareStatement("select 1")) {
+        assertThat(pool.metrics.statementHits.get(), is(1L));
+        assertThat(st.getFetchSize(), is(not(50)));
+        assertThat(st.getMaxRows(), is(0));
+        assertThat(st.getQueryTimeout(), is(0));
+      }
+    }
+  }
+
+  @Test
+  void testInvalidSizes() {
+    assertThrows(IllegalArgumentException.class, () -> pool(2, 1, Duration.ofMinutes(1)));
+  }
+
+  private ConnectionPool pool(int min, int max, Duration idle) {
+    return new ConnectionPool("test", this::connect, min, max, Duration.ofSeconds(1), idle);
+  }
+
+  private ConnectionPool statementPool(String name, int size) {
+    return new ConnectionPool(name, this::connect, 0, 1, Duration.ofSeconds(1), Duration.ofMinutes(1), size);
+  }
+
+  private static PreparedStatement physicalStatement(ConnectionPool pool, String sql) throws SQLException {
+    try (var c = pool.get(); var st = c.prepareStatement(sql)) {
+      try (var rs = st.executeQuery()) {
+        rs.next();
+      }
+      return st.unwrap(PreparedStatement.class);
+    }
+  }
+
+  private Connection connect() {
+    created.incrementAndGet();
+    return TestHelper.memoryDB(dbname);
+  }
+}
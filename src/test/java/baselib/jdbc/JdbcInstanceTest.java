@@ -16,23 +16,44 @@
 
 package baselib.jdbc;
 
+import static baselib.ExceptionWrapper.ex;
+import baselib.NameTransform;
 import baselib.TestHelper;
 import static baselib.TestHelper.sql;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.util.stream.Collectors.toList;
+import java.util.stream.IntStream;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -42,12 +63,15 @@ import static org.mockito.Mockito.when;
 class JdbcInstanceTest {
   public record Rec(int id, Instant timestamp, String value) {}
   public record Table(String name) {}
+  public record Row(String uuid, String name) {}
+  public record Named(long id, String fullName, Integer score, String missing) {}
 
   JdbcInstance instance;
+  String dbname;
 
   @BeforeEach
   void setup() throws SQLException {
-    var dbname = UUID.randomUUID().toString();
+    dbname = UUID.randomUUID().toString();
     try (var connection = TestHelper.memoryDB(dbname)) {
       createTables(connection);
       insertData(connection);
@@ -88,6 +112,38 @@ class JdbcInstanceTest {
     assertThat(set.contains("test3"), is(true));
   }
 
+  @Test
+  void testStreamedJSON() {
+    var out = new StringWriter();
+    instance.streamedJSON(
+      "select name as first_name, null as nothing, 1 as num, true as flag, 1.5 as amount from test where name = ?",
+      st -> st.setString(1, "test1"),
+      out);
+    assertThat(out.toString(), is("[{\"firstName\":\"test1\",\"num\":1,\"flag\":true,\"amount\":1.5}]"));
+
+    out = new StringWriter();
+    instance.streamedJSON("select name from test where name = ?", st -> st.setString(1, "none"), out);
+    assertThat(out.toString(), is("[]"));
+  }
+
+  @Test
+  void testStreamedJSONFlushes() {
+    var writer = new StringWriter();
+    var flushes = new AtomicInteger();
+    var out = new FilterWriter(writer) {
+      @Override
+      public Writer append(CharSequence csq) throws IOException {
+        flushes.incrementAndGet();
+        return super.append(csq);
+      }
+    };
+    instance.streamedJSON("select x from system_range(1, 10000)", st -> {}, out, NameTransform.CAMEL);
+
+    assertThat(flushes.get(), greaterThan(2));
+    assertThat(writer.toString().startsWith("[{\"x\":1},{\"x\":2},"), is(true));
+    assertThat(writer.toString().endsWith(",{\"x\":10000}]"), is(true));
+  }
+
   @Test
   void testExecute() {
     var rows = instance.execute("update test set name = 'test'", st -> {});
@@ -102,6 +158,130 @@ class JdbcInstanceTest {
     assertThat(set.contains("test"), is(true));
   }
 
+  @Test
+  void testFetchSize() throws SQLException {
+    var connection = mock(Connection.class);
+    var st = mock(PreparedStatement.class);
+    var rs = mock(ResultSet.class);
+    when(connection.getAutoCommit()).thenReturn(true);
+    when(connection.prepareStatement("select 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)).thenReturn(st);
+    when(st.executeQuery()).thenReturn(rs);
+    instance = new JdbcInstance(() -> connection).withFetchSize(500);
+
+    instance.streamed("select 1", s -> {}, r -> {});
+
+    var order = inOrder(connection, st);
+    order.verify(connection).setAutoCommit(false);
+    order.verify(st).setFetchSize(500);
+    order.verify(connection).commit();
+    order.verify(connection).setAutoCommit(true);
+  }
+
+  @Test
+  void testFetchSizeRollbackOnError() throws SQLException {
+    var connection = mock(Connection.class);
+    var st = mock(PreparedStatement.class);
+    when(connection.getAutoCommit()).thenReturn(true);
+    when(connection.prepareStatement("select 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)).thenReturn(st);
+    when(st.executeQuery()).thenThrow(new SQLException());
+    instance = new JdbcInstance(() -> connection).withFetchSize(500);
+
+    assertThrows(IllegalStateException.class, () -> instance.streamed("select 1", s -> {}, r -> {}));
+
+    verify(connection).rollback();
+    verify(connection).setAutoCommit(true);
+  }
+
+  @Test
+  void testTransactionRollbackFailureSuppressed() throws SQLException {
+    var connection = mock(Connection.class);
+    when(connection.getAutoCommit()).thenReturn(true);
+    doThrow(new SQLException("rollback failed")).when(connection).rollback();
+    instance = new JdbcInstance(() -> connection);
+
+    var e = assertThrows(IllegalStateException.class, () -> instance.inTransaction(tx -> {
+      throw new IllegalArgumentException("work failed");
+    }));
+
+    assertThat(e.getCause().getMessage(), is("work failed"));
+    assertThat(e.getCause().getSuppressed()[0].getMessage(), is("rollback failed"));
+    verify(connection).setAutoCommit(true);
+  }
+
+  @Test
+  void testInvalidFetchSize() {
+    assertThrows(IllegalArgumentException.class, () -> instance.withFetchSize(-1));
+  }
+
+  @Test
+  void testStreamedLargeResultMemoryBounded() {
+    var rows = 2_000_000;
+    var dbname = UUID.randomUUID().toString();
+    var large = new JdbcInstance(() -> ex(() -> DriverManager.getConnection(
+      "jdbc:h2:mem:" + dbname + ";LAZY_QUERY_EXECUTION=1", "sa", "")))
+      .withFetchSize(1000);
+
+    var baseline = usedMemoryAfterGC();
+    var count = new AtomicInteger();
+    var peak = new AtomicLong();
+    large.streamed("select x id, 'payload-' || x payload from system_range(1, ?)", st -> st.setInt(1, rows), rs -> {
+      rs.getString(2);
+      if (count.incrementAndGet() % 500_000 == 0)
+        peak.accumulateAndGet(usedMemoryAfterGC(), Math::max);
+    });
+
+    assertThat(count.get(), is(rows));
+    assertThat(peak.get() - baseline, lessThan(32L * 1024 * 1024));
+  }
+
+  private static long usedMemoryAfterGC() {
+    System.gc();
+    var runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Test
+  void testStream() {
+    try (var rows = instance.stream("select name from test order by name", st -> {}, JdbcInstance.mapperOfRecord(Table.class))) {
+      assertThat(rows.map(Table::name).collect(toList()), is(List.of("test1", "test2", "test3")));
+    }
+  }
+
+  @Test
+  void testStreamLazy() {
+    var mapped = new AtomicInteger();
+    var mapper = JdbcInstance.mapperOfRecord(Table.class);
+    try (var rows = instance.stream("select name from test", st -> {}, rs -> {
+      mapped.incrementAndGet();
+      return mapper.map(rs);
+    })) {
+      assertThat(rows.findFirst().isPresent(), is(true));
+    }
+    assertThat(mapped.get(), is(1));
+  }
+
+  @Test
+  void testStreamReleasesConnection() {
+    var dbname = UUID.randomUUID().toString();
+    try (var pool = new ConnectionPool("stream", () -> TestHelper.memoryDB(dbname), 0, 1, Duration.ofMillis(100), Duration.ofMinutes(1))) {
+      instance = new JdbcInstance(pool);
+      instance.execute("create table numbers as select x from system_range(1, 10)", st -> {});
+
+      try (var rows = instance.stream("select x from numbers", st -> {}, rs -> ex(() -> rs.getInt(1)))) {
+        assertThat(rows.limit(2).count(), is(2L));
+        assertThat(pool.idleCount(), is(0));
+      }
+      assertThat(pool.idleCount(), is(1));
+
+      var all = instance.stream("select x from numbers", st -> {}, rs -> ex(() -> rs.getInt(1)));
+      assertThat(all.mapToInt(Integer::intValue).sum(), is(55));
+      assertThat(pool.idleCount(), is(1));
+
+      assertThrows(IllegalStateException.class, () -> instance.stream("select nope", st -> {}, rs -> 1));
+      assertThat(pool.idleCount(), is(1));
+    }
+  }
+
   @Test
   void testRecordMapperForNoRecord() {
     assertThrows(IllegalArgumentException.class, () -> JdbcInstance.<Object>mapperOfRecord(Object.class));
@@ -135,6 +315,50 @@ class JdbcInstanceTest {
     assertThat(set, hasItem(new Table("test1")));
   }
 
+  @Test
+  void testRecordMapperColumnPlan() {
+    var mapper = JdbcInstance.<Named>mapperOfRecord(Named.class);
+    var list = new LinkedList<Named>();
+    instance.execute("create table named(id bigint, full_name varchar(255), score int)", st -> {});
+    instance.execute("insert into named values(1, 'one', null), (2, 'two', 5)", st -> {});
+    instance.streamed("select id, full_name, score from named order by id", st -> {}, rs -> list.add(mapper.map(rs)));
+    instance.streamed("select score, id from named order by id", st -> {}, rs -> list.add(mapper.map(rs)));
+
+    assertThat(list, is(List.of(
+      new Named(1, "one", null, null),
+      new Named(2, "two", 5, null),
+      new Named(1, null, null, null),
+      new Named(2, null, 5, null))));
+  }
+
+  @Test
+  void testRecordMapperSharedByThreads() throws Exception {
+    var mapper = JdbcInstance.<Table>mapperOfRecord(Table.class);
+    var first = mockTableResultSet("first");
+    var second = mockTableResultSet("second");
+    var thread = new Thread(() -> {
+      for (var i = 0; i < 100; i++)
+        assertThat(mapper.map(second), is(new Table("second")));
+    });
+    thread.start();
+    for (var i = 0; i < 100; i++)
+      assertThat(mapper.map(first), is(new Table("first")));
+    thread.join();
+
+    verify(first, times(1)).getMetaData();
+    verify(second, times(1)).getMetaData();
+  }
+
+  private static ResultSet mockTableResultSet(String name) throws SQLException {
+    var meta = mock(ResultSetMetaData.class);
+    when(meta.getColumnCount()).thenReturn(1);
+    when(meta.getColumnLabel(1)).thenReturn("NAME");
+    var rs = mock(ResultSet.class);
+    when(rs.getMetaData()).thenReturn(meta);
+    when(rs.getString(1)).thenReturn(name);
+    return rs;
+  }
+
   @Test
   void testRecordSelector() {
     var mapper = JdbcInstance.<Table>mapperOfRecord(Table.class);
@@ -144,6 +368,121 @@ class JdbcInstanceTest {
     assertThat(selector.get(), hasItem(new Table("test1")));
   }
 
+  @Test
+  void testBatch() {
+    var names = IntStream.range(0, 2500).mapToObj(i -> "batch" + i).collect(toList());
+    var rows = instance.batch(
+      "insert into test(uuid, name) values(?, ?)",
+      names,
+      1000,
+      (st, name) -> {
+        st.setString(1, UUID.randomUUID().toString());
+        st.setString(2, name);
+      });
+
+    assertThat(rows, is(2500L));
+    assertThat(count(), is(2503));
+  }
+
+  @Test
+  void testBatchStream() {
+    var rows = instance.batch(
+      "insert into test(uuid, name) values(?, ?)",
+      IntStream.range(0, 10).mapToObj(i -> "batch" + i),
+      3,
+      (st, name) -> {
+        st.setString(1, UUID.randomUUID().toString());
+        st.setString(2, name);
+      });
+
+    assertThat(rows, is(10L));
+    assertThat(count(), is(13));
+  }
+
+  @Test
+  void testBatchRollback() {
+    var items = List.of("same", "other", "same");
+    assertThrows(IllegalStateException.class, () -> instance.batch(
+      "insert into test(uuid, name) values(?, ?)",
+      items,
+      1,
+      (st, uuid) -> {
+        st.setString(1, uuid);
+        st.setString(2, "name");
+      }));
+
+    assertThat(count(), is(3));
+  }
+
+  @Test
+  void testBatchRecords() {
+    var records = List.of(new Row("r1", "one"), new Row("r2", "two"));
+    var rows = instance.batchRecords("insert into test(uuid, name) values(?, ?)", records);
+
+    assertThat(rows, is(2L));
+    assertThat(instance.makeRecordSelector(Table.class, "select name from test where uuid = 'r2'", st -> {}).get(),
+      is(List.of(new Table("two"))));
+  }
+
+  @Test
+  void testBatchInvalidSize() {
+    var items = List.of("a");
+    assertThrows(IllegalArgumentException.class, () -> instance.batch("select 1", items, 0, (st, i) -> {}));
+  }
+
+  @Test
+  void testTransactionCommit() {
+    var connections = new AtomicInteger();
+    var counting = new JdbcInstance(() -> {
+      connections.incrementAndGet();
+      return TestHelper.memoryDB(dbname);
+    });
+
+    var inside = counting.inTransaction(tx -> {
+      tx.execute("insert into test(uuid, name) values('t1', 'tx')", st -> {});
+      tx.batchRecords("insert into test(uuid, name) values(?, ?)", List.of(new Row("t2", "tx")));
+      return tx.inTransaction(nested -> nested.makeRecordSelector(Table.class, "select name from test where name = 'tx'", st -> {}).get());
+    });
+
+    assertThat(inside.size(), is(2));
+    assertThat(connections.get(), is(1));
+    assertThat(count(), is(5));
+  }
+
+  @Test
+  void testTransactionRollback() {
+    assertThrows(IllegalStateException.class, () -> instance.inTransaction(tx -> {
+      tx.execute("insert into test(uuid, name) values('t1', 'tx')", st -> {});
+      tx.batchRecords("insert into test(uuid, name) values(?, ?)", List.of(new Row("t2", "tx")));
+      throw new IllegalArgumentException("abort");
+    }));
+
+    assertThat(count(), is(3));
+  }
+
+  @Test
+  void testReadOnlyTransaction() throws SQLException {
+    var connection = mock(Connection.class);
+    when(connection.getAutoCommit()).thenReturn(true);
+    instance = new JdbcInstance(() -> connection);
+
+    assertThat(instance.inReadOnlyTransaction(tx -> 1), is(1));
+
+    var order = inOrder(connection);
+    order.verify(connection).setReadOnly(true);
+    order.verify(connection).setAutoCommit(false);
+    order.verify(connection).commit();
+    order.verify(connection).setAutoCommit(true);
+    order.verify(connection).setReadOnly(false);
+    order.verify(connection).close();
+  }
+
+  private int count() {
+    var result = new AtomicInteger();
+    instance.streamed("select count(*) from test", st -> {}, rs -> result.set(rs.getInt(1)));
+    return result.get();
+  }
+
   private void createTables(Connection connection) {
     sql(connection,
     """
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.TestHelper;
+import static baselib.extra.BenchmarkRun.run;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Full table export with an increasing number of partitions.
+ *
+ * @author Raffaele Ragni
+ */
+@State(Scope.Benchmark)
+public class PartitionedQueryBenchmark {
+  private static final int ROWS = 200_000;
+
+  @Param({"1", "2", "4", "8"})
+  int partitions;
+
+  PartitionedQuery query;
+
+  public static void main(String[] args) {
+    run(PartitionedQueryBenchmark.class);
+  }
+
+  @Setup
+  public void setup() {
+    var dbname = UUID.randomUUID().toString();
+    var jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table item(id bigint primary key, name varchar(255))", st -> {});
+    jdbc.execute("insert into item select x, 'item' || x from system_range(1, " + ROWS + ")", st -> {});
+    query = new PartitionedQuery(jdbc);
+  }
+
+  @Benchmark
+  public long export() {
+    var total = new LongAdder();
+    query.forEach("select id, name from item", st -> {}, "id", PartitionedQuery.ranges(1, ROWS, partitions), rs -> {
+      total.add(rs.getLong(1));
+      total.add(rs.getString(2).hashCode());
+    });
+    return total.sum();
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.TestHelper;
+import baselib.jdbc.JdbcInstance.ExConsumer;
+import baselib.jdbc.PartitionedQuery.Range;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class PartitionedQueryTest {
+  public record Item(long id, String name) {}
+
+  JdbcInstance jdbc;
+  PartitionedQuery query;
+
+  @BeforeEach
+  void setup() {
+    var dbname = UUID.randomUUID().toString();
+    jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table item as select x id, 'item' || x name from system_range(1, 10000)", st -> {});
+    query = new PartitionedQuery(jdbc);
+  }
+
+  @Test
+  void testRanges() {
+    assertThat(PartitionedQuery.ranges(1, 100, 4), is(List.of(
+      new Range(null, 26L),
+      new Range(26L, 51L),
+      new Range(51L, 76L),
+      new Range(76L, null))));
+    assertThat(PartitionedQuery.ranges(5, 6, 4), is(List.of(new Range(null, 6L), new Range(6L, null))));
+    assertThat(PartitionedQuery.ranges(0, -1, 4), is(List.of(new Range(null, null))));
+    assertThrows(IllegalArgumentException.class, () -> PartitionedQuery.ranges(0, 1, 0));
+  }
+
+  @Test
+  void testRangesFromQuery() {
+    var ranges = query.ranges("select * from item where id > ?", st -> st.setLong(1, 5000), "id", 2);
+    assertThat(ranges, is(List.of(new Range(null, 7501L), new Range(7501L, null))));
+  }
+
+  @Test
+  void testStream() {
+    var sql = "select * from item where id > ?";
+    ExConsumer<PreparedStatement> params = st -> st.setLong(1, 100);
+    var ranges = query.ranges(sql, params, "id", 4);
+
+    try (var items = query.stream(sql, params, "id", ranges, JdbcInstance.mapperOfRecord(Item.class))) {
+      var stats = items.mapToLong(Item::id).summaryStatistics();
+      assertThat(stats.getCount(), is(9900L));
+      assertThat(stats.getSum(), is((101L + 10000L) * 9900 / 2));
+    }
+  }
+
+  @Test
+  void testStreamClosedEarly() {
+    var ranges = PartitionedQuery.ranges(1, 10000, 4);
+    try (var items = query.stream("select * from item", st -> {}, "id", ranges, JdbcInstance.mapperOfRecord(Item.class))) {
+      assertThat(items.limit(10).count(), is(10L));
+    }
+  }
+
+  @Test
+  void testStreamAbandoned() throws InterruptedException {
+    var ranges = PartitionedQuery.ranges(1, 10000, 4);
+    var done = new CountDownLatch(ranges.size());
+    Executor executor = task -> new Thread(() -> {
+      task.run();
+      done.countDown();
+    }).start();
+    var abandoning = new PartitionedQuery(jdbc, executor, Duration.ofMillis(200));
+
+    var items = abandoning.stream("select * from item", st -> {}, "id", ranges, JdbcInstance.mapperOfRecord(Item.class)).iterator();
+    items.next();
+
+    assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+    assertThrows(IllegalStateException.class, () -> {
+      while (items.hasNext())
+        items.next();
+    });
+  }
+
+  @Test
+  void testStreamFailure() {
+    var ranges = PartitionedQuery.ranges(1, 10000, 4);
+    assertThrows(IllegalStateException.class, () -> {
+      try (var items = query.stream("select * from item", st -> {}, "nope", ranges, rs -> 1)) {
+        items.count();
+      }
+    });
+  }
+
+  @Test
+  void testStreamPartitionError() {
+    var ranges = PartitionedQuery.ranges(1, 10000, 4);
+    assertThrows(IllegalStateException.class, () -> {
+      try (var items = query.stream("select * from item", st -> {}, "id", ranges, rs -> {
+        throw new AssertionError("failed");
+      })) {
+        items.count();
+      }
+    });
+  }
+
+  @Test
+  void testStreamRejectedPartition() throws InterruptedException {
+    var ranges = PartitionedQuery.ranges(1, 10000, 4);
+    var started = new AtomicInteger();
+    var done = new CountDownLatch(2);
+    Executor executor = task -> {
+      if (started.incrementAndGet() > 2)
+        throw new RejectedExecutionException("full");
+      new Thread(() -> {
+        task.run();
+        done.countDown();
+      }).start();
+    };
+    var rejecting = new PartitionedQuery(jdbc, executor);
+
+    assertThrows(RejectedExecutionException.class, () -> rejecting.stream("select * from item", st -> {}, "id", ranges, JdbcInstance.mapperOfRecord(Item.class)));
+    assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  void testStreamParameters() {
+    var sql = "select * from item where id > ? and name <> ?";
+    ExConsumer<PreparedStatement> params = st -> {
+      st.setFetchSize(100);
+      st.setString(2, "none");
+      st.setLong(1, 9000);
+    };
+    var ranges = PartitionedQuery.ranges(9001, 10000, 2);
+
+    try (var items = query.stream(sql, params, "id", ranges, JdbcInstance.mapperOfRecord(Item.class))) {
+      assertThat(items.count(), is(1000L));
+    }
+  }
+
+  @Test
+  void testForEach() {
+    var sum = new AtomicLong();
+    var count = new AtomicLong();
+    query.forEach("select id from item", st -> {}, "id", PartitionedQuery.ranges(1, 10000, 8), rs -> {
+      sum.addAndGet(rs.getLong(1));
+      count.incrementAndGet();
+    });
+
+    assertThat(count.get(), is(10000L));
+    assertThat(sum.get(), is(10001L * 10000 / 2));
+  }
+
+  @Test
+  void testForEachFailure() {
+    var ranges = PartitionedQuery.ranges(1, 10000, 2);
+    assertThrows(IllegalStateException.class, () -> query.forEach("select id from item", st -> {}, "id", ranges, rs -> {
+      ex(() -> { throw new Exception("failed"); });
+    }));
+  }
+}
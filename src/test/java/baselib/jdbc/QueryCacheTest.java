@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.TestHelper;
+import baselib.jdbc.QueryCache.Eviction;
+import baselib.jdbc.QueryCache.Weight;
+import baselib.metrics.MetricsExporter;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class QueryCacheTest {
+  public record Item(int id, String name) {}
+
+  JdbcInstance jdbc;
+
+  @BeforeEach
+  void setup() {
+    var dbname = UUID.randomUUID().toString();
+    jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table item(id int, name varchar(255))", st -> {});
+    jdbc.execute("insert into item values(1, 'one'), (2, 'two'), (3, 'three')", st -> {});
+  }
+
+  @Test
+  void testCachedUntilInvalidated() {
+    var cache = new QueryCache("invalidated", Duration.ofMinutes(1), 10);
+    var cached = jdbc.withQueryCache(cache);
+    var selector = cached.makeCachedRecordSelector(Item.class, "select * from item where id = ?", st -> st.setInt(1, 1), "ITEM");
+
+    assertThat(selector.get(), is(List.of(new Item(1, "one"))));
+    cached.execute("update item set name = 'uno' where id = 1", st -> {});
+    assertThat(selector.get(), is(List.of(new Item(1, "one"))));
+    cached.execute("update item set name = 'eins' where id = 1", st -> {}, "item");
+    assertThat(selector.get(), is(List.of(new Item(1, "eins"))));
+
+    assertThat(cache.metrics.hits.get(), is(1L));
+    assertThat(cache.metrics.misses.get(), is(2L));
+    assertThat(cache.metrics.invalidated.get(), is(1L));
+  }
+
+  @Test
+  void testInvalidatedAfterCommit() {
+    var cache = new QueryCache("transaction", Duration.ofMinutes(1), 10);
+    var cached = jdbc.withQueryCache(cache);
+    var selector = select(cached, 1);
+    selector.get();
+
+    var inside = cached.inTransaction(tx -> {
+      tx.execute("update item set name = 'uno' where id = 1", st -> {}, "item");
+      assertThat(cache.size(), is(1));
+      return select(tx, 1).get();
+    });
+
+    assertThat(inside, is(List.of(new Item(1, "uno"))));
+    assertThat(cache.size(), is(0));
+    assertThat(selector.get(), is(List.of(new Item(1, "uno"))));
+  }
+
+  @Test
+  void testKeyedByParameters() {
+    var cache = new QueryCache("params", Duration.ofMinutes(1), 10);
+    var cached = jdbc.withQueryCache(cache);
+
+    assertThat(select(cached, 1).get(), is(List.of(new Item(1, "one"))));
+    assertThat(select(cached, 2).get(), is(List.of(new Item(2, "two"))));
+    assertThat(select(cached, 1).get(), is(List.of(new Item(1, "one"))));
+    assertThat(cache.size(), is(2));
+    assertThat(cache.metrics.hits.get(), is(1L));
+  }
+
+  @Test
+  void testExpiry() throws InterruptedException {
+    var cache = new QueryCache("ttl", Duration.ofMillis(1), 10);
+    var selector = select(jdbc.withQueryCache(cache), 1);
+    selector.get();
+    Thread.sleep(5);
+    selector.get();
+
+    assertThat(cache.metrics.misses.get(), is(2L));
+  }
+
+  @Test
+  void testLRUEviction() {
+    var cache = new QueryCache("lru", Duration.ofMinutes(1), 2);
+    var cached = jdbc.withQueryCache(cache);
+    select(cached, 1).get();
+    select(cached, 2).get();
+    select(cached, 1).get();
+    select(cached, 3).get();
+
+    assertThat(cache.size(), is(2));
+    assertThat(cache.metrics.evicted.get(), is(1L));
+    select(cached, 1).get();
+    assertThat(cache.metrics.hits.get(), is(2L));
+  }
+
+  @Test
+  void testLFUEviction() {
+    var cache = new QueryCache("lfu", Duration.ofMinutes(1), 2, Weight.ENTRIES, Eviction.LFU);
+    var cached = jdbc.withQueryCache(cache);
+    select(cached, 1).get();
+    select(cached, 1).get();
+    select(cached, 2).get();
+    select(cached, 2).get();
+    select(cached, 2).get();
+    select(cached, 1).get();
+    select(cached, 3).get();
+    var hits = cache.metrics.hits.get();
+
+    select(cached, 2).get();
+    select(cached, 3).get();
+    assertThat(cache.metrics.hits.get(), is(hits + 2));
+  }
+
+  @Test
+  void testBytesBound() {
+    var cache = new QueryCache("bytes", Duration.ofMinutes(1), 200, Weight.BYTES, Eviction.LRU);
+    var cached = jdbc.withQueryCache(cache);
+    cached.makeCachedRecordSelector(Item.class, "select * from item", st -> {}).get();
+    select(cached, 1).get();
+
+    assertThat(cache.size(), is(1));
+    assertThat(QueryCache.estimateBytes(List.of(new Item(1, "one"))) <= 200, is(true));
+    assertThat(QueryCache.estimateBytes(List.of(new Item(1, "one"), new Item(2, "two"), new Item(3, "three"))) > 200, is(true));
+  }
+
+  @Test
+  void testWithoutCache() {
+    var selector = jdbc.makeCachedRecordSelector(Item.class, "select * from item where id = 1", st -> {}, "item");
+    assertThat(selector.get(), is(List.of(new Item(1, "one"))));
+    assertThat(jdbc.execute("delete from item", st -> {}, "item"), is(3));
+  }
+
+  @Test
+  void testMetrics() {
+    var cache = new QueryCache("metricstest", Duration.ofMinutes(1), 10);
+    var selector = select(jdbc.withQueryCache(cache), 1);
+    selector.get();
+    selector.get();
+
+    var sw = new StringWriter();
+    MetricsExporter.DEFAULT.export(sw);
+    var metrics = sw.toString();
+    assertThat(metrics, containsString("querycache_hits_total{cache=\"metricstest\"} 1"));
+    assertThat(metrics, containsString("querycache_misses_total{cache=\"metricstest\"} 1"));
+    assertThat(metrics, containsString("querycache_hit_ratio{cache=\"metricstest\"} 0.5"));
+    assertThat(metrics, containsString("querycache_entries{cache=\"metricstest\"} 1"));
+
+    cache.close();
+    var closed = new StringWriter();
+    MetricsExporter.DEFAULT.export(closed);
+    assertThat(closed.toString(), not(containsString("querycache_hits_total{cache=\"metricstest\"}")));
+  }
+
+  @Test
+  void testInvalidArguments() {
+    var zero = Duration.ZERO;
+    var minute = Duration.ofMinutes(1);
+    assertThrows(IllegalArgumentException.class, () -> new QueryCache("invalid", zero, 1));
+    assertThrows(IllegalArgumentException.class, () -> new QueryCache("invalid", minute, 0));
+  }
+
+  private static Supplier<List<Item>> select(JdbcInstance jdbc, int id) {
+    return jdbc.makeCachedRecordSelector(Item.class, "select * from item where id = ?", st -> st.setInt(1, id), "item");
+  }
+}
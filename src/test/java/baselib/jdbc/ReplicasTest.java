@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import baselib.TestHelper;
+import baselib.metrics.MetricsExporter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class ReplicasTest {
+  JdbcInstance primary;
+  Supplier<Connection> replica1;
+  Supplier<Connection> replica2;
+  AtomicBoolean replica1Down;
+
+  @BeforeEach
+  void setup() {
+    primary = database("primary");
+    var r1 = UUID.randomUUID().toString();
+    var r2 = UUID.randomUUID().toString();
+    replica1Down = new AtomicBoolean();
+    replica1 = () -> {
+      if (replica1Down.get())
+        throw new IllegalStateException("down");
+      return TestHelper.memoryDB(r1);
+    };
+    replica2 = () -> TestHelper.memoryDB(r2);
+    fill(new JdbcInstance(replica1), "replica1");
+    fill(new JdbcInstance(replica2), "replica2");
+  }
+
+  @Test
+  void testReadsOnReplicasWritesOnPrimary() {
+    var replicas = new Replicas("rw", List.of(replica1, replica2));
+    var jdbc = primary.withReplicas(replicas);
+
+    var seen = new HashSet<String>();
+    for (var i = 0; i < 200; i++)
+      seen.add(read(jdbc));
+    assertThat(seen, is(Set.of("replica1", "replica2")));
+
+    jdbc.execute("update source set name = 'written'", st -> {});
+    assertThat(read(primary), is("written"));
+    assertThat(jdbc.inTransaction(tx -> read(tx)), is("written"));
+    assertThat(jdbc.inReadOnlyTransaction(tx -> read(tx)).startsWith("replica"), is(true));
+  }
+
+  @Test
+  void testFailover() {
+    var replicas = new Replicas("failover", List.of(replica1, replica2));
+    var jdbc = primary.withReplicas(replicas);
+
+    replica1Down.set(true);
+    for (var i = 0; i < 50; i++)
+      assertThat(read(jdbc), is("replica2"));
+    assertThat(replicas.replicas().get(0).healthy, is(false));
+
+    replicas.replicas().get(1).healthy = false;
+    assertThat(read(jdbc), is("primary"));
+
+    assertThat(replicas.checkHealth(), is(1));
+    assertThat(read(jdbc), is("replica2"));
+
+    replica1Down.set(false);
+    assertThat(replicas.checkHealth(), is(2));
+    assertThat(replicas.replicas().get(0).healthy, is(true));
+  }
+
+  @Test
+  void testLatencyWeighting() {
+    var replicas = new Replicas("latency", List.of(replica1, replica2));
+    replicas.replicas().get(0).latencyNanos = 1_000_000;
+    replicas.replicas().get(1).latencyNanos = 9_000_000;
+
+    var fast = 0;
+    for (var i = 0; i < 10_000; i++)
+      if (replicas.pick() == replicas.replicas().get(0))
+        fast++;
+    assertThat(fast, greaterThan(8500));
+  }
+
+  @Test
+  void testLatencyOnlyFromHealthChecks() {
+    var replicas = new Replicas("roundtrip", List.of(replica1, replica2));
+    var jdbc = primary.withReplicas(replicas);
+    for (var i = 0; i < 20; i++)
+      read(jdbc);
+    assertThat(replicas.replicas().get(0).latencyNanos, is(0.0));
+    assertThat(replicas.replicas().get(1).latencyNanos, is(0.0));
+
+    replicas.checkHealth();
+    assertThat(replicas.replicas().get(0).latencyNanos, greaterThan(0.0));
+  }
+
+  @Test
+  void testReadYourWrites() throws InterruptedException {
+    var replicas = new Replicas("pinned", List.of(replica1, replica2));
+    var pinned = primary.withReplicas(replicas.withReadYourWrites(Duration.ofMillis(200)));
+    var unpinned = primary.withReplicas(replicas);
+
+    pinned.execute("update source set name = 'written'", st -> {});
+    assertThat(read(pinned), is("written"));
+    assertThat(read(unpinned).startsWith("replica"), is(true));
+
+    var other = new String[1];
+    var thread = new Thread(() -> other[0] = read(pinned));
+    thread.start();
+    thread.join();
+    assertThat(other[0].startsWith("replica"), is(true));
+
+    Thread.sleep(250);
+    assertThat(read(pinned).startsWith("replica"), is(true));
+
+    pinned.inTransaction(tx -> tx.execute("update source set name = 'again'", st -> {}));
+    assertThat(read(pinned), is("again"));
+  }
+
+  @Test
+  void testReadYourWritesSession() throws InterruptedException {
+    var replicas = new Replicas("session", List.of(replica1, replica2)).withReadYourWrites(Duration.ofMillis(200));
+    var session = primary.withReplicas(replicas.session());
+    var otherSession = primary.withReplicas(replicas.session());
+    var async = new AsyncJdbcInstance(session);
+
+    async.execute("update source set name = 'written'", st -> {}).join();
+    assertThat(read(session), is("written"));
+    assertThat(async.supply(jdbc -> read(jdbc)).join(), is("written"));
+    assertThat(read(otherSession).startsWith("replica"), is(true));
+
+    Thread.sleep(250);
+    assertThat(read(session).startsWith("replica"), is(true));
+  }
+
+  @Test
+  void testMetrics() {
+    var replicas = new Replicas("metricstest", List.of(replica1, replica2));
+    replica1Down.set(true);
+    replicas.checkHealth();
+
+    var sw = new StringWriter();
+    MetricsExporter.DEFAULT.export(sw);
+    assertThat(sw.toString(), containsString("replica_up{replicas=\"metricstest\",replica=\"0\"} 0"));
+    assertThat(sw.toString(), containsString("replica_up{replicas=\"metricstest\",replica=\"1\"} 1"));
+  }
+
+  @Test
+  void testInvalidArguments() {
+    List<Supplier<Connection>> none = List.of();
+    assertThrows(IllegalArgumentException.class, () -> new Replicas("invalid", none));
+    var replicas = new Replicas("invalid", List.of(replica1));
+    var zero = Duration.ZERO;
+    assertThrows(IllegalArgumentException.class, () -> replicas.withReadYourWrites(zero));
+  }
+
+  private static JdbcInstance database(String name) {
+    var dbname = UUID.randomUUID().toString();
+    var jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    fill(jdbc, name);
+    return jdbc;
+  }
+
+  private static void fill(JdbcInstance jdbc, String name) {
+    jdbc.execute("create table source(name varchar(255))", st -> {});
+    jdbc.execute("insert into source values(?)", st -> st.setString(1, name));
+  }
+
+  private static String read(JdbcInstance jdbc) {
+    var result = new String[1];
+    jdbc.streamed("select name from source", st -> {}, rs -> result[0] = rs.getString(1));
+    return result[0];
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.jdbc;
+
+import static baselib.jdbc.StatementMetrics.fingerprint;
+import baselib.TestHelper;
+import baselib.metrics.MetricsExporter;
+import java.io.StringWriter;
+import java.util.UUID;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class StatementMetricsTest {
+
+  @Test
+  void testFingerprint() {
+    assertThat(fingerprint("SELECT *\n  FROM t1 WHERE id = 10 and name = 'it''s'"), is("select * from t1 where id = ? and name = ?"));
+    assertThat(fingerprint("select * from t where id in (1, 2, 3) and x = ?"), is("select * from t where id in (?, ...) and x = ?"));
+    assertThat(fingerprint("select * from t where id in (?,?,?)"), is("select * from t where id in (?, ...)"));
+    assertThat(fingerprint("update t set v = 1.5e3 where col_2 = -4"), is("update t set v = ? where col_2 = -?"));
+    assertThat(fingerprint("x".repeat(500)).length(), is(200));
+  }
+
+  @Test
+  void testCardinalityBound() {
+    var metrics = new StatementMetrics(new MetricsExporter(), 2);
+    var first = metrics.of("select 1 from a");
+    var second = metrics.of("select 1 from b");
+    var third = metrics.of("select 1 from c");
+
+    assertThat(metrics.of("select 2 from a") == first, is(true));
+    assertThat(second.fingerprint, is("select ? from b"));
+    assertThat(third.fingerprint, is(StatementMetrics.OTHER));
+    assertThat(metrics.of("select 1 from d") == third, is(true));
+  }
+
+  @Test
+  void testHistogram() {
+    var exporter = new MetricsExporter();
+    var stats = new StatementMetrics(exporter, 10).of("select \"quoted\" from t");
+    stats.record(1_000_000, 500_000, 3, false);
+    stats.record(0, 20_000_000, 1, true);
+    stats.record(0, 10_000_000_000L, 0, false);
+
+    var sw = new StringWriter();
+    exporter.export(sw);
+    var out = sw.toString();
+    var label = "sql=\"select \\\"quoted\\\" from t\"";
+    assertThat(out, containsString("jdbc_statement_count{" + label + "} 3\n"));
+    assertThat(out, containsString("jdbc_statement_errors_total{" + label + "} 1\n"));
+    assertThat(out, containsString("jdbc_statement_rows_total{" + label + "} 4\n"));
+    assertThat(out, containsString("jdbc_statement_connection_wait_seconds_sum{" + label + "} 0.001000\n"));
+    assertThat(out, containsString("jdbc_statement_seconds_bucket{" + label + ",le=\"0.001\"} 1\n"));
+    assertThat(out, containsString("jdbc_statement_seconds_bucket{" + label + ",le=\"0.01\"} 1\n"));
+    assertThat(out, containsString("jdbc_statement_seconds_bucket{" + label + ",le=\"0.05\"} 2\n"));
+    assertThat(out, containsString("jdbc_statement_seconds_bucket{" + label + ",le=\"5.0\"} 2\n"));
+    assertThat(out, containsString("jdbc_statement_seconds_bucket{" + label + ",le=\"+Inf\"} 3\n"));
+    assertThat(out, containsString("jdbc_statement_seconds_sum{" + label + "} 10.020500\n"));
+  }
+
+  @Test
+  void testJdbcInstanceInstrumented() {
+    var dbname = UUID.randomUUID().toString();
+    var jdbc = new JdbcInstance(() -> TestHelper.memoryDB(dbname));
+    jdbc.execute("create table instrumented(id int)", st -> {});
+    jdbc.execute("insert into instrumented values (1), (2), (3)", st -> {});
+    jdbc.streamed("select id from instrumented where id > 1", st -> {}, rs -> {});
+    try (var rows = jdbc.stream("select id from instrumented where id > 2", st -> {}, rs -> 1)) {
+      rows.count();
+    }
+    assertThrows(IllegalStateException.class, () -> jdbc.execute("insert into instrumented values ('x')", st -> {}));
+
+    var sw = new StringWriter();
+    MetricsExporter.DEFAULT.export(sw);
+    var out = sw.toString();
+    assertThat(out, containsString("jdbc_statement_rows_total{sql=\"insert into instrumented values (?), ...\"} 3\n"));
+    assertThat(out, containsString("jdbc_statement_count{sql=\"select id from instrumented where id > ?\"} 2\n"));
+    assertThat(out, containsString("jdbc_statement_rows_total{sql=\"select id from instrumented where id > ?\"} 3\n"));
+    assertThat(out, containsString("jdbc_statement_errors_total{sql=\"insert into instrumented values (?)\"} 1\n"));
+  }
+}
@@ -17,6 +17,7 @@
 package baselib.json;
 
 import static baselib.json.JSONBuilder.toJSON;
+import java.io.StringWriter;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -217,6 +218,21 @@ class JSONBuilderTest {
     assertThat(result, is("[[],[],1]"));
   }
 
+  @Test
+  void testFlush() {
+    var out = new StringWriter();
+    jb.beginArray();
+    jb.value(1);
+    jb.flush(out);
+    assertThat(jb.length(), is(0));
+
+    jb.value(2);
+    jb.endArray();
+    jb.flush(out);
+
+    assertThat(out.toString(), is("[1,2]"));
+  }
+
   @Test
   void testTestNullsInArray() {
     jb.value(new Integer[]{1, null, 2});
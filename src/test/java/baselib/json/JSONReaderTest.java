@@ -20,10 +20,12 @@ import static baselib.json.JSONReader.toObject;
 import static baselib.json.JSONReader.toRecord;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigDecimal;
 import static java.util.Collections.emptyMap;
 import java.util.List;
 import java.util.Map;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -188,6 +190,48 @@ class JSONReaderTest {
     )));
   }
 
+  @Test
+  void testLiteralEndingObject() {
+    var rec = JSONReader.toRecordList(JsonRecord.class, "[{\"name\": \"a\", \"id\": 1}, {\"name\": \"b\", \"id\": 2}]");
+
+    assertThat(rec, is(List.of(new JsonRecord(1, "a"), new JsonRecord(2, "b"))));
+  }
+
+  @Test
+  void testRecordStream() {
+    var array = new JSONReader(new StringReader("""
+      [{"id": 1, "name": "test1"}, {}, {"id": 2, "name": "test2"}]
+      """));
+    try (var stream = array.toRecordStream(JsonRecord.class)) {
+      assertThat(stream.collect(toList()), is(List.of(new JsonRecord(1, "test1"), new JsonRecord(2, "test2"))));
+    }
+
+    var ndjson = new JSONReader(new StringReader("""
+      {"id": 1, "name": "test1"}
+      {"id": 2, "name": "test2"}
+      """));
+    try (var stream = ndjson.toRecordStream(JsonRecord.class)) {
+      assertThat(stream.collect(toList()), is(List.of(new JsonRecord(1, "test1"), new JsonRecord(2, "test2"))));
+    }
+
+    assertThat(new JSONReader(new StringReader("[]")).toRecordStream(JsonRecord.class).count(), is(0L));
+    assertThat(new JSONReader(new StringReader("")).toRecordStream(JsonRecord.class).count(), is(0L));
+    assertThrows(IllegalStateException.class, () -> new JSONReader(new StringReader("[1]")).toRecordStream(JsonRecord.class).count());
+    assertThrows(IllegalArgumentException.class, () -> new JSONReader(new StringReader("[]")).toRecordStream(Object.class));
+  }
+
+  @Test
+  void testRecordStreamLazy() throws IOException {
+    var reader = new StringReader("[{\"id\": 1}, {\"id\": 2}, {\"id\": 3}]");
+    var stream = new JSONReader(reader).toRecordStream(JsonRecord.class);
+
+    assertThat(stream.iterator().next(), is(new JsonRecord(1, null)));
+    var rest = new char[64];
+    assertThat(new String(rest, 0, reader.read(rest)), is(" {\"id\": 2}, {\"id\": 3}]"));
+    stream.close();
+    assertThrows(IOException.class, reader::read);
+  }
+
   @Test
   void testCloseCalled() throws IOException {
     var reader = mock(Reader.class);
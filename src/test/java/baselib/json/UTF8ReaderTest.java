@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.json;
+
+import java.io.BufferedReader;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static baselib.ExceptionWrapper.ex;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class UTF8ReaderTest {
+
+  @Test
+  void testDecode() {
+    var text = "ascii, èà, €, 😀 end";
+    assertThat(read(text.getBytes(UTF_8)), is(text));
+  }
+
+  @Test
+  void testMalformed() {
+    assertThat(read(new byte[]{'a', (byte) 0xC3}), is("a�"));
+    assertThat(read(new byte[]{(byte) 0xE2, 'b'}), is("�b"));
+    assertThat(read(new byte[]{(byte) 0x80, 'c'}), is("�c"));
+  }
+
+  @Test
+  void testRecordInPlace() {
+    var buffer = ByteBuffer.wrap("{\"id\": 1, \"name\": \"è\"}".getBytes(UTF_8));
+    assertThat(JSONReader.toRecord(JSONReaderTest.JsonRecord.class, buffer), is(new JSONReaderTest.JsonRecord(1, "è")));
+  }
+
+  private static String read(byte[] bytes) {
+    return ex(() -> {
+      try (var reader = new BufferedReader(new UTF8Reader(ByteBuffer.wrap(bytes)))) {
+        var sb = new StringBuilder();
+        for (var ch = reader.read(); ch != -1; ch = reader.read())
+          sb.append((char) ch);
+        return sb.toString();
+      }
+    });
+  }
+}
@@ -83,6 +83,16 @@ class MetricsExporterTest {
     }
   }
 
+  @Test
+  void testUnregister() {
+    MetricRegisterable registerable = r -> r.accept("test_metric", () -> "1");
+    exporter.register(registerable);
+    assertThat(exportMetrics(), containsString("test_metric 1"));
+
+    exporter.unregister(registerable);
+    assertThat(exportMetrics(), not(containsString("test_metric")));
+  }
+
   private String exportMetrics() {
     var sw = new StringWriter();
     exporter.export(sw);
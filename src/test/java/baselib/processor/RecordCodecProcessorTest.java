@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.processor;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.RecordCodec;
+import baselib.RecordCodecs;
+import baselib.Records;
+import baselib.json.JSONBuilder;
+import baselib.json.JSONReader;
+import java.io.StringWriter;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import javax.tools.ToolProvider;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.jupiter.api.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class RecordCodecProcessorTest {
+
+  private static final String SOURCE = """
+    package codegen;
+
+    import baselib.GenerateCodec;
+    import java.util.List;
+
+    public class Holder {
+      @GenerateCodec
+      public record Inner(String label) {}
+
+      @GenerateCodec
+      public record Item(int id, long total, boolean active, String fullName, Inner inner, List<String> tags) {}
+    }
+    """;
+
+  private static final String INVALID_SOURCE = """
+    package codegen;
+
+    @baselib.GenerateCodec
+    public class NotARecord {}
+    """;
+
+  @Test
+  void testGeneratedCodec() throws Exception {
+    var dir = Files.createTempDirectory("codegen");
+    var output = compile(dir, "Holder", SOURCE);
+    assertThat(output, is(""));
+
+    try (var loader = new URLClassLoader(new java.net.URL[]{dir.toUri().toURL()}, getClass().getClassLoader())) {
+      var itemClass = loader.loadClass("codegen.Holder$Item");
+      var innerClass = loader.loadClass("codegen.Holder$Inner");
+      register(loader.loadClass("codegen.Holder_ItemCodec"));
+      register(loader.loadClass("codegen.Holder_InnerCodec"));
+      try {
+        assertThat(RecordCodecs.of(itemClass), is(notNullValue()));
+
+        var json = """
+          {"id":1,"total":2,"active":true,"full_name":"name","inner":{"label":"x"},"tags":["a","b"]}
+          """;
+        var item = JSONReader.toRecord(itemClass, json);
+        var inner = Records.fromMap(innerClass, Map.of("label", "x"));
+        assertThat(Records.toMap(item), is(Map.of(
+          "id", 1,
+          "total", 2L,
+          "active", true,
+          "fullName", "name",
+          "inner", Map.of("label", "x"),
+          "tags", List.of("a", "b"))));
+        assertThat(Records.toMap(item).get("inner"), is(Records.toMap(inner)));
+
+        JSONAssert.assertEquals("""
+          {"id":1,"total":2,"active":true,"fullName":"name","inner":{"label":"x"},"tags":["a","b"]}
+          """, JSONBuilder.toJSON(item), true);
+      } finally {
+        RecordCodecs.unregister(itemClass);
+        RecordCodecs.unregister(innerClass);
+      }
+    }
+  }
+
+  @Test
+  void testOnlyRecords() throws Exception {
+    var dir = Files.createTempDirectory("codegen");
+    var output = compile(dir, "NotARecord", INVALID_SOURCE);
+    assertThat(output, containsString("only supported on java records"));
+  }
+
+  private static void register(Class<?> codecClass) {
+    RecordCodecs.register((RecordCodec<?>) ex(() -> codecClass.getConstructor().newInstance()));
+  }
+
+  private static String compile(Path dir, String name, String source) throws Exception {
+    var file = dir.resolve(name + ".java");
+    Files.writeString(file, source);
+    var classpath = Path.of(RecordCodec.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    var compiler = ToolProvider.getSystemJavaCompiler();
+    var output = new StringWriter();
+    var fileManager = compiler.getStandardFileManager(null, null, null);
+    var task = compiler.getTask(output, fileManager, null,
+      List.of(
+        "-classpath", classpath.toString(),
+        "-d", dir.toString(),
+        "-s", dir.toString(),
+        "-processor", RecordCodecProcessor.class.getName()),
+      null,
+      fileManager.getJavaFileObjects(file));
+    task.call();
+    return output.toString();
+  }
+}
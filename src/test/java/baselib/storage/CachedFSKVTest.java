@@ -0,0 +1,228 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.metrics.MetricsExporter;
+import baselib.storage.CachedFSKV.Eviction;
+import baselib.storage.CachedFSKV.Weight;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import static java.util.Optional.empty;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class CachedFSKVTest {
+  public record Item(String id, String name) {}
+
+  FSKV<Item> store;
+  AtomicInteger reads;
+
+  @BeforeEach
+  void setup() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "cachedstoretest" + System.nanoTime());
+    reads = new AtomicInteger();
+    store = new FSKV<>(dir, Item.class) {
+      @Override
+      public Optional<Item> get(String uuid) {
+        reads.incrementAndGet();
+        return super.get(uuid);
+      }
+    };
+    for (var i = 0; i < 100; i++)
+      store.put("k" + i, new Item("k" + i, "name" + i));
+  }
+
+  @Test
+  void testHitsSkipTheStore() {
+    var cached = new CachedFSKV<>("hits", store, 10);
+
+    assertThat(cached.get("k1").get(), is(new Item("k1", "name1")));
+    assertThat(cached.get("k1").get(), is(new Item("k1", "name1")));
+    assertThat(cached.get("missing"), is(empty()));
+    assertThat(cached.get("missing"), is(empty()));
+
+    assertThat(reads.get(), is(3));
+    assertThat(cached.metrics.hits.get(), is(1L));
+    assertThat(cached.metrics.misses.get(), is(3L));
+  }
+
+  @Test
+  void testWriteThrough() {
+    var cached = new CachedFSKV<>("writethrough", store, 10);
+    cached.get("k1");
+    cached.put("k1", new Item("k1", "changed"));
+
+    assertThat(cached.get("k1").get().name(), is("changed"));
+    assertThat(store.get("k1").get().name(), is("changed"));
+    assertThat(reads.get(), is(2));
+
+    cached.invalidate("k1");
+    cached.get("k1");
+    assertThat(reads.get(), is(3));
+  }
+
+  @Test
+  void testDelete() {
+    var cached = new CachedFSKV<>("delete", store, 10);
+    cached.get("k1");
+
+    assertThat(cached.delete("k1"), is(true));
+    assertThat(cached.get("k1"), is(empty()));
+    assertThat(store.get("k1"), is(empty()));
+    try (var keys = cached.keys()) {
+      assertThat(keys.count(), is(99L));
+    }
+  }
+
+  @Test
+  void testDeleteDuringMissIsNotCached() throws InterruptedException {
+    var read = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    var slow = new FSKV<Item>(store.dir, Item.class) {
+      @Override
+      public Optional<Item> get(String uuid) {
+        var result = super.get(uuid);
+        if (read.getCount() > 0) {
+          read.countDown();
+          ex(() -> release.await());
+        }
+        return result;
+      }
+    };
+    var cached = new CachedFSKV<>("concurrent", slow, 10);
+
+    var reader = new Thread(() -> cached.get("k1"));
+    reader.start();
+    read.await();
+    var deleter = new Thread(() -> cached.delete("k1"));
+    deleter.start();
+    deleter.join(100);
+    release.countDown();
+    reader.join();
+    deleter.join();
+
+    assertThat(cached.get("k1"), is(empty()));
+  }
+
+  @Test
+  void testMigrateDelegates() {
+    var sharded = new FSKV<Item>(store.dir, Item.class, ValueFormat.JSON, 2);
+    var cached = new CachedFSKV<>("migrate", sharded, 10);
+
+    assertThat(cached.migrate(), is(100L));
+    assertThat(cached.get("k1").get(), is(new Item("k1", "name1")));
+  }
+
+  @Test
+  void testLRUEviction() {
+    var cached = new CachedFSKV<>("lru", store, 2);
+    cached.get("k1");
+    cached.get("k2");
+    cached.get("k1");
+    cached.get("k3");
+
+    assertThat(cached.size(), is(2L));
+    assertThat(cached.metrics.evicted.get(), is(1L));
+    reads.set(0);
+    cached.get("k1");
+    cached.get("k3");
+    assertThat(reads.get(), is(0));
+    cached.get("k2");
+    assertThat(reads.get(), is(1));
+  }
+
+  @Test
+  void testTinyLFUResistsScans() {
+    var cached = new CachedFSKV<>("tinylfu", store, 10, Weight.ENTRIES, Eviction.TINY_LFU);
+    for (var round = 0; round < 5; round++)
+      for (var i = 0; i < 8; i++)
+        cached.get("k" + i);
+
+    // keys read once do not push out the popular ones
+    for (var i = 10; i < 100; i++)
+      cached.get("k" + i);
+
+    reads.set(0);
+    for (var i = 0; i < 8; i++)
+      cached.get("k" + i);
+    assertThat(reads.get(), is(0));
+    assertThat(cached.size() <= 10, is(true));
+  }
+
+  @Test
+  void testLRUDoesNotResistScans() {
+    var cached = new CachedFSKV<>("lruscan", store, 10);
+    for (var round = 0; round < 5; round++)
+      for (var i = 0; i < 9; i++)
+        cached.get("k" + i);
+    for (var i = 10; i < 100; i++)
+      cached.get("k" + i);
+
+    reads.set(0);
+    for (var i = 0; i < 9; i++)
+      cached.get("k" + i);
+    assertThat(reads.get(), is(9));
+  }
+
+  @Test
+  void testBytesBound() {
+    var size = store.format.encode(new Item("k1", "name1")).length;
+    var cached = new CachedFSKV<>("bytes", store, size * 3L, Weight.BYTES, Eviction.LRU);
+    for (var i = 1; i < 8; i++)
+      cached.get("k" + i);
+
+    assertThat(cached.size(), is(3L));
+  }
+
+  @Test
+  void testMetrics() {
+    var cached = new CachedFSKV<>("metricstest", store, 10);
+    cached.get("k1");
+    cached.get("k1");
+
+    var sw = new StringWriter();
+    MetricsExporter.DEFAULT.export(sw);
+    var out = sw.toString();
+    assertThat(out, containsString("fskv_cache_hits_total{cache=\"metricstest\"} 1"));
+    assertThat(out, containsString("fskv_cache_misses_total{cache=\"metricstest\"} 1"));
+    assertThat(out, containsString("fskv_cache_entries{cache=\"metricstest\"} 1"));
+
+    cached.close();
+    var closed = new StringWriter();
+    MetricsExporter.DEFAULT.export(closed);
+    assertThat(closed.toString(), not(containsString("fskv_cache_hits_total{cache=\"metricstest\"}")));
+  }
+
+  @Test
+  void testInvalidArguments() {
+    assertThrows(IllegalArgumentException.class, () -> new CachedFSKV<>("invalid", store, 0));
+    assertThrows(NullPointerException.class, () -> new CachedFSKV<>("invalid", store, 1, null, Eviction.LRU));
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.extra.BenchmarkRun.run;
+import baselib.storage.LogFSKV.ReadMode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Random gets of values: one file per key, segment read with a positional
+ * read, segment read from a memory mapping.
+ * The *Bytes variants only read the value, without decoding it.
+ * The *Batch variants get 100 keys, one after the other or with getAll().
+ *
+ * @author Raffaele Ragni
+ */
+@State(Scope.Benchmark)
+public class FSKVReadBenchmark {
+  private static final int KEYS = 10_000;
+  private static final int BATCH = 100;
+
+  public record Item(String id, String name, int quantity, String description) {}
+
+  @Param({"json", "binary"})
+  String format;
+
+  FSKV<Item> files;
+  LogFSKV<Item> log;
+  LogFSKV<Item> mapped;
+
+  public static void main(String[] args) {
+    run(FSKVReadBenchmark.class);
+  }
+
+  @Setup
+  public void setup() {
+    var valueFormat = "json".equals(format) ? ValueFormat.JSON : ValueFormat.BINARY;
+    var base = Path.of(System.getProperty("java.io.tmpdir"), "fskvbenchmark" + System.nanoTime());
+    files = new FSKV<>(base.resolve("files"), Item.class, valueFormat);
+    log = new LogFSKV<>(base.resolve("log"), Item.class, valueFormat);
+    for (var i = 0; i < KEYS; i++) {
+      var item = new Item("k" + i, "item " + i, i, "a description of the item number " + i);
+      files.put(item.id(), item);
+      log.put(item.id(), item);
+    }
+    log.close();
+    log = new LogFSKV<>(base.resolve("log"), Item.class, valueFormat);
+    mapped = new LogFSKV<>(base.resolve("log"), Item.class, valueFormat,
+      LogFSKV.DEFAULT_SEGMENT_SIZE, Runnable::run, ReadMode.MAPPED);
+  }
+
+  @TearDown
+  public void teardown() {
+    log.close();
+    mapped.close();
+  }
+
+  @Benchmark
+  public Item files() {
+    return files.get(randomKey()).orElseThrow();
+  }
+
+  @Benchmark
+  public Item segment() {
+    return log.get(randomKey()).orElseThrow();
+  }
+
+  @Benchmark
+  public Item mapped() {
+    return mapped.get(randomKey()).orElseThrow();
+  }
+
+  @Benchmark
+  public int filesBatch() {
+    var count = 0;
+    for (var key: batchKeys())
+      count += files.get(key).isPresent() ? 1 : 0;
+    return count;
+  }
+
+  @Benchmark
+  public int filesGetAllBatch() {
+    return files.getAll(batchKeys()).size();
+  }
+
+  @Benchmark
+  public int filesBytes() throws IOException {
+    return Files.readAllBytes(files.dir.resolve(randomKey() + files.format.extension())).length;
+  }
+
+  @Benchmark
+  public int segmentBytes() {
+    return log.read(randomKey()).remaining();
+  }
+
+  @Benchmark
+  public int mappedBytes() {
+    return mapped.read(randomKey()).remaining();
+  }
+
+  private static List<String> batchKeys() {
+    var keys = new ArrayList<String>(BATCH);
+    for (var i = 0; i < BATCH; i++)
+      keys.add(randomKey());
+    return keys;
+  }
+
+  private static String randomKey() {
+    return "k" + ThreadLocalRandom.current().nextInt(KEYS);
+  }
+}
@@ -15,9 +15,20 @@
  */
 package baselib.storage;
 
+import static baselib.ExceptionWrapper.ex;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import static java.util.Optional.empty;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -51,6 +62,19 @@ class FSKVTest {
     assertThat(rec, is(rec2));
   }
 
+  @Test
+  void testBinaryFormat() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestbin" + System.currentTimeMillis());
+    var binaryStore = new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.BINARY);
+    var rec = new TestRecordForFSKV(UUID.randomUUID().toString(), "test");
+
+    binaryStore.put(rec.uuid(), rec);
+
+    assertThat(binaryStore.get(rec.uuid()).get(), is(rec));
+    assertThat(dir.resolve(rec.uuid() + ".bin").toFile().exists(), is(true));
+  }
+
   @Test
   void testInvalidPaths() {
     var rec = new TestRecordForFSKV(UUID.randomUUID().toString(), "test");
@@ -60,6 +84,193 @@ class FSKVTest {
     assertThrows(IllegalStateException.class, () -> store.get("../a"));
   }
 
+  @Test
+  void testSharded() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestsharded" + System.nanoTime());
+    var shardedStore = new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.JSON, 2);
+    var rec = new TestRecordForFSKV(UUID.randomUUID().toString(), "test");
+
+    shardedStore.put(rec.uuid(), rec);
+
+    var path = shardedStore.pathOf(rec.uuid());
+    assertThat(path.toFile().exists(), is(true));
+    assertThat(dir.relativize(path).getNameCount(), is(3));
+    assertThat(shardedStore.get(rec.uuid()).get(), is(rec));
+    assertThat(shardedStore.get("nonexistantfile"), is(empty()));
+
+    assertThrows(IllegalArgumentException.class, () -> shardedStore.put("../a", rec));
+    assertThrows(IllegalArgumentException.class, () -> shardedStore.put("../../../a", rec));
+    assertThrows(IllegalArgumentException.class, () -> new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.JSON, 5));
+  }
+
+  @Test
+  void testMigrate() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestmigrate" + System.nanoTime());
+    var flatStore = new FSKV<>(dir, TestRecordForFSKV.class);
+    for (var i = 0; i < 10; i++)
+      flatStore.put("k" + i, new TestRecordForFSKV("k" + i, "test" + i));
+
+    var shardedStore = new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.JSON, 1);
+    assertThat(shardedStore.migrate(), is(10L));
+    assertThat(shardedStore.migrate(), is(0L));
+
+    for (var i = 0; i < 10; i++) {
+      assertThat(shardedStore.get("k" + i).get(), is(new TestRecordForFSKV("k" + i, "test" + i)));
+      assertThat(flatStore.get("k" + i), is(empty()));
+    }
+  }
+
+  @Test
+  void testMigrateKeepsNewerPuts() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestmigratenewer" + System.nanoTime());
+    var flatStore = new FSKV<>(dir, TestRecordForFSKV.class);
+    for (var i = 0; i < 10; i++)
+      flatStore.put("k" + i, new TestRecordForFSKV("k" + i, "old" + i));
+
+    var shardedStore = new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.JSON, 1);
+    shardedStore.put("k1", new TestRecordForFSKV("k1", "new"));
+    assertThat(shardedStore.migrate(), is(9L));
+
+    assertThat(shardedStore.get("k1").get().name(), is("new"));
+    assertThat(shardedStore.get("k2").get().name(), is("old2"));
+    assertThat(flatStore.get("k1"), is(empty()));
+  }
+
+  @Test
+  void testAtomicWrites() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestatomic" + System.nanoTime());
+    for (var durability: FSKV.Durability.values()) {
+      var durableStore = new FSKV<>(dir.resolve(durability.name()), TestRecordForFSKV.class, ValueFormat.JSON, 1, durability);
+      durableStore.put("a", new TestRecordForFSKV("a", "one"));
+      durableStore.put("a", new TestRecordForFSKV("a", "two"));
+
+      assertThat(durableStore.get("a").get().name(), is("two"));
+      assertThat(ex(() -> Files.list(durableStore.pathOf("a").getParent()).count()), is(1L));
+    }
+  }
+
+  @Test
+  void testDurableDelete() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestdelete" + System.nanoTime());
+    for (var durability: FSKV.Durability.values()) {
+      var durableStore = new FSKV<>(dir.resolve(durability.name()), TestRecordForFSKV.class, ValueFormat.JSON, 1, durability);
+      durableStore.put("a", new TestRecordForFSKV("a", "one"));
+
+      assertThat(durableStore.delete("a"), is(true));
+      assertThat(durableStore.get("a").isPresent(), is(false));
+      assertThat(Files.exists(durableStore.pathOf("a")), is(false));
+      assertThat(durableStore.delete("a"), is(false));
+    }
+  }
+
+  @Test
+  void testGroupCommit() {
+    var dir = Path.of(System.getProperty("java.io.tmpdir"),
+      "storetestgroup" + System.nanoTime());
+    var groupStore = new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.JSON, 1, FSKV.Durability.GROUP);
+    IntStream.range(0, 200).parallel()
+      .forEach(i -> groupStore.put("k" + i % 50, new TestRecordForFSKV("k" + i, "test" + i)));
+
+    for (var i = 0; i < 50; i++)
+      assertThat(groupStore.get("k" + i).isPresent(), is(true));
+    try (var files = ex(() -> Files.walk(dir))) {
+      assertThat(files.filter(p -> p.toString().endsWith(".tmp")).count(), is(0L));
+    }
+  }
+
+  @Test
+  void testSyncDirectoryFailure() {
+    var missing = Path.of(System.getProperty("java.io.tmpdir"), "storetestmissing" + System.nanoTime());
+    assertThrows(NoSuchFileException.class, () -> GroupCommit.syncDirectory(missing));
+  }
+
+  @Test
+  void testGetAllPutAll() {
+    var recs = new LinkedHashMap<String, TestRecordForFSKV>();
+    for (var i = 0; i < 100; i++)
+      recs.put("k" + i, new TestRecordForFSKV("k" + i, "test" + i));
+    store.putAll(recs);
+
+    var keys = new ArrayList<>(recs.keySet());
+    keys.add("missing");
+    var values = store.getAll(keys);
+    assertThat(values, is(recs));
+    assertThat(new ArrayList<>(values.keySet()), is(keys.subList(0, 100)));
+    assertThat(store.getAll(List.of()), is(Map.of()));
+  }
+
+  @Test
+  void testGetAllParallelism() {
+    var running = new AtomicInteger();
+    var maxRunning = new AtomicInteger();
+    var slowStore = new FSKV<>(store.dir, TestRecordForFSKV.class) {
+      @Override
+      public Optional<TestRecordForFSKV> get(String uuid) {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        ex(() -> Thread.sleep(5));
+        running.decrementAndGet();
+        return super.get(uuid);
+      }
+    };
+    var keys = IntStream.range(0, 40).mapToObj(i -> "k" + i).toList();
+    slowStore.getAll(keys, Executors.newCachedThreadPool(), 4);
+
+    assertThat(maxRunning.get() <= 4, is(true));
+    assertThat(maxRunning.get() > 1, is(true));
+  }
+
+  @Test
+  void testPutAllFailure() {
+    var recs = Map.of("ok", new TestRecordForFSKV("ok", "test"), "../a", new TestRecordForFSKV("a", "test"));
+    assertThrows(IllegalArgumentException.class, () -> store.putAll(recs));
+    assertThat(store.get("ok").isPresent(), is(true));
+    assertThrows(IllegalArgumentException.class, () -> store.getAll(List.of(), Runnable::run, 0));
+  }
+
+  @Test
+  void testDeleteAndKeys() {
+    for (var levels = 0; levels <= 2; levels++) {
+      var dir = Path.of(System.getProperty("java.io.tmpdir"),
+        "storetestkeys" + System.nanoTime());
+      var keyStore = new FSKV<>(dir, TestRecordForFSKV.class, ValueFormat.JSON, levels);
+      for (var i = 0; i < 20; i++)
+        keyStore.put((i % 2 == 0 ? "even" : "odd") + i, new TestRecordForFSKV("k" + i, "test" + i));
+
+      assertThat(keyStore.delete("even0"), is(true));
+      assertThat(keyStore.delete("even0"), is(false));
+      assertThat(keyStore.get("even0"), is(empty()));
+
+      try (var keys = keyStore.keys()) {
+        assertThat(keys.count(), is(19L));
+      }
+      try (var keys = keyStore.keys("odd")) {
+        assertThat(keys.sorted().toList().subList(0, 2), is(List.of("odd1", "odd11")));
+      }
+      try (var keys = keyStore.keys("even")) {
+        assertThat(keys.count(), is(9L));
+      }
+    }
+  }
+
+  @Test
+  void testEntries() {
+    for (var i = 0; i < 50; i++)
+      store.put("k" + i, new TestRecordForFSKV("k" + i, "test" + i));
+
+    try (var entries = store.entries()) {
+      assertThat(entries.allMatch(e -> e.getValue().uuid().equals(e.getKey())), is(true));
+    }
+    try (var entries = store.entries("k1", true)) {
+      assertThat(entries.map(Map.Entry::getKey).sorted().toList(),
+        is(List.of("k1", "k10", "k11", "k12", "k13", "k14", "k15", "k16", "k17", "k18", "k19")));
+    }
+  }
+
   @Test
   void testNotFound() {
     assertThat(store.get("nonexistantfile"), is(empty()));
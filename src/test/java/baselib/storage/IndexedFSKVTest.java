@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.ExceptionWrapper.ex;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class IndexedFSKVTest {
+  public record Order(String id, String status, int amount, String note) {}
+
+  Path dir;
+  FSKV<Order> store;
+  AtomicInteger reads;
+
+  @BeforeEach
+  void setup() {
+    dir = Path.of(System.getProperty("java.io.tmpdir"), "indexedstoretest" + System.nanoTime());
+    reads = new AtomicInteger();
+    store = new FSKV<>(dir, Order.class) {
+      @Override
+      public Optional<Order> get(String uuid) {
+        reads.incrementAndGet();
+        return super.get(uuid);
+      }
+    };
+  }
+
+  @Test
+  void testFindBy() {
+    try (var indexed = new IndexedFSKV<>(store, "status", "amount")) {
+      for (var i = 0; i < 10; i++)
+        indexed.put("o" + i, new Order("o" + i, i < 3 ? "PENDING" : "DONE", i * 10, null));
+
+      reads.set(0);
+      assertThat(indexed.findBy("status", "PENDING").keySet(), is(Set.of("o0", "o1", "o2")));
+      assertThat(reads.get(), is(3));
+
+      indexed.put("o1", new Order("o1", "DONE", 10, null));
+      assertThat(indexed.delete("o2"), is(true));
+      assertThat(indexed.findBy("status", "PENDING").keySet(), is(Set.of("o0")));
+      assertThat(indexed.findBy("status", "DONE").size(), is(8));
+      assertThat(indexed.findBy("amount", 50).get("o5").amount(), is(50));
+      assertThat(indexed.findBy("amount", 20), is(Map.of()));
+    }
+  }
+
+  @Test
+  void testFindRange() {
+    try (var indexed = new IndexedFSKV<>(store, "amount")) {
+      for (var i = 0; i < 10; i++)
+        indexed.put("o" + i, new Order("o" + i, "DONE", 100 - i * 10, null));
+
+      assertThat(List.copyOf(indexed.findRange("amount", 30, 60).keySet()), is(List.of("o7", "o6", "o5")));
+    }
+  }
+
+  @Test
+  void testReopenReadsTheLog() {
+    try (var indexed = new IndexedFSKV<>(store, "status", "note")) {
+      indexed.put("a", new Order("a", "PENDING", 1, "x"));
+      indexed.put("b", new Order("b", "PENDING", 2, null));
+      indexed.put("a", new Order("a", "DONE", 1, "y"));
+      indexed.delete("b");
+    }
+    reads.set(0);
+    try (var indexed = new IndexedFSKV<>(store, "status", "note")) {
+      assertThat(reads.get(), is(0));
+      assertThat(indexed.findBy("status", "DONE").keySet(), is(Set.of("a")));
+      assertThat(indexed.findBy("status", "PENDING"), is(Map.of()));
+      assertThat(indexed.findBy("note", "y").keySet(), is(Set.of("a")));
+    }
+  }
+
+  @Test
+  void testLogIsExact() {
+    var note = "back\\slash \"quoted\"\nnew line \u00e8\ud83d\ude00";
+    // keeps the strings as they are
+    var binaryStore = new FSKV<Order>(dir, Order.class, ValueFormat.BINARY) {
+      @Override
+      public Optional<Order> get(String uuid) {
+        reads.incrementAndGet();
+        return super.get(uuid);
+      }
+    };
+    try (var indexed = new IndexedFSKV<>(binaryStore, "note", "amount")) {
+      indexed.put("a b", new Order("a b", "DONE", -1, note));
+      indexed.put("c", new Order("c", "DONE", Integer.MAX_VALUE, "\\"));
+      indexed.put("d", new Order("d", "DONE", 0, "\""));
+    }
+    reads.set(0);
+    try (var indexed = new IndexedFSKV<>(binaryStore, "note", "amount")) {
+      assertThat(reads.get(), is(0));
+      assertThat(indexed.findBy("note", note).keySet(), is(Set.of("a b")));
+      assertThat(indexed.findBy("note", "\\").keySet(), is(Set.of("c")));
+      assertThat(indexed.findBy("note", "\"").keySet(), is(Set.of("d")));
+      assertThat(indexed.findBy("amount", Integer.MAX_VALUE).keySet(), is(Set.of("c")));
+    }
+  }
+
+  @Test
+  void testNotClosedRebuilds() {
+    var crashed = new IndexedFSKV<>(store, "status");
+    try {
+      crashed.put("a", new Order("a", "PENDING", 1, null));
+      // a crash after writing the value and before logging it
+      store.put("b", new Order("b", "PENDING", 2, null));
+
+      try (var indexed = new IndexedFSKV<>(store, "status")) {
+        assertThat(indexed.findBy("status", "PENDING").keySet(), is(Set.of("a", "b")));
+      }
+    } finally {
+      crashed.close();
+    }
+  }
+
+  @Test
+  void testCrashAfterReopenRebuilds() {
+    try (var indexed = new IndexedFSKV<>(store, "status")) {
+      indexed.put("a", new Order("a", "PENDING", 1, null));
+    }
+    var crashed = new IndexedFSKV<>(store, "status");
+    try {
+      // a crash on the first write after a clean reopen
+      store.put("b", new Order("b", "PENDING", 2, null));
+
+      try (var indexed = new IndexedFSKV<>(store, "status")) {
+        assertThat(indexed.findBy("status", "PENDING").keySet(), is(Set.of("a", "b")));
+      }
+    } finally {
+      crashed.close();
+    }
+  }
+
+  @Test
+  void testMigrateDelegates() {
+    var sharded = new FSKV<Order>(dir, Order.class, ValueFormat.JSON, 2);
+    store.put("a", new Order("a", "DONE", 1, null));
+    try (var indexed = new IndexedFSKV<>(sharded, "status")) {
+      assertThat(indexed.migrate(), is(1L));
+      assertThat(indexed.get("a").get().status(), is("DONE"));
+    }
+  }
+
+  @Test
+  void testRebuild() {
+    try (var indexed = new IndexedFSKV<>(store, "status")) {
+      indexed.put("a", new Order("a", "PENDING", 1, null));
+    }
+    // written bypassing the index, and a record cut by a crash
+    store.put("b", new Order("b", "PENDING", 2, null));
+    ex(() -> Files.write(dir.resolve(IndexedFSKV.LOG_NAME), new byte[]{1, 0, 0}, StandardOpenOption.APPEND));
+
+    try (var indexed = new IndexedFSKV<>(store, "status")) {
+      assertThat(indexed.findBy("status", "PENDING").keySet(), is(Set.of("a", "b")));
+    }
+    // other components
+    try (var indexed = new IndexedFSKV<>(store, "amount")) {
+      assertThat(indexed.findBy("amount", 2).keySet(), is(Set.of("b")));
+      store.put("c", new Order("c", "DONE", 2, null));
+      indexed.rebuildIndexes();
+      assertThat(indexed.findBy("amount", 2).keySet(), is(Set.of("b", "c")));
+    }
+  }
+
+  @Test
+  void testLogRewritten() {
+    try (var indexed = new IndexedFSKV<>(store, "amount")) {
+      for (var i = 0; i < 3000; i++)
+        indexed.put("o" + i % 10, new Order("o" + i % 10, "DONE", i, null));
+
+      // records of 12 bytes
+      var size = ex(() -> Files.size(dir.resolve(IndexedFSKV.LOG_NAME)));
+      assertThat(size, lessThan(1100L * 12));
+      assertThat(indexed.findBy("amount", 2999).keySet(), is(Set.of("o9")));
+    }
+    try (var indexed = new IndexedFSKV<>(store, "amount")) {
+      assertThat(indexed.findBy("amount", 2999).keySet(), is(Set.of("o9")));
+      assertThat(indexed.findBy("amount", 2989), is(Map.of()));
+    }
+  }
+
+  @Test
+  void testInvalidArguments() {
+    assertThrows(IllegalArgumentException.class, () -> new IndexedFSKV<>(store));
+    assertThrows(IllegalArgumentException.class, () -> new IndexedFSKV<>(store, "missing"));
+    try (var indexed = new IndexedFSKV<>(store, "amount")) {
+      assertThrows(IllegalArgumentException.class, () -> indexed.findBy("status", "DONE"));
+      assertThrows(IllegalArgumentException.class, () -> indexed.findBy("amount", "1"));
+      assertThrows(IllegalArgumentException.class, () -> indexed.findRange("amount", 1, 2L));
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021 Raffaele Ragni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package baselib.storage;
+
+import static baselib.ExceptionWrapper.ex;
+import baselib.storage.LogFSKV.ReadMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import static java.util.Optional.empty;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Raffaele Ragni
+ */
+class LogFSKVTest {
+  public record Item(String id, String name) {}
+
+  Path dir;
+
+  @BeforeEach
+  void setup() {
+    dir = Path.of(System.getProperty("java.io.tmpdir"), "logstoretest" + System.nanoTime());
+  }
+
+  @Test
+  void testPutGet() {
+    try (var store = new LogFSKV<>(dir, Item.class)) {
+      store.put("a", new Item("a", "one"));
+      store.put("b", new Item("b", "two"));
+      store.put("a", new Item("a", "uno"));
+
+      assertThat(store.get("a").get(), is(new Item("a", "uno")));
+      assertThat(store.get("b").get(), is(new Item("b", "two")));
+      assertThat(store.get("c"), is(empty()));
+      assertThat(ex(() -> Files.list(dir).count()), is(1L));
+    }
+  }
+
+  @Test
+  void testReopen() {
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.BINARY)) {
+      store.put("a", new Item("a", "one"));
+      store.put("a", new Item("a", "uno"));
+      store.put("b", new Item("b", "two"));
+    }
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.BINARY)) {
+      assertThat(store.get("a").get(), is(new Item("a", "uno")));
+      assertThat(store.get("b").get(), is(new Item("b", "two")));
+    }
+  }
+
+  @Test
+  void testIncompleteRecordDiscarded() {
+    try (var store = new LogFSKV<>(dir, Item.class)) {
+      store.put("a", new Item("a", "one"));
+    }
+    var segment = dir.resolve("segment-00000001.log");
+    var size = ex(() -> Files.size(segment));
+    ex(() -> Files.write(segment, new byte[]{0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 9, 'b'}, StandardOpenOption.APPEND));
+
+    try (var store = new LogFSKV<>(dir, Item.class)) {
+      assertThat(ex(() -> Files.size(segment)), is(size));
+      assertThat(store.get("a").get(), is(new Item("a", "one")));
+      assertThat(store.get("b"), is(empty()));
+      store.put("b", new Item("b", "two"));
+    }
+    try (var store = new LogFSKV<>(dir, Item.class)) {
+      assertThat(store.get("b").get(), is(new Item("b", "two")));
+    }
+  }
+
+  @Test
+  void testCorruptedSegmentFails() {
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run)) {
+      for (var i = 0; i < 20; i++)
+        store.put("k" + i, new Item("k" + i, "value" + i));
+      assertThat(store.segmentCount(), greaterThan(1));
+    }
+    var segment = dir.resolve("segment-00000001.log");
+    var bytes = ex(() -> Files.readAllBytes(segment));
+    bytes[20] ^= 1;
+    ex(() -> Files.write(segment, bytes));
+
+    assertThrows(IllegalStateException.class, () -> new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run));
+    assertThat(ex(() -> Files.size(segment)), is((long) bytes.length));
+  }
+
+  @Test
+  void testCompaction() {
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run)) {
+      for (var round = 0; round < 50; round++)
+        for (var i = 0; i < 10; i++)
+          store.put("k" + i, new Item("k" + i, "round" + round));
+
+      assertThat(store.segmentCount(), lessThan(10));
+      for (var i = 0; i < 10; i++)
+        assertThat(store.get("k" + i).get().name(), is("round49"));
+    }
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run)) {
+      for (var i = 0; i < 10; i++)
+        assertThat(store.get("k" + i).get().name(), is("round49"));
+    }
+  }
+
+  @Test
+  void testConcurrentCompaction() {
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 1024, r -> CompletableFuture.runAsync(r))) {
+      var futures = new ArrayList<CompletableFuture<Void>>();
+      for (var t = 0; t < 4; t++) {
+        var thread = t;
+        futures.add(CompletableFuture.runAsync(() -> {
+          for (var round = 0; round < 200; round++) {
+            for (var i = 0; i < 5; i++) {
+              var key = "t" + thread + "k" + i;
+              store.put(key, new Item(key, "round" + round));
+              assertThat(store.get(key).get().name(), is("round" + round));
+            }
+          }
+        }));
+      }
+      futures.forEach(CompletableFuture::join);
+      store.compact();
+
+      for (var t = 0; t < 4; t++)
+        for (var i = 0; i < 5; i++)
+          assertThat(store.get("t" + t + "k" + i).get().name(), is("round199"));
+    }
+  }
+
+  @Test
+  void testPutDuringCompaction() throws InterruptedException {
+    Executor manual = task -> {};
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, manual)) {
+      store.put("a", new Item("a", "old"));
+      for (var i = 0; i < 20; i++)
+        store.put("b", new Item("b", "round" + i));
+
+      var compaction = new Thread(store::compact);
+      synchronized (store) {
+        compaction.start();
+        // the compaction read the old value and waits to copy it
+        while (compaction.getState() != Thread.State.BLOCKED)
+          Thread.sleep(1);
+        store.put("a", new Item("a", "new"));
+      }
+      compaction.join();
+      assertThat(store.get("a").get().name(), is("new"));
+    }
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, manual)) {
+      assertThat(store.get("a").get().name(), is("new"));
+      assertThat(store.get("b").get().name(), is("round19"));
+    }
+  }
+
+  @Test
+  void testDelete() {
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run)) {
+      store.put("a", new Item("a", "one"));
+      store.put("b", new Item("b", "two"));
+      store.put("c", new Item("c", "three"));
+      assertThat(store.delete("a"), is(true));
+      assertThat(store.delete("a"), is(false));
+      assertThat(store.delete("c"), is(true));
+      store.put("c", new Item("c", "again"));
+
+      assertThat(store.get("a"), is(empty()));
+      try (var keys = store.keys()) {
+        assertThat(keys.sorted().toList(), is(List.of("b", "c")));
+      }
+
+      // the tombstone of a outlives the compaction of its segment
+      for (var round = 0; round < 30; round++)
+        for (var i = 0; i < 10; i++)
+          store.put("k" + i, new Item("k" + i, "round" + round));
+    }
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run)) {
+      assertThat(store.get("a"), is(empty()));
+      assertThat(store.get("b").get().name(), is("two"));
+      assertThat(store.get("c").get().name(), is("again"));
+      try (var keys = store.keys("k")) {
+        assertThat(keys.count(), is(10L));
+      }
+    }
+  }
+
+  @Test
+  void testMappedReads() {
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run, ReadMode.MAPPED)) {
+      store.put("a", new Item("a", "one"));
+      assertThat(store.get("a").get(), is(new Item("a", "one")));
+      // past the current mapping
+      store.put("b", new Item("b", "two"));
+      assertThat(store.get("b").get(), is(new Item("b", "two")));
+
+      for (var round = 0; round < 20; round++)
+        for (var i = 0; i < 10; i++) {
+          store.put("k" + i, new Item("k" + i, "round" + round));
+          assertThat(store.get("k" + i).get().name(), is("round" + round));
+        }
+      assertThat(store.get("a").get(), is(new Item("a", "one")));
+    }
+    try (var store = new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 512, Runnable::run, ReadMode.MAPPED)) {
+      assertThat(store.get("k9").get().name(), is("round19"));
+    }
+  }
+
+  @Test
+  void testInvalidArguments() {
+    assertThrows(IllegalArgumentException.class, () -> new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 0, Runnable::run));
+    assertThrows(IllegalArgumentException.class, () -> new LogFSKV<>(dir, Item.class, ValueFormat.JSON, 2L << 30, Runnable::run, ReadMode.MAPPED));
+  }
+}